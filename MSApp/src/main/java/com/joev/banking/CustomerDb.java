@@ -1,109 +1,559 @@
 package com.joev.banking;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 
+import com.joev.util.BoundedCache;
+import com.joev.util.InMemoryDb;
+import com.joev.util.JsonMergePatch;
 import com.joev.util.SimpleJsonDb;
+import com.joev.util.SimpleJsonDb.StorageMode;
+import com.joev.util.StorageEngine;
+import com.joev.util.VersionConflictException;
+import com.joev.util.VersionedRow;
 
 public class CustomerDb {
 	private static final Logger logger = LogManager.getLogger(CustomerDb.class);
 
 	protected static final String DB = "Customer";
 	private static final String TABLE = "Customers";
+	private static final String NAME_FIELD = "name";
+	private static final String ADDRESS_FIELD = "address";
+	private static final ObjectMapper mapper = new ObjectMapper();
 	
-	private static final SimpleJsonDb db = new SimpleJsonDb(DB);
+	// Journal mode: each create/update/delete appends one record rather than rewriting the table.
+	// Group commit: a change is on disk before the request returns, and concurrent requests
+	// arriving within a few milliseconds of each other share a single fsync.
+	private static final long GROUP_COMMIT_WINDOW_MS = 2;
+	
+	/**
+	 * System property which selects the default storage engine: "file" (the default), "memory",
+	 * "offheap" (in memory, with the Customers' data outside the Java heap, so that a large
+	 * number of Customers doesn't lengthen garbage collection pauses), or "packed" (in memory,
+	 * with the Customers packed by numeric id, which takes a fraction of the heap)
+	 */
+	public static final String ENGINE_PROPERTY = "customerdb.engine";
+	
+	/** Engine shared by all CustomerDbs created without one of their own */
+	private static final StorageEngine defaultEngine = newEngine(System.getProperty(ENGINE_PROPERTY, "file"));
+	
+	/** System property giving the number of Customers to cache (0 to disable the cache) */
+	public static final String CACHE_SIZE_PROPERTY = "customerdb.cacheSize";
+	/** System property which selects the cache's eviction policy: "tinylfu" (the default) or "lru" */
+	public static final String CACHE_POLICY_PROPERTY = "customerdb.cachePolicy";
+	private static final long CACHE_SIZE = Long.getLong(CACHE_SIZE_PROPERTY, 10000);
+	private static final BoundedCache.Policy CACHE_POLICY = "lru".equals(System.getProperty(CACHE_POLICY_PROPERTY))
+			? BoundedCache.Policy.LRU
+			: BoundedCache.Policy.TINY_LFU;
+	
+	/**
+	 * The cache of each engine, shared by all the CustomerDbs using that engine. An engine has an
+	 * entry once it has been prepared (see prepare).
+	 */
+	private static final Map<StorageEngine, CustomerCache> caches = Collections.synchronizedMap(new WeakHashMap<>());
+	
+	private final StorageEngine db;
+	private final CustomerCache cache;
+	
+	private static StorageEngine newEngine(String engine) {
+		switch (engine) {
+		case "memory":
+			return new InMemoryDb(DB);
+		case "offheap":
+			return new InMemoryDb(DB).withOffHeapRows();
+		case "packed":
+			return new InMemoryDb(DB).withPackedRows();
+		default:
+			return new SimpleJsonDb(DB).withStorageMode(StorageMode.JOURNAL).withGroupCommit(GROUP_COMMIT_WINDOW_MS);
+		}
+	}
+	
+	/**
+	 * Use the default storage engine (see ENGINE_PROPERTY)
+	 */
+	public CustomerDb() {
+		this(defaultEngine);
+	}
+	
+	/**
+	 * @param db storage engine holding the Customer tables. All CustomerDbs using the same
+	 *           tables should share a single engine.
+	 */
+	public CustomerDb(StorageEngine db) {
+		this.db = db;
+		this.cache = caches.computeIfAbsent(db, CustomerDb::prepare);
+	}
+	
+	/**
+	 * Prepare an engine for the Customer tables, the first time a CustomerDb uses it (declaring an
+	 * index locks the whole table, so it mustn't happen for every CustomerDb, e.g. one per
+	 * request)
+	 * 
+	 * @return the engine's cache
+	 */
+	private static CustomerCache prepare(StorageEngine db) {
+		// Many customers share a name or an address (e.g. a household): keep one copy of each
+		db.internField(TABLE, NAME_FIELD);
+		db.internField(TABLE, ADDRESS_FIELD);
+		db.createIndex(TABLE, NAME_FIELD);
+		db.createIndex(TABLE, ADDRESS_FIELD);
+		return new CustomerCache();
+	}
 	
 	public void initTables() throws IOException {
 		db.initTable(SimpleJsonDb.DB_METADATA_TABLE);
 		db.initTable(TABLE);
+		cache.clear();
 	}
 	
 	public void rmTables() throws IOException {
 		db.rmTable(SimpleJsonDb.DB_METADATA_TABLE);
 		db.rmTable(TABLE);
+		cache.clear();
+	}
+	
+	/**
+	 * Back up the Customer tables (Customers and Metadata) as they are at one moment, while
+	 * requests continue (see StorageEngine.snapshot)
+	 * 
+	 * @param target directory to be created for the backup
+	 * @throws IOException
+	 */
+	public void backup(File target) throws IOException {
+		db.snapshot(target);
+	}
+	
+	/**
+	 * Replace the Customer tables by a backup made with backup()
+	 * 
+	 * @param source directory holding the backup
+	 * @throws IOException
+	 */
+	public void restore(File source) throws IOException {
+		db.restore(source);
+		cache.clear();
+	}
+	
+	/**
+	 * @return statistics of the use of the cache of Customers read by id (see
+	 *         BoundedCache.stats)
+	 */
+	public Map<String, Long> getCacheStats() {
+		return cache.rows.stats();
 	}
 	
 	public List<Customer> getCustomers() {
-		List<Customer.Builder> customerBuilders = db.readTable(Customer.Builder.class, "Customers");
-		List<Customer> customers = new ArrayList<>();
-		for (Customer.Builder b : customerBuilders) {
-			customers.add(b.build());
+		try (Stream<Customer> customers = streamCustomers()) {
+			return customers.collect(Collectors.toList());
 		}
-		return customers;
+	}
+	
+	/**
+	 * Stream all customers, one at a time, without building a list of them. The stream should be
+	 * closed (e.g. with try-with-resources) if it isn't consumed to the end. Like the other scans
+	 * and searches, this reads from the database rather than the cache, so that it doesn't flush
+	 * the frequently read Customers out of the cache.
+	 * 
+	 * @return stream of Customers
+	 */
+	public Stream<Customer> streamCustomers() {
+		return db.streamTable(Customer.Builder.class, TABLE).map(Customer.Builder::build);
+	}
+	
+	/**
+	 * Get one page of customers, in order of id (numeric ids in numeric order)
+	 * 
+	 * @param afterId the id of the last Customer of the previous page, or null for the first page
+	 * @param limit   the maximum number of Customers to return
+	 * @return the Customers following afterId (an empty list if there are none)
+	 */
+	public List<Customer> getCustomersPage(String afterId, int limit) {
+		return build(db.scanRows(Customer.Builder.class, TABLE, afterId, limit));
+	}
+	
+	/**
+	 * Find customers by name
+	 * 
+	 * @param name the exact name to look for
+	 * @return the matching Customers (an empty list if there are none)
+	 */
+	public List<Customer> findByName(String name) {
+		return build(db.findRows(Customer.Builder.class, TABLE, NAME_FIELD, name));
+	}
+	
+	/**
+	 * Find customers whose address starts with a prefix
+	 * 
+	 * @param prefix the start of the address
+	 * @return the matching Customers, in order of address (an empty list if there are none)
+	 */
+	public List<Customer> findByAddressPrefix(String prefix) {
+		return build(db.findRowsByPrefix(Customer.Builder.class, TABLE, ADDRESS_FIELD, prefix));
+	}
+	
+	private static List<Customer> build(List<Customer.Builder> builders) {
+		return builders.stream().map(Customer.Builder::build).collect(Collectors.toList());
 	}
 	
 	public void putCustomers(List<Customer> customers) {
-		db.writeTable("Customers", customers);
+		db.writeTable(TABLE, customers);
+		cache.clear();
 	}
 	
+	/**
+	 * Create a new Customer. A Customer without an id is assigned the next available one.
+	 * 
+	 * @param customer the data for the new Customer
+	 * @return the Customer as created
+	 * @throws IllegalArgumentException if the Customer's id is already in use
+	 */
 	public Customer createCustomer(Customer.Builder customer) {
 		logger.info("Creating Customer with: {}", customer);
 		if (!customer.id().isPresent()) {
 			customer.id(String.valueOf(db.nextId()));
 			logger.info("Assigned next available id: {}", customer.id().get());
 		}
-		List<Customer> customers = getCustomers();
-		customers.add(customer.build());
-		putCustomers(customers);
-		return customer.build();
+		Customer newCustomer = customer.build();
+		return change(Collections.singleton(newCustomer.id()), () -> {
+			db.insertRow(TABLE, newCustomer);
+			return newCustomer;
+		});
 	}
 	
-	public Customer readCustomer(String id) {
-		logger.info("Reading Customer with id: {}", id);
-		List<Customer> customers = getCustomers();
-		for (Customer p : customers) {
-			if (p.id().equals(id)) {
-				return p;
+	/**
+	 * Create a batch of new Customers with a single write to the database. Customers without an
+	 * id are assigned the next available ones.
+	 * 
+	 * @param customers the data for the new Customers
+	 * @return for each new Customer, the Customer as created, or null if its id was already in use
+	 */
+	public List<Customer> createCustomers(List<Customer.Builder> customers) {
+		logger.info("Creating {} Customers", customers.size());
+		List<Customer> newCustomers = new ArrayList<>(customers.size());
+		for (Customer.Builder customer : customers) {
+			if (!customer.id().isPresent()) {
+				customer.id(String.valueOf(db.nextId()));
 			}
+			newCustomers.add(customer.build());
 		}
-		logger.warn("Cannot locate Customer with id: {}", id);
-		return null;
+		boolean[] inserted = change(newCustomers.stream().map(Customer::id).collect(Collectors.toList()),
+				() -> db.insertRows(TABLE, newCustomers));
+		for (int i = 0; i < inserted.length; i++) {
+			if (!inserted[i]) {
+				logger.warn("Customer id already in use: {}", newCustomers.get(i).id());
+				newCustomers.set(i, null);
+			}
+		}
+		return newCustomers;
 	}
 	
-	public void updateCustomer(Customer customer) {
-		logger.info("Updating Customer: {}", customer);
-		List<Customer> customers = getCustomers();
-		List<Customer> newCustomers = new ArrayList<>();
-		boolean foundCustomer = false;
-		for (Customer p : customers) {
-			if (p.id().equals(customer.id())) {
-				foundCustomer = true;
-				newCustomers.add(customer);
+	public Customer readCustomer(String id) {
+		VersionedRow<Customer> customer = readVersionedCustomer(id);
+		return (customer == null) ? null : customer.row;
+	}
+	
+	/**
+	 * Read many customers at once: those which are cached from the cache, and the rest with a
+	 * single lookup in the database
+	 * 
+	 * @param ids the ids of the Customers
+	 * @return the Customers which exist, in the order of their ids in the request (ids which
+	 *         aren't found are left out)
+	 */
+	public List<Customer> readCustomers(List<String> ids) {
+		logger.info("Reading {} Customers", ids.size());
+		Customer[] found = new Customer[ids.size()];
+		List<String> uncachedIds = new ArrayList<>();
+		List<Integer> uncachedPositions = new ArrayList<>();
+		for (int i = 0; i < found.length; i++) {
+			VersionedRow<Customer> cached = cache.rows.get(ids.get(i));
+			if (cached != null) {
+				found[i] = cached.row;
 			} else {
-				newCustomers.add(p);
+				uncachedIds.add(ids.get(i));
+				uncachedPositions.add(i);
+			}
+		}
+		if (!uncachedIds.isEmpty()) {
+			List<Customer.Builder> read = db.readRows(Customer.Builder.class, TABLE, uncachedIds);
+			for (int i = 0; i < read.size(); i++) {
+				if (read.get(i) != null) {
+					found[uncachedPositions.get(i)] = read.get(i).build();
+				}
 			}
 		}
-		if (foundCustomer) {
-			putCustomers(newCustomers);
-		} else {
+		List<Customer> customers = new ArrayList<>(found.length);
+		for (Customer customer : found) {
+			if (customer != null) {
+				customers.add(customer);
+			}
+		}
+		return customers;
+	}
+	
+	/**
+	 * Read a customer, together with its version. The version changes whenever the Customer
+	 * changes; it can be used as an ETag, and to make conditional updates and deletes.
+	 * <p>
+	 * Customers are read through the cache: one which is in the cache is returned without
+	 * reading the database, and one which isn't is added to the cache.
+	 * 
+	 * @return the Customer and its version, or null if there is no Customer with that id
+	 */
+	public VersionedRow<Customer> readVersionedCustomer(String id) {
+		logger.info("Reading Customer with id: {}", id);
+		VersionedRow<Customer> cached = cache.rows.get(id);
+		if (cached != null) {
+			return cached;
+		}
+		long stamp = cache.stamp(id);
+		VersionedRow<Customer.Builder> customer = db.readVersionedRow(Customer.Builder.class, TABLE, id);
+		if (customer == null) {
+			logger.warn("Cannot locate Customer with id: {}", id);
+			return null;
+		}
+		VersionedRow<Customer> result = new VersionedRow<>(customer.row.build(), customer.version);
+		cache.put(id, result, stamp);
+		return result;
+	}
+	
+	/**
+	 * @return the version of a Customer (see readVersionedCustomer), or null if there is no
+	 *         Customer with that id. This is cheaper than reading the Customer.
+	 */
+	public String getCustomerVersion(String id) {
+		return db.rowVersion(TABLE, id);
+	}
+	
+	/**
+	 * @return the version of the Customers table as a whole, which changes whenever any Customer
+	 *         changes
+	 */
+	public String getCustomersVersion() {
+		return db.tableVersion(TABLE);
+	}
+	
+	public void updateCustomer(Customer customer) {
+		updateCustomer(customer, null);
+	}
+	
+	/**
+	 * Update a Customer, provided that it hasn't changed since the caller read it
+	 * 
+	 * @param customer  the new data for the Customer
+	 * @param ifVersion the version of the Customer (see readVersionedCustomer) which the caller
+	 *                  expects it to have, or null to update it regardless
+	 * @throws IllegalArgumentException if the Customer doesn't exist
+	 * @throws VersionConflictException if the Customer doesn't have the expected version
+	 */
+	public void updateCustomer(Customer customer, String ifVersion) {
+		logger.info("Updating Customer: {}", customer);
+		boolean found = change(Collections.singleton(customer.id()), () -> db.updateRow(TABLE, customer, ifVersion));
+		if (!found) {
 			logger.warn("Cannot locate Customer with id: {}", customer.id());
 			throw new IllegalArgumentException("Could not update passsenger "
 					+ customer.id() + ". Not found in database.");
 		}
 	}
 	
-	public void deleteCustomer(String id) {
-		logger.info("Deleting Customer with id: {}", id);
-		List<Customer> customers = getCustomers();
-		List<Customer> newCustomers = new ArrayList<>();
-		boolean foundCustomer = false;
-		for (Customer p : customers) {
-			if (p.id().equals(id)) {
-				foundCustomer = true;
-			} else {
-				newCustomers.add(p);
+	/**
+	 * Change some of a Customer's data, without having to supply the rest. The change is made
+	 * atomically: no other change to the Customer can happen in the middle of it.
+	 * 
+	 * @param id    the id of the Customer
+	 * @param patch the changes, as a JSON merge patch (RFC 7386), e.g. {"address":"..."}
+	 * @return the Customer after the change, or null if there is no Customer with that id
+	 * @throws IllegalArgumentException if the patch would change the Customer's id, or leave it
+	 *                                  incomplete or invalid
+	 */
+	public Customer patchCustomer(String id, JsonNode patch) {
+		logger.info("Patching Customer with id: {} with: {}", id, patch);
+		Customer[] patched = new Customer[1];
+		boolean found = change(Collections.singleton(id), () -> db.updateRow(JsonNode.class, TABLE, id, row -> {
+			JsonNode node = JsonMergePatch.apply(row, patch);
+			try {
+				patched[0] = mapper.readValue(node, Customer.Builder.class).build();
+			} catch (IOException | IllegalStateException e) {
+				throw new IllegalArgumentException("Invalid patch for Customer " + id + ": " + e.getMessage(), e);
+			}
+			if (!patched[0].id().equals(id)) {
+				throw new IllegalArgumentException("Invalid patch for Customer " + id + ": the id can't be changed");
 			}
+			return mapper.valueToTree(patched[0]);
+		}));
+		if (!found) {
+			logger.warn("Cannot locate Customer with id: {}", id);
+			return null;
+		}
+		return patched[0];
+	}
+	
+	/**
+	 * Update many Customers at once: either all of them are updated, or (if any of them doesn't
+	 * exist) none of them
+	 * 
+	 * @param customers the new data for the Customers
+	 * @throws IllegalArgumentException if any of the Customers doesn't exist
+	 */
+	public void updateCustomers(Collection<Customer> customers) {
+		logger.info("Updating {} Customers", customers.size());
+		List<String> missing = change(customers.stream().map(Customer::id).collect(Collectors.toList()),
+				() -> db.updateRows(TABLE, new ArrayList<>(customers)));
+		if (!missing.isEmpty()) {
+			logger.warn("Cannot locate Customers with ids: {}", missing);
+			throw new IllegalArgumentException("Could not update customers " + missing
+					+ ". Not found in database.");
+		}
+	}
+	
+	/**
+	 * Delete many Customers at once: either all of them are deleted, or (if any of them doesn't
+	 * exist) none of them
+	 * 
+	 * @param ids the ids of the Customers
+	 * @throws IllegalArgumentException if any of the Customers doesn't exist
+	 */
+	public void deleteCustomers(Collection<String> ids) {
+		logger.info("Deleting {} Customers", ids.size());
+		List<String> missing = change(ids, () -> db.deleteRows(TABLE, new ArrayList<>(ids)));
+		if (!missing.isEmpty()) {
+			logger.warn("Cannot locate Customers with ids: {}", missing);
+			throw new IllegalArgumentException("Could not delete customers " + missing
+					+ ". Not found in database.");
 		}
-		if (foundCustomer) {
-			putCustomers(newCustomers);
-		} else {
+	}
+	
+	public void deleteCustomer(String id) {
+		deleteCustomer(id, null);
+	}
+	
+	/**
+	 * Delete a Customer, provided that it hasn't changed since the caller read it
+	 * 
+	 * @param id        the id of the Customer
+	 * @param ifVersion the version of the Customer (see readVersionedCustomer) which the caller
+	 *                  expects it to have, or null to delete it regardless
+	 * @throws IllegalArgumentException if the Customer doesn't exist
+	 * @throws VersionConflictException if the Customer doesn't have the expected version
+	 */
+	public void deleteCustomer(String id, String ifVersion) {
+		logger.info("Deleting Customer with id: {}", id);
+		boolean found = change(Collections.singleton(id), () -> db.deleteRow(TABLE, id, ifVersion));
+		if (!found) {
 			logger.warn("Cannot locate Customer with id: {}", id);
 			throw new IllegalArgumentException("Could not delete passsenger "
 					+ id + ". Not found in database.");
 		}
 	}
+	
+	/**
+	 * Change Customers in the database, keeping them out of the cache while the change is in
+	 * progress: with group commit the changed rows are visible (e.g. to scans) some time before
+	 * the write returns, and meanwhile a read by id mustn't be served an older copy from the
+	 * cache
+	 * 
+	 * @param ids   ids of the Customers being changed
+	 * @param write makes the change
+	 * @return the result of 'write'
+	 */
+	private <R> R change(Collection<String> ids, Supplier<R> write) {
+		cache.beginChange(ids);
+		try {
+			return write.get();
+		} finally {
+			cache.endChange(ids);
+		}
+	}
+	
+	/**
+	 * Customers recently read by id, with their versions. Changes made through a CustomerDb
+	 * invalidate the changed Customers' entries, both before and after the change; changes made
+	 * to the engine's tables by other means aren't seen until the entries are evicted.
+	 */
+	private static class CustomerCache {
+		/** Number of stripes of change stamps (a power of 2) */
+		private static final int STAMP_STRIPES = 4096;
+		
+		final BoundedCache<String, VersionedRow<Customer>> rows = new BoundedCache<>(CACHE_SIZE, row -> 1,
+			CACHE_POLICY);
+		/**
+		 * Number of changes so far to the Customers in each stripe (by hash of id). A Customer
+		 * read from the database while a change to it (or to another Customer in its stripe)
+		 * begins or ends may already be out of date, so it isn't cached; changes to other
+		 * Customers don't stop it being cached.
+		 */
+		private final long[] stamps = new long[STAMP_STRIPES];
+		/** Ids of the Customers being changed, with the number of changes in progress to each */
+		private final Map<String, Integer> changing = new HashMap<>();
+		
+		private static int stripe(String id) {
+			int h = id.hashCode();
+			return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+		}
+		
+		/**
+		 * @return the change stamp of a Customer, to be passed to put after reading it
+		 */
+		synchronized long stamp(String id) {
+			return stamps[stripe(id)];
+		}
+		
+		/**
+		 * Cache a Customer read from the database, unless a change to it has begun or ended
+		 * since the read started, or it is being changed
+		 * 
+		 * @param stamp the stamp(id) before the read
+		 */
+		synchronized void put(String id, VersionedRow<Customer> customer, long stamp) {
+			if (stamp == stamps[stripe(id)] && !changing.containsKey(id)) {
+				rows.put(id, customer);
+			}
+		}
+		
+		/**
+		 * Remove Customers from the cache, and keep them out of it, before they are changed in
+		 * the database
+		 */
+		synchronized void beginChange(Collection<String> ids) {
+			for (String id : ids) {
+				stamps[stripe(id)]++;
+				rows.remove(id);
+				changing.merge(id, 1, Integer::sum);
+			}
+		}
+		
+		/**
+		 * Remove Customers from the cache again, after they have been changed in the database
+		 * (or the change has failed), and let them be cached again
+		 */
+		synchronized void endChange(Collection<String> ids) {
+			for (String id : ids) {
+				stamps[stripe(id)]++;
+				rows.remove(id);
+				changing.computeIfPresent(id, (k, n) -> (n == 1) ? null : n - 1);
+			}
+		}
+		
+		synchronized void clear() {
+			for (int i = 0; i < STAMP_STRIPES; i++) {
+				stamps[i]++;
+			}
+			rows.clear();
+		}
+	}
 }
@@ -33,6 +33,11 @@ public class CustomerService {
 		// Tell the Jersey Servlet to use the POJO mapping feature
 		servletHolder.setInitParameter("com.sun.jersey.api.json.POJOMappingFeature", "true");
 
+		// Let clients which can't send PATCH (e.g. HttpURLConnection) send a POST with an
+		// X-HTTP-Method-Override header instead
+		servletHolder.setInitParameter("com.sun.jersey.spi.container.ContainerRequestFilters",
+				"com.sun.jersey.api.container.filter.PostReplaceFilter");
+
 		return server;
 	}
 
@@ -1,27 +1,63 @@
 package com.joev.banking;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
 
+import com.joev.util.BoundedCache;
+import com.joev.util.VersionConflictException;
+import com.joev.util.VersionedRow;
 import com.sun.jersey.api.NotFoundException;
 
 @Path("/")
@@ -29,6 +65,47 @@ public class CustomerServlet {
 	private static final Logger logger = LogManager.getLogger(CustomerServlet.class);
 	// TODO: Need more logging in this module
 
+	/** Number of customers per page of the customers list, if the request doesn't specify it */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	/** Largest number of customers per page of the customers list */
+	static final int MAX_PAGE_SIZE = 1000;
+	/** Largest number of ids in a request for customers by id */
+	static final int MAX_BATCH_IDS = 10000;
+	/** Number of lines of a bulk create request which are applied together */
+	static final int BULK_BATCH_SIZE = 1000;
+	/** HTTP status 207 MULTI-STATUS (RFC 4918), which Response.Status doesn't have */
+	static final int MULTI_STATUS = 207;
+	/** Media type of newline-delimited JSON: one JSON value per line */
+	public static final String APPLICATION_NDJSON = "application/x-ndjson";
+	/** Media type of a JSON merge patch (RFC 7386) */
+	public static final String APPLICATION_MERGE_PATCH_JSON = "application/merge-patch+json";
+	/** Added to the ETags of text responses, to distinguish them from those of JSON responses */
+	private static final String TEXT_TAG_SUFFIX = "-text";
+	/** An ETag in a list (e.g. If-Match): optionally weak (group 1), quoted (2) or not (3) */
+	private static final Pattern ETAG = Pattern.compile("(W/)?\"([^\"]*)\"|([^,\\s]+)");
+	/** Fields which each line of a bulk create request must have */
+	private static final String[] REQUIRED_FIELDS = { "name", "address" };
+
+	/** System property giving the size (in bytes) of each cache of serialized responses */
+	public static final String RESPONSE_CACHE_PROPERTY = "customer.responseCacheBytes";
+	private static final long RESPONSE_CACHE_BYTES = Long.getLong(RESPONSE_CACHE_PROPERTY, 16 * 1024 * 1024);
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * JSON of recently read Customers, by id. An entry is only used while its version is still the
+	 * Customer's current version, so a change to a Customer by any means makes its entry stale;
+	 * writes through this servlet also remove the entry, to free the space sooner.
+	 */
+	private static final BoundedCache<String, CachedResponse> customerCache = new BoundedCache<>(
+		RESPONSE_CACHE_BYTES, CachedResponse::weight);
+	/**
+	 * JSON of recently read pages of the customers list, by request URI. An entry is only used
+	 * while its version is still the version of the Customers table.
+	 */
+	private static final BoundedCache<String, CachedResponse> pageCache = new BoundedCache<>(
+		RESPONSE_CACHE_BYTES, CachedResponse::weight);
+
 	private CustomerDb customerDb = new CustomerDb();
 
 	@Context
@@ -43,13 +120,22 @@ public class CustomerServlet {
 	 * @param customerBuilder the data for the new Customer
 	 * @return Response with: Status=201 CREATED; Location header containing the URL
 	 *         to the newly-created item; Body containing a message acknowledging
-	 *         successful creation (showing ID of the new item)
+	 *         successful creation (showing ID of the new item). Status=409 CONFLICT if
+	 *         the payload specifies an id which is already in use.
 	 */
 	@POST
 	@Path("customers")
 	@Consumes(MediaType.APPLICATION_JSON)
 	public Response createCustomer(Customer.Builder customerBuilder) {
-		Customer customer = customerDb.createCustomer(customerBuilder);
+		Customer customer;
+		try {
+			customer = customerDb.createCustomer(customerBuilder);
+		} catch (IllegalArgumentException e) {
+			logger.error("createCustomer(): {}", e.getMessage());
+			return Response.status(Status.CONFLICT).type(MediaType.TEXT_PLAIN)
+					.entity("Customer id already in use: " + customerBuilder.id().get()).build();
+		}
+		pageCache.clear();
 		URI uri = uriInfo.getRequestUri();
 		URI newItemUri = UriBuilder.fromUri(uri).path("{id}").build(customer.id());
 		return Response.created(newItemUri).type(MediaType.TEXT_PLAIN)
@@ -57,71 +143,651 @@ public class CustomerServlet {
 	}
 
 	/**
-	 * Get a list of all customers, as text
+	 * Create a batch of new Customers from newline-delimited JSON (one Customer per line, blank
+	 * lines ignored). The lines are read and applied BULK_BATCH_SIZE at a time, each batch with a
+	 * single write to the database, and a result for each line is written to the response as soon
+	 * as its batch has been applied. Memory use doesn't depend on the number of lines.
+	 * <p>
+	 * Each result is a line of JSON giving the line number, a status (201 CREATED, 400 BAD_REQUEST
+	 * if the line isn't a valid Customer, 409 CONFLICT if its id is already in use) and the
+	 * Customer's id or an error message. The last line of the body is a summary, with no line
+	 * number: the status of the whole request, and the numbers of lines read, Customers created and
+	 * lines which failed. A body without the summary was cut short.
+	 * <p>
+	 * The first batch is applied before the response is started, so if the request fits in one
+	 * batch its status says how it went: 200 OK if every line was created, 400 BAD_REQUEST if none
+	 * was because every line was invalid (or there were none), otherwise 207 MULTI-STATUS. A longer
+	 * request is streamed, so its status is 200 OK however the later batches go; only the summary
+	 * (whose status is 500 INTERNAL SERVER ERROR, with an error message, if the database failed
+	 * part way through) tells how it went.
 	 * 
+	 * @param input the new Customers, as NDJSON
+	 * @return Response with: Status=200 OK, 207 MULTI-STATUS or 400 BAD_REQUEST as above; Body
+	 *         containing the per-line results and the summary, as NDJSON
+	 * @throws IOException if the first batch can't be read
+	 */
+	@POST
+	@Path("/customers:bulk")
+	@Consumes({ APPLICATION_NDJSON, MediaType.TEXT_PLAIN })
+	@Produces(APPLICATION_NDJSON)
+	public Response createCustomers(InputStream input) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		BulkBatch batch = new BulkBatch();
+		StringWriter firstResults = new StringWriter();
+		boolean more = batch.read(reader);
+		batch.apply(firstResults);
+		if (!more) {
+			batch.writeSummary(firstResults, batch.status(), null);
+			logger.info("createCustomers(): Created {} Customers from {} lines", batch.nCreated, batch.nLines);
+			return Response.status(batch.status()).entity(firstResults.toString()).build();
+		}
+		StreamingOutput body = os -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+			writer.write(firstResults.toString());
+			int status = Status.OK.getStatusCode();
+			String error = null;
+			try {
+				boolean unread = true;
+				while (unread) {
+					unread = batch.read(reader);
+					batch.apply(writer);
+				}
+				status = batch.status();
+			} catch (IOException | RuntimeException e) {
+				// Too late to change the response's status: the summary has to say it
+				logger.error("createCustomers(): Failed after line {}", batch.lineNo, e);
+				status = Status.INTERNAL_SERVER_ERROR.getStatusCode();
+				error = e.toString();
+			}
+			batch.writeSummary(writer, status, error);
+			writer.flush();
+			logger.info("createCustomers(): Created {} Customers from {} lines", batch.nCreated, batch.nLines);
+		};
+		return Response.ok(body).build();
+	}
+
+	/**
+	 * Lines of a bulk create request, waiting to be applied together, and the counts of the lines
+	 * applied so far
+	 */
+	private class BulkBatch {
+		final List<Integer> lineNos = new ArrayList<>();
+		/** For each line, the data for the new Customer, or null if the line is invalid */
+		final List<Customer.Builder> builders = new ArrayList<>();
+		/** For each invalid line, the reason */
+		final Map<Integer, String> errors = new HashMap<>();
+		/** Number of the last line read, counting blank lines */
+		int lineNo;
+		/** Numbers of non-blank lines applied, of Customers created, and of invalid lines */
+		int nLines, nCreated, nInvalid;
+
+		/**
+		 * Read lines into the batch until it's full or the input ends
+		 * 
+		 * @return whether there might be more lines to read
+		 */
+		boolean read(BufferedReader reader) throws IOException {
+			String line;
+			while (size() < BULK_BATCH_SIZE) {
+				if ((line = reader.readLine()) == null) {
+					return false;
+				}
+				lineNo++;
+				if (!line.trim().isEmpty()) {
+					add(lineNo, line);
+				}
+			}
+			// Look ahead, so that a request of exactly one batch still gets a status of its own
+			reader.mark(1);
+			if (reader.read() < 0) {
+				return false;
+			}
+			reader.reset();
+			return true;
+		}
+
+		void add(int lineNo, String line) {
+			lineNos.add(lineNo);
+			Customer.Builder builder = null;
+			try {
+				JsonNode tree = mapper.readTree(line);
+				// The id is optional (a new one is assigned if it's missing), but nothing else is
+				for (String field : REQUIRED_FIELDS) {
+					if (!tree.path(field).isTextual()) {
+						throw new IllegalArgumentException("Missing required property: " + field);
+					}
+				}
+				builder = mapper.readValue(tree, Customer.Builder.class);
+			} catch (IOException | IllegalArgumentException e) {
+				errors.put(lineNo, e.getMessage());
+			}
+			builders.add(builder);
+		}
+
+		int size() {
+			return lineNos.size();
+		}
+
+		/**
+		 * Create the batch's valid Customers, write the result of each line, and empty the batch
+		 */
+		void apply(Writer writer) throws IOException {
+			if (lineNos.isEmpty()) {
+				return;
+			}
+			List<Customer.Builder> valid = builders.stream().filter(b -> b != null).collect(Collectors.toList());
+			Iterator<Customer> created = customerDb.createCustomers(valid).iterator();
+			pageCache.clear();
+			for (int i = 0; i < lineNos.size(); i++) {
+				ObjectNode result = mapper.createObjectNode();
+				result.put("line", lineNos.get(i));
+				if (builders.get(i) == null) {
+					result.put("status", Status.BAD_REQUEST.getStatusCode());
+					result.put("error", errors.get(lineNos.get(i)));
+					nInvalid++;
+				} else {
+					Customer customer = created.next();
+					if (customer != null) {
+						result.put("status", Status.CREATED.getStatusCode());
+						result.put("id", customer.id());
+						nCreated++;
+					} else {
+						result.put("status", Status.CONFLICT.getStatusCode());
+						result.put("id", builders.get(i).id().get());
+						result.put("error", "Customer id already in use");
+					}
+				}
+				writer.write(mapper.writeValueAsString(result));
+				writer.write('\n');
+			}
+			nLines += lineNos.size();
+			lineNos.clear();
+			builders.clear();
+			errors.clear();
+		}
+
+		/**
+		 * @return status of the whole request, going by the lines applied so far
+		 */
+		int status() {
+			if (nCreated == nLines && nLines > 0) {
+				return Status.OK.getStatusCode();
+			} else if (nInvalid == nLines) {
+				return Status.BAD_REQUEST.getStatusCode();
+			}
+			return MULTI_STATUS;
+		}
+
+		/**
+		 * Write the summary line which ends the response
+		 * 
+		 * @param error why the request failed part way through, or null
+		 */
+		void writeSummary(Writer writer, int status, String error) throws IOException {
+			ObjectNode summary = mapper.createObjectNode();
+			summary.put("status", status);
+			summary.put("lines", nLines);
+			summary.put("created", nCreated);
+			summary.put("failed", nLines - nCreated);
+			if (error != null) {
+				summary.put("error", error);
+			}
+			writer.write(mapper.writeValueAsString(summary));
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * Export all customers as newline-delimited JSON (one Customer per line). The customers are
+	 * streamed straight from the database to the response, so memory use doesn't depend on their
+	 * number.
+	 * 
+	 * @return all Customers, as NDJSON
+	 */
+	@GET
+	@Path("/customers:export")
+	@Produces(APPLICATION_NDJSON)
+	public Response exportCustomers() {
+		StreamingOutput body = os -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+			try (Stream<Customer> customers = customerDb.streamCustomers()) {
+				for (Iterator<Customer> it = customers.iterator(); it.hasNext();) {
+					writer.write(mapper.writeValueAsString(it.next()));
+					writer.write('\n');
+				}
+			}
+			writer.flush();
+		};
+		return Response.ok(body).build();
+	}
+
+	/**
+	 * Get a list of all customers (or those matching the query parameters), as text
+	 * 
+	 * @param name          if specified, only customers with exactly this name
+	 * @param addressPrefix if specified, only customers whose address starts with this
+	 * @param limit         maximum number of customers per page (see getCustomersList)
+	 * @param cursor        position from which to continue (see getCustomersList)
+	 * @param ids           if specified, only the customers with these ids (see getCustomersList)
 	 * @return list of Customers in text form
 	 */
 	@GET
 	@Path("/customers")
 	@Produces({ MediaType.TEXT_HTML, MediaType.TEXT_PLAIN })
-	public String getCustomersListAsText() {
-		return getCustomersList().toString();
+	public Response getCustomersListAsText(@QueryParam("name") String name,
+			@QueryParam("addressPrefix") String addressPrefix, @QueryParam("limit") Integer limit,
+			@QueryParam("cursor") String cursor, @QueryParam("ids") String ids) {
+		return getList(name, addressPrefix, limit, cursor, ids, CustomerServlet::writeText, TEXT_TAG_SUFFIX);
 	}
 
 	/**
-	 * Get a list of all customers, as JSON
+	 * Get a list of all customers (or those matching the query parameters), as JSON.
+	 * <p>
+	 * The response is streamed: customers are written to it one at a time as they are read, so
+	 * neither the list nor its JSON form is ever held in memory as a whole.
+	 * <p>
+	 * If a limit or cursor is specified (and no name or addressPrefix), the list is returned a
+	 * page at a time, in order of id: if there are more customers after the page, the response
+	 * has a 'Link' header with rel="next" giving the URL of the next page. That URL contains an
+	 * opaque 'cursor' parameter, which continues the list after the last customer of the page.
 	 * 
-	 * @return list of Customers in JSON form
+	 * @param name          if specified, only customers with exactly this name
+	 * @param addressPrefix if specified, only customers whose address starts with this
+	 * @param limit         maximum number of customers per page (default DEFAULT_PAGE_SIZE, at
+	 *                      most MAX_PAGE_SIZE)
+	 * @param cursor        if specified, continue the list from this position (taken from the
+	 *                      'next' link of the previous page)
+	 * @param ids           if specified (as a comma-separated list, at most MAX_BATCH_IDS), only
+	 *                      the customers with these ids, in the same order; ids which aren't found
+	 *                      are left out. The other parameters are then ignored.
+	 * @return list of Customers in JSON form; BAD_REQUEST if the limit or cursor is invalid
 	 */
 	@GET
 	@Path("/customers")
 	@Produces(MediaType.APPLICATION_JSON)
-	public List<Customer> getCustomersList() {
-		List<Customer> data = customerDb.getCustomers();
-		return data;
+	public Response getCustomersList(@QueryParam("name") String name,
+			@QueryParam("addressPrefix") String addressPrefix, @QueryParam("limit") Integer limit,
+			@QueryParam("cursor") String cursor, @QueryParam("ids") String ids) {
+		if (ids == null && name == null && addressPrefix == null && (limit != null || cursor != null)) {
+			return getCachedPage(limit, cursor);
+		}
+		return getList(name, addressPrefix, limit, cursor, ids, CustomerServlet::writeJson, "");
+	}
+
+	/**
+	 * Get a page of the customers list as JSON, like getList, but from the cache of serialized
+	 * pages if possible
+	 */
+	private Response getCachedPage(Integer limit, String cursor) {
+		String version = customerDb.getCustomersVersion();
+		EntityTag tag = entityTag(version, "");
+		ResponseBuilder notModified = request.evaluatePreconditions(tag);
+		if (notModified != null) {
+			return notModified.tag(tag).build();
+		}
+		String key = uriInfo.getRequestUri().toString();
+		CachedResponse cached = pageCache.get(key);
+		if (cached == null || !cached.version.equals(version)) {
+			Page page = getPage(null, null, limit, cursor, null);
+			try (Stream<Customer> customers = page.data) {
+				cached = new CachedResponse(version, toJson(customers.collect(Collectors.toList())), page.next);
+			}
+			pageCache.put(key, cached);
+		}
+		return cached.response(tag);
+	}
+
+	/**
+	 * Get a list of customers (see getCustomersList), or NOT_MODIFIED if the request's
+	 * If-None-Match has the current ETag. The ETag is that of the whole Customers table: any
+	 * change to a Customer changes the ETag of every list.
+	 * 
+	 * @param writer    writes the list in the response's media type
+	 * @param tagSuffix distinguishes the ETag of this media type from the others'
+	 */
+	private Response getList(String name, String addressPrefix, Integer limit, String cursor, String ids,
+			ListWriter writer, String tagSuffix) {
+		// Take the version before reading the list: if the list changes in between, the ETag is
+		// out of date (costing a needless download later), rather than matching the wrong list
+		EntityTag tag = entityTag(customerDb.getCustomersVersion(), tagSuffix);
+		ResponseBuilder notModified = request.evaluatePreconditions(tag);
+		if (notModified != null) {
+			return notModified.tag(tag).build();
+		}
+		return getPage(name, addressPrefix, limit, cursor, ids).response(writer, tag);
+	}
+
+	private Page getPage(String name, String addressPrefix, Integer limit, String cursor, String ids) {
+		if (ids != null) {
+			return new Page(readCustomers(Arrays.asList(ids.split(","))).stream(), null);
+		} else if (name != null) {
+			Stream<Customer> data = customerDb.findByName(name).stream();
+			if (addressPrefix != null) {
+				data = data.filter(c -> c.address().startsWith(addressPrefix));
+			}
+			return new Page(data, null);
+		} else if (addressPrefix != null) {
+			return new Page(customerDb.findByAddressPrefix(addressPrefix).stream(), null);
+		} else if (limit == null && cursor == null) {
+			// The whole list, straight from the database
+			return new Page(customerDb.streamCustomers(), null);
+		}
+		int pageSize = (limit == null) ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+		if (pageSize <= 0) {
+			throw badRequest("Invalid limit: " + limit);
+		}
+		// Fetch one extra customer to find out whether there is a next page
+		List<Customer> data = customerDb.getCustomersPage(decodeCursor(cursor), pageSize + 1);
+		URI next = null;
+		if (data.size() > pageSize) {
+			data = data.subList(0, pageSize);
+			next = uriInfo.getRequestUriBuilder()
+					.replaceQueryParam("cursor", encodeCursor(data.get(pageSize - 1).id()))
+					.replaceQueryParam("limit", pageSize).build();
+		}
+		return new Page(data.stream(), next);
+	}
+
+	/**
+	 * Get many customers by id at once. This is the same as GET /customers?ids=..., for sets of
+	 * ids too large to fit in a URL.
+	 * 
+	 * @param ids the ids of the customers (at most MAX_BATCH_IDS)
+	 * @return list of Customers in JSON form, in the order of their ids (ids which aren't found
+	 *         are left out); BAD_REQUEST if there are too many ids
+	 */
+	@POST
+	@Path("/customers:batchGet")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getCustomersById(List<String> ids) {
+		return new Page(readCustomers(ids).stream(), null).response(CustomerServlet::writeJson, null);
+	}
+
+	private List<Customer> readCustomers(List<String> ids) {
+		if (ids.size() > MAX_BATCH_IDS) {
+			throw badRequest("Too many ids: " + ids.size() + " (at most " + MAX_BATCH_IDS + ")");
+		}
+		return customerDb.readCustomers(ids);
+	}
+
+	/**
+	 * Write customers as a JSON array, one at a time
+	 */
+	private static void writeJson(Stream<Customer> customers, OutputStream os) throws IOException {
+		JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+		gen.writeStartArray();
+		for (Iterator<Customer> it = customers.iterator(); it.hasNext();) {
+			gen.writeObject(it.next());
+		}
+		gen.writeEndArray();
+		gen.flush();
+	}
+
+	/**
+	 * Write customers as text, one at a time, in the same form as List.toString()
+	 */
+	private static void writeText(Stream<Customer> customers, OutputStream os) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+		writer.write('[');
+		String separator = "";
+		for (Iterator<Customer> it = customers.iterator(); it.hasNext();) {
+			writer.write(separator);
+			writer.write(it.next().toString());
+			separator = ", ";
+		}
+		writer.write(']');
+		writer.flush();
+	}
+
+	/**
+	 * @return the cursor which continues a list after the Customer with the specified id
+	 */
+	static String encodeCursor(String lastId) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(lastId.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the id of the last Customer before a cursor's position, or null (start of the list)
+	 *         if the cursor is null
+	 */
+	static String decodeCursor(String cursor) {
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw badRequest("Invalid cursor: " + cursor);
+		}
+	}
+
+	private static WebApplicationException badRequest(String errMsg) {
+		logger.error("Bad request: {}", errMsg);
+		return new WebApplicationException(Response.status(Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN)
+				.entity(errMsg).build());
+	}
+
+	/**
+	 * A page of a customers list (or the whole list), and the URL of the next page (null if this
+	 * is the last)
+	 */
+	private static class Page {
+		final Stream<Customer> data;
+		final URI next;
+
+		Page(Stream<Customer> data, URI next) {
+			this.data = data;
+			this.next = next;
+		}
+
+		/**
+		 * @param writer writes the customers to the response body, in the response's media type
+		 * @param tag    the response's ETag (may be null)
+		 * @return response which streams the customers. Having no length, it is sent with chunked
+		 *         transfer encoding.
+		 */
+		Response response(ListWriter writer, EntityTag tag) {
+			StreamingOutput body = os -> {
+				try (Stream<Customer> customers = data) {
+					writer.write(customers, os);
+				}
+			};
+			ResponseBuilder response = Response.ok(body).tag(tag);
+			if (next != null) {
+				response.header("Link", "<" + next + ">; rel=\"next\"");
+			}
+			return response.build();
+		}
+	}
+
+	/** Writes a stream of customers to a response body */
+	@FunctionalInterface
+	private interface ListWriter {
+		void write(Stream<Customer> customers, OutputStream os) throws IOException;
 	}
 
 	/**
 	 * Get details for a specific customer, as text
 	 * 
 	 * @return data for the requested customer (as text), or NOT_FOUND if there is
-	 *         no such customer
+	 *         no such customer, or NOT_MODIFIED (see getCustomer)
 	 */
 	@GET
 	@Path("/customers/{id}")
 	@Produces({ MediaType.TEXT_HTML, MediaType.TEXT_PLAIN })
-	public String getCustomerAsText(@PathParam("id") String id) {
-		return getCustomer(id).toString();
+	public Response getCustomerAsText(@PathParam("id") String id) {
+		return getCustomer(id, Customer::toString, TEXT_TAG_SUFFIX);
 	}
 
 	/**
-	 * Get details for a specific customer, as JSON
+	 * Get details for a specific customer, as JSON. The response has an ETag which changes
+	 * whenever the customer does; it can be used in the If-None-Match header of a later GET (to
+	 * get NOT_MODIFIED instead of the same data again) or in the If-Match header of a PUT or
+	 * DELETE (to make sure nobody else has changed the customer in the meantime).
 	 * 
 	 * @return data for the requested customer (as JSON), or NOT_FOUND if there is
-	 *         no such customer
+	 *         no such customer, or NOT_MODIFIED if the request's If-None-Match has the
+	 *         current ETag
 	 */
 	@GET
 	@Path("/customers/{id}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Customer getCustomer(@PathParam("id") String id) {
-		Customer p = customerDb.readCustomer(id);
-		if (p == null) {
+	public Response getCustomer(@PathParam("id") String id) {
+		String version = customerDb.getCustomerVersion(id);
+		if (version == null) {
+			throw new NotFoundException("Customer '" + id + "' not found!");
+		}
+		EntityTag tag = entityTag(version, "");
+		ResponseBuilder notModified = request.evaluatePreconditions(tag);
+		if (notModified != null) {
+			return notModified.tag(tag).build();
+		}
+		CachedResponse cached = customerCache.get(id);
+		if (cached == null || !cached.version.equals(version)) {
+			VersionedRow<Customer> customer = customerDb.readVersionedCustomer(id);
+			if (customer == null) {
+				// Deleted since its version was read
+				throw new NotFoundException("Customer '" + id + "' not found!");
+			}
+			cached = new CachedResponse(customer.version, toJson(customer.row), null);
+			customerCache.put(id, cached);
+		}
+		return cached.response(entityTag(cached.version, ""));
+	}
+
+	/**
+	 * @return the JSON of a Customer or list of Customers, as it would be written to a response
+	 */
+	private static byte[] toJson(Object value) {
+		try {
+			return mapper.writeValueAsBytes(value);
+		} catch (IOException e) {
+			throw new WebApplicationException(e);
+		}
+	}
+
+	/**
+	 * A serialized JSON response body, the version of the data it was serialized from, and the URL
+	 * of the next page (for a page of the customers list which isn't the last)
+	 */
+	private static class CachedResponse {
+		final String version;
+		final byte[] body;
+		final URI next;
+
+		CachedResponse(String version, byte[] body, URI next) {
+			this.version = version;
+			this.body = body;
+			this.next = next;
+		}
+
+		/** @return approximate number of bytes used by this response */
+		long weight() {
+			return body.length + version.length() * 2 + (next == null ? 0 : next.toString().length() * 2) + 64;
+		}
+
+		/** @return response which writes the serialized body as it is */
+		Response response(EntityTag tag) {
+			ResponseBuilder response = Response.ok(body, MediaType.APPLICATION_JSON_TYPE).tag(tag);
+			if (next != null) {
+				response.header("Link", "<" + next + ">; rel=\"next\"");
+			}
+			return response.build();
+		}
+	}
+
+	/**
+	 * Remove Customers' serialized JSON from the caches, after they have been changed
+	 */
+	private static void invalidate(Iterable<String> ids) {
+		for (String id : ids) {
+			customerCache.remove(id);
+		}
+		pageCache.clear();
+	}
+
+	private Response getCustomer(String id, Function<Customer, Object> entity, String tagSuffix) {
+		VersionedRow<Customer> customer = customerDb.readVersionedCustomer(id);
+		if (customer == null) {
 			throw new NotFoundException("Customer '" + id + "' not found!");
 		}
-		return p;
+		EntityTag tag = entityTag(customer.version, tagSuffix);
+		ResponseBuilder notModified = request.evaluatePreconditions(tag);
+		if (notModified != null) {
+			return notModified.tag(tag).build();
+		}
+		return Response.ok(entity.apply(customer.row)).tag(tag).build();
+	}
+
+	/**
+	 * @param version   a version from the database
+	 * @param tagSuffix distinguishes the ETags of the different media types of the same data
+	 * @return a strong ETag for the data with that version
+	 */
+	private static EntityTag entityTag(String version, String tagSuffix) {
+		return new EntityTag(version + tagSuffix);
+	}
+
+	/**
+	 * Get the version which a request's If-Match header requires a Customer to have. The header
+	 * may list several ETags (RFC 7232), any of which may match; if one of them is the Customer's
+	 * current version, that is the one required, so that the change still fails if the Customer
+	 * changes before it is made. Weak ETags never match.
+	 * 
+	 * @param id      the id of the Customer
+	 * @param ifMatch the If-Match header: a list of ETags (of any media type), or "*"
+	 * @return the version, or null if there is no requirement (beyond the data existing)
+	 */
+	private String ifMatchVersion(String id, String ifMatch) {
+		if (ifMatch == null || ifMatch.trim().equals("*")) {
+			return null;
+		}
+		List<String> versions = new ArrayList<>();
+		Matcher m = ETAG.matcher(ifMatch);
+		while (m.find()) {
+			if (m.group(1) != null) {
+				// A weak ETag
+				continue;
+			}
+			String tag = (m.group(2) != null) ? m.group(2) : m.group(3);
+			versions.add(tag.endsWith(TEXT_TAG_SUFFIX) ? tag.substring(0, tag.length() - TEXT_TAG_SUFFIX.length()) : tag);
+		}
+		if (versions.size() == 1) {
+			return versions.get(0);
+		}
+		String current = customerDb.getCustomerVersion(id);
+		if (current != null && versions.contains(current)) {
+			return current;
+		}
+		// None matches: let the change fail with the current version (or as not found)
+		return versions.isEmpty() ? "" : versions.get(0);
+	}
+
+	/**
+	 * @return the exception reporting that a conditional change failed, with the current ETag
+	 */
+	private static WebApplicationException preconditionFailed(VersionConflictException e) {
+		logger.warn("Precondition failed: {}", e.getMessage());
+		return new WebApplicationException(Response.status(Status.PRECONDITION_FAILED)
+				.tag(entityTag(e.getCurrentVersion(), "")).type(MediaType.TEXT_PLAIN).entity(e.getMessage()).build());
 	}
 
 	/**
 	 * Update an existing Customer using the data provided in the payload
 	 * 
+	 * @param ifMatch         if specified, the ETag which the Customer must still have (see
+	 *                        getCustomer), i.e. it mustn't have changed since the caller read it
 	 * @param customerBuilder the data for the new Customer
 	 * @return Response with: Status=200 OK; Body containing a message acknowledging
-	 *         successful update of the item
+	 *         successful update of the item. Status=412 PRECONDITION_FAILED if the
+	 *         Customer's ETag doesn't match If-Match.
 	 */
 	@PUT
 	@Path("/customers/{id}")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response updateCustomer(@PathParam("id") String id, Customer.Builder customerBuilder) {
+	public Response updateCustomer(@PathParam("id") String id, @HeaderParam("If-Match") String ifMatch,
+			Customer.Builder customerBuilder) {
 		if (!customerBuilder.id().isPresent()) {
 			// Customer id wasn't specified in the payload; get it from the URL and plug it in
 			customerBuilder.id(id);
@@ -138,28 +804,118 @@ public class CustomerServlet {
 		}
 		Customer customer = customerBuilder.build();
 		try {
-			customerDb.updateCustomer(customer);
+			customerDb.updateCustomer(customer, ifMatchVersion(id, ifMatch));
+			invalidate(Collections.singleton(id));
 			return Response.ok().build();
+		} catch (VersionConflictException e) {
+			throw preconditionFailed(e);
 		} catch (IllegalArgumentException e) {
 			throw new NotFoundException("Customer '" + id + "' not found!");
 		}
 	}
 
+	/**
+	 * Change some of an existing Customer's data, using the JSON merge patch (RFC 7386) provided
+	 * in the payload, e.g. {"address":"..."} to change just the address
+	 * 
+	 * @param id    of Customer to be changed
+	 * @param patch the changes
+	 * @return Response with: Status=200 OK; Body containing the Customer after the change.
+	 *         Status=400 BAD_REQUEST if the patch would change the id or leave the Customer
+	 *         invalid; Status=404 NOT_FOUND if there is no such customer.
+	 */
+	@PATCH
+	@Path("/customers/{id}")
+	@Consumes({ APPLICATION_MERGE_PATCH_JSON, MediaType.APPLICATION_JSON })
+	@Produces(MediaType.APPLICATION_JSON)
+	public Customer patchCustomer(@PathParam("id") String id, JsonNode patch) {
+		Customer customer;
+		try {
+			customer = customerDb.patchCustomer(id, patch);
+		} catch (IllegalArgumentException e) {
+			throw badRequest(e.getMessage());
+		}
+		if (customer == null) {
+			throw new NotFoundException("Customer '" + id + "' not found!");
+		}
+		invalidate(Collections.singleton(id));
+		return customer;
+	}
+
+	/**
+	 * Update many existing Customers at once, using the data provided in the payload. Either all
+	 * of them are updated, or none of them.
+	 * 
+	 * @param customerBuilders the new data for the Customers; each must include its id
+	 * @return Status=200 OK if successful; Status=400 BAD_REQUEST if an item has no id or is
+	 *         incomplete; Status=404 NOT_FOUND if any of the Customers doesn't exist, in which case
+	 *         nothing is changed. Body will contain success/failure message as text.
+	 */
+	@POST
+	@Path("/customers:batchUpdate")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response updateCustomers(List<Customer.Builder> customerBuilders) {
+		List<Customer> customers = new ArrayList<>(customerBuilders.size());
+		for (Customer.Builder customerBuilder : customerBuilders) {
+			try {
+				customers.add(customerBuilder.build());
+			} catch (IllegalStateException e) {
+				throw badRequest("Unable to update Customers: " + e.getMessage());
+			}
+		}
+		try {
+			customerDb.updateCustomers(customers);
+			invalidate(customers.stream().map(Customer::id).collect(Collectors.toList()));
+			return Response.ok().type(MediaType.TEXT_PLAIN).entity(customers.size() + " Customers updated")
+				.build();
+		} catch (IllegalArgumentException e) {
+			throw new NotFoundException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Delete many existing Customers at once. Either all of them are deleted, or none of them.
+	 * 
+	 * @param ids of Customers to be deleted
+	 * @return Status=200 OK if successful; Status=404 NOT_FOUND if any of the Customers doesn't
+	 *         exist, in which case nothing is deleted. Body will contain success/failure message as
+	 *         text.
+	 */
+	@POST
+	@Path("/customers:batchDelete")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response deleteCustomers(List<String> ids) {
+		try {
+			customerDb.deleteCustomers(ids);
+			invalidate(ids);
+			return Response.ok().type(MediaType.TEXT_PLAIN).entity(ids.size() + " Customers deleted")
+				.build();
+		} catch (IllegalArgumentException e) {
+			throw new NotFoundException(e.getMessage());
+		}
+	}
+
 	/**
 	 * Delete an existing Customer
 	 * 
-	 * @param id of Customer to be deleted
+	 * @param id      of Customer to be deleted
+	 * @param ifMatch if specified, the ETag which the Customer must still have (see
+	 *                getCustomer)
 	 * @return Status=200 OK if successful; Status=404 NOT_FOUND if no Customer
-	 *         with that ID was found. Body will contain success/failure message as
-	 *         text.
+	 *         with that ID was found; Status=412 PRECONDITION_FAILED if the
+	 *         Customer's ETag doesn't match If-Match. Body will contain
+	 *         success/failure message as text.
 	 */
 	@DELETE
 	@Path("/customers/{id}")
-	public Response deleteCustomer(@PathParam("id") String id) {
+	public Response deleteCustomer(@PathParam("id") String id, @HeaderParam("If-Match") String ifMatch) {
 		try {
-			customerDb.deleteCustomer(id);
+			customerDb.deleteCustomer(id, ifMatchVersion(id, ifMatch));
+			invalidate(Collections.singleton(id));
 			return Response.ok().type(MediaType.TEXT_PLAIN).entity("Customer '" + id + "' deleted")
 				.build();
+		} catch (VersionConflictException e) {
+			throw preconditionFailed(e);
 		} catch (IllegalArgumentException e) {
 			throw new NotFoundException("Customer '" + id + "' not found!");
 		}
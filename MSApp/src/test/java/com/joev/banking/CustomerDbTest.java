@@ -4,11 +4,19 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -17,7 +25,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
 
+import com.joev.util.InMemoryDb;
 import com.joev.util.SimpleJsonDb;
+import com.joev.util.StorageEngine;
+import com.joev.util.VersionConflictException;
+import com.joev.util.VersionedRow;
 
 public class CustomerDbTest {
 	private static final Logger logger = LogManager.getLogger(CustomerDbTest.class);
@@ -85,6 +97,20 @@ public class CustomerDbTest {
 		assertThat(afterData).contains(newP);
 	}
 	
+	/** Test creating a batch of new Customers */
+	@Test
+	public void testCreateCustomers() {
+		List<Customer> created = db.createCustomers(Arrays.asList(
+			Customer.builder().name("New Person 1").address("1 New Street"),
+			Customer.builder().id("100").name("Duplicate Id").address("2 New Street"),
+			Customer.builder().name("New Person 2").address("3 New Street")));
+		showData("CREATED", created);
+		assertThat(created).hasSize(3);
+		assertWithMessage("Customer with id in use").that(created.get(1)).isNull();
+		assertWithMessage("Read back new Customer").that(db.readCustomer(created.get(2).id())).isEqualTo(created.get(2));
+		assertThat(db.getCustomers()).hasSize(EXPECTED_NROWS + 2);
+	}
+	
 	/** Test reading a specific customer's information */
 	@Test
 	public void testReadCustomer() {
@@ -96,6 +122,17 @@ public class CustomerDbTest {
 		assertThat(p.id()).isEqualTo(TEST_ID);
 	}
 	
+	/** Test reading many customers' information at once */
+	@Test
+	public void testReadCustomers() {
+		List<Customer> found = db.readCustomers(Arrays.asList("103", "999", "101"));
+		showData("FOUND", found);
+		assertWithMessage("Customers found, in order requested").that(found).containsExactly(
+			db.readCustomer("103"), db.readCustomer("101")).inOrder();
+		// The sample customers share an address, which is held only once
+		assertWithMessage("Shared address").that(found.get(1).address()).isSameInstanceAs(found.get(0).address());
+	}
+	
 	/** Test reading a nonexistent customer's information. */
 	@Test
 	public void testReadCustomer_BadId() {
@@ -128,6 +165,175 @@ public class CustomerDbTest {
 		assertWithMessage("'address' field").that(actualP.address()).isEqualTo(origP.address());
 	}
 	
+	/** Test changing part of a Customer's data */
+	@Test
+	public void testPatchCustomer() throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		Customer before = db.readCustomer("101");
+		Customer patched = db.patchCustomer("101", mapper.readTree("{\"address\":\"1 New Address\"}"));
+		assertWithMessage("Patched address").that(patched.address()).isEqualTo("1 New Address");
+		assertWithMessage("Unpatched name").that(patched.name()).isEqualTo(before.name());
+		assertWithMessage("Read back").that(db.readCustomer("101")).isEqualTo(patched);
+		assertWithMessage("Patch of nonexistent Customer")
+			.that(db.patchCustomer("999", mapper.readTree("{\"name\":\"X\"}"))).isNull();
+		for (String badPatch : new String[] { "{\"id\":\"999\"}", "{\"name\":null}", "{\"extra\":1}" }) {
+			try {
+				db.patchCustomer("101", mapper.readTree(badPatch));
+				fail("Expected IllegalArgumentException for patch " + badPatch);
+			} catch (IllegalArgumentException e) {
+				logger.info("Expected exception: {}", e.getMessage());
+			}
+		}
+		assertWithMessage("After bad patches").that(db.readCustomer("101")).isEqualTo(patched);
+	}
+	
+	/** Test that repeated reads of a Customer come from the cache, and that changes invalidate it */
+	@Test
+	public void testCache() {
+		Customer first = db.readCustomer("102");
+		long hits = db.getCacheStats().get("hits");
+		assertWithMessage("Cached Customer").that(db.readCustomer("102")).isSameInstanceAs(first);
+		assertWithMessage("Cache hits").that(db.getCacheStats().get("hits")).isEqualTo(hits + 1);
+		Customer updated = Customer.builder().id("102").name("Renamed").address(first.address()).build();
+		db.updateCustomer(updated);
+		assertWithMessage("Customer after update").that(db.readCustomer("102")).isEqualTo(updated);
+		assertWithMessage("Customers after update").that(db.readCustomers(Arrays.asList("102", "103")))
+			.contains(updated);
+		db.deleteCustomer("102");
+		assertWithMessage("Customer after delete").that(db.readCustomer("102")).isNull();
+		logger.info("Cache stats: {}", db.getCacheStats());
+	}
+	
+	/**
+	 * Test that a Customer isn't served from the cache while it is being changed: the engine
+	 * applies the change (making it visible, e.g. to scans) and then waits, as it does for a group
+	 * commit, before the update returns
+	 */
+	@Test
+	public void testCache_DuringUpdate() throws Exception {
+		InMemoryDb memDb = new InMemoryDb(CustomerDb.DB);
+		CountDownLatch applied = new CountDownLatch(1);
+		CountDownLatch committed = new CountDownLatch(1);
+		StorageEngine engine = (StorageEngine) Proxy.newProxyInstance(StorageEngine.class.getClassLoader(),
+			new Class<?>[] { StorageEngine.class }, (proxy, method, args) -> {
+				Object result = method.invoke(memDb, args);
+				if (method.getName().equals("updateRow")) {
+					applied.countDown();
+					committed.await();
+				}
+				return result;
+			});
+		CustomerDb cachingDb = new CustomerDb(engine);
+		cachingDb.initTables();
+		try {
+			Customer first = cachingDb.readCustomer("102");
+			Customer updated = Customer.builder().id("102").name("Renamed").address(first.address()).build();
+			Thread writer = new Thread(() -> cachingDb.updateCustomer(updated));
+			writer.start();
+			applied.await();
+			assertWithMessage("Customer in a scan").that(cachingDb.getCustomers()).contains(updated);
+			assertWithMessage("Customer read by id").that(cachingDb.readCustomer("102")).isEqualTo(updated);
+			committed.countDown();
+			writer.join();
+			assertWithMessage("Customer after update").that(cachingDb.readCustomer("102")).isEqualTo(updated);
+		} finally {
+			committed.countDown();
+			cachingDb.rmTables();
+		}
+	}
+	
+	/**
+	 * Test that a Customer read while other Customers are changed is still cached, but not one read
+	 * while it is itself changed
+	 */
+	@Test
+	public void testCache_ConcurrentChanges() throws Exception {
+		InMemoryDb memDb = new InMemoryDb(CustomerDb.DB);
+		AtomicReference<CountDownLatch[]> held = new AtomicReference<>();
+		StorageEngine engine = (StorageEngine) Proxy.newProxyInstance(StorageEngine.class.getClassLoader(),
+			new Class<?>[] { StorageEngine.class }, (proxy, method, args) -> {
+				Object result = method.invoke(memDb, args);
+				CountDownLatch[] latches = method.getName().equals("readVersionedRow") ? held.getAndSet(null) : null;
+				if (latches != null) {
+					latches[0].countDown();
+					latches[1].await();
+				}
+				return result;
+			});
+		CustomerDb cachingDb = new CustomerDb(engine);
+		cachingDb.initTables();
+		try {
+			Customer other = cachingDb.readCustomer("103");
+			readDuring(cachingDb, "102", held, () -> {
+				for (int i = 0; i < 10; i++) {
+					cachingDb.updateCustomer(Customer.builder().id("103").name("Renamed " + i)
+						.address(other.address()).build());
+				}
+			});
+			long hits = cachingDb.getCacheStats().get("hits");
+			cachingDb.readCustomer("102");
+			assertWithMessage("Cache hits after reading a Customer read during changes to another")
+				.that(cachingDb.getCacheStats().get("hits")).isEqualTo(hits + 1);
+
+			Customer updated = Customer.builder().id("101").name("Renamed").address(other.address()).build();
+			readDuring(cachingDb, "101", held, () -> cachingDb.updateCustomer(updated));
+			assertWithMessage("Customer after update").that(cachingDb.readCustomer("101")).isEqualTo(updated);
+		} finally {
+			cachingDb.rmTables();
+		}
+	}
+	
+	/**
+	 * Read a Customer in another thread, holding up the read in the database engine until a change
+	 * has been made
+	 */
+	private static void readDuring(CustomerDb db, String id, AtomicReference<CountDownLatch[]> held,
+			Runnable change) throws InterruptedException {
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch changed = new CountDownLatch(1);
+		held.set(new CountDownLatch[] { reading, changed });
+		Thread reader = new Thread(() -> db.readCustomer(id));
+		reader.start();
+		reading.await();
+		try {
+			change.run();
+		} finally {
+			changed.countDown();
+			reader.join();
+		}
+	}
+	
+	/** Test updating and deleting a Customer only if it hasn't changed since it was read */
+	@Test
+	public void testConditionalUpdate() {
+		String tableVersion = db.getCustomersVersion();
+		VersionedRow<Customer> before = db.readVersionedCustomer("101");
+		Customer updated = Customer.builder().id("101").name("Renamed").address(before.row.address()).build();
+		assertWithMessage("Customer version").that(db.getCustomerVersion("101")).isEqualTo(before.version);
+		db.updateCustomer(updated, before.version);
+		assertWithMessage("Customer version after update").that(db.getCustomerVersion("101"))
+				.isNotEqualTo(before.version);
+		assertWithMessage("Updated Customer").that(db.readCustomer("101")).isEqualTo(updated);
+		assertWithMessage("Table version").that(db.getCustomersVersion()).isNotEqualTo(tableVersion);
+		try {
+			// Another client's update, based on the data before the first update
+			db.updateCustomer(before.row, before.version);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			logger.info("Expected exception: {}", e.getMessage());
+		}
+		try {
+			db.deleteCustomer("101", before.version);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			logger.info("Expected exception: {}", e.getMessage());
+		}
+		assertWithMessage("Customer after conflicts").that(db.readCustomer("101")).isEqualTo(updated);
+		db.deleteCustomer("101", db.readVersionedCustomer("101").version);
+		assertWithMessage("Deleted Customer").that(db.readVersionedCustomer("101")).isNull();
+		assertWithMessage("Version of deleted Customer").that(db.getCustomerVersion("101")).isNull();
+	}
+	
 	/** Test updating a nonexistent Customer */
 	@Test
 	public void testUpdateCustomer_BadId() {
@@ -194,6 +400,141 @@ public class CustomerDbTest {
 			.isEqualTo(beforeData.size());
 	}
 	
+	/** Test updating and deleting many Customers at once */
+	@Test
+	public void testBatchUpdateDelete() {
+		List<Customer> beforeData = db.getCustomers();
+		Customer updated0 = Customer.builder().id(beforeData.get(0).id()).name("Renamed 0")
+			.address(beforeData.get(0).address()).build();
+		Customer missing = Customer.builder().id("999").name("Missing").address("Nowhere").build();
+		try {
+			db.updateCustomers(Arrays.asList(updated0, missing));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			logger.info("Expected exception: {}", e.getMessage());
+		}
+		assertWithMessage("Customers after failed update").that(db.getCustomers()).isEqualTo(beforeData);
+		try {
+			db.deleteCustomers(Arrays.asList(beforeData.get(1).id(), "999"));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			logger.info("Expected exception: {}", e.getMessage());
+		}
+		assertWithMessage("Customers after failed delete").that(db.getCustomers()).isEqualTo(beforeData);
+
+		db.updateCustomers(Arrays.asList(updated0));
+		assertWithMessage("Updated Customer").that(db.readCustomer(updated0.id())).isEqualTo(updated0);
+		db.deleteCustomers(Arrays.asList(beforeData.get(1).id(), beforeData.get(2).id()));
+		assertThat(db.getCustomers()).hasSize(EXPECTED_NROWS - 2);
+	}
+	
+	/** Test finding customers by name */
+	@Test
+	public void testFindByName() {
+		List<Customer> found = db.findByName("Mila Veilleux");
+		showData("FOUND", found);
+		assertThat(found).hasSize(1);
+		assertWithMessage("'id' field").that(found.get(0).id()).isEqualTo("101");
+		assertWithMessage("Partial name").that(db.findByName("Mila")).isEmpty();
+
+		// A newly-created customer can be found straight away
+		Customer newP = db.createCustomer(Customer.builder().name("Mila Veilleux").address("1 Other Road"));
+		assertThat(db.findByName("Mila Veilleux")).hasSize(2);
+		db.deleteCustomer(newP.id());
+		assertThat(db.findByName("Mila Veilleux")).hasSize(1);
+	}
+	
+	/** Test finding customers by the start of their address */
+	@Test
+	public void testFindByAddressPrefix() {
+		Customer newP = db.createCustomer(Customer.builder().name("New Person").address("1 Other Road"));
+		List<Customer> found = db.findByAddressPrefix("1");
+		showData("FOUND", found);
+		assertWithMessage("Customers found, in order of address").that(found.get(0)).isEqualTo(newP);
+		assertThat(found).hasSize(EXPECTED_NROWS + 1);
+		assertThat(db.findByAddressPrefix("148 PotOGold")).hasSize(EXPECTED_NROWS);
+		assertThat(db.findByAddressPrefix("999")).isEmpty();
+	}
+	
+	/** Test getting the Customers list a page at a time */
+	@Test
+	public void testGetCustomersPage() {
+		List<Customer> page1 = db.getCustomersPage(null, 3);
+		showData("PAGE 1", page1);
+		assertThat(page1).hasSize(3);
+		assertWithMessage("First id").that(page1.get(0).id()).isEqualTo("100");
+		List<Customer> page2 = db.getCustomersPage(page1.get(2).id(), 3);
+		showData("PAGE 2", page2);
+		assertThat(page2).hasSize(EXPECTED_NROWS - 3);
+		assertWithMessage("Past the end").that(db.getCustomersPage(page2.get(page2.size() - 1).id(), 3)).isEmpty();
+	}
+
+	/** Test the same operations against the in-memory storage engine */
+	@Test
+	public void testInMemoryEngine() throws IOException {
+		CustomerDb memDb = new CustomerDb(new InMemoryDb(CustomerDb.DB));
+		memDb.initTables();
+		assertThat(memDb.getCustomers().size()).isEqualTo(EXPECTED_NROWS);
+		Customer newP = memDb.createCustomer(Customer.builder().name("New Person").address("123 Sesame Street"));
+		assertWithMessage("Created Customer").that(memDb.readCustomer(newP.id())).isEqualTo(newP);
+		Customer updatedP = Customer.builder().id(newP.id()).name("New PersonX").address(newP.address()).build();
+		memDb.updateCustomer(updatedP);
+		assertWithMessage("Updated Customer").that(memDb.readCustomer(newP.id())).isEqualTo(updatedP);
+		memDb.deleteCustomer(newP.id());
+		assertWithMessage("Deleted Customer").that(memDb.readCustomer(newP.id())).isNull();
+		// Nothing was written to the file-based database
+		assertWithMessage("File-based Customers").that(db.getCustomers()).doesNotContain(newP);
+		memDb.rmTables();
+	}
+	
+	/**
+	 * Test that an engine's indexes and interned fields are declared only by the first CustomerDb
+	 * using it (declaring an index locks the table), not by each CustomerDb (e.g. one per request)
+	 */
+	@Test
+	public void testEnginePreparedOnce() {
+		InMemoryDb memDb = new InMemoryDb(CustomerDb.DB);
+		AtomicInteger declarations = new AtomicInteger();
+		StorageEngine engine = (StorageEngine) Proxy.newProxyInstance(StorageEngine.class.getClassLoader(),
+			new Class<?>[] { StorageEngine.class }, (proxy, method, args) -> {
+				if (method.getName().equals("createIndex") || method.getName().equals("internField")) {
+					declarations.incrementAndGet();
+				}
+				return method.invoke(memDb, args);
+			});
+		new CustomerDb(engine);
+		int first = declarations.get();
+		assertWithMessage("Declarations by the first CustomerDb").that(first).isGreaterThan(0);
+		for (int i = 0; i < 3; i++) {
+			new CustomerDb(engine);
+		}
+		assertWithMessage("Declarations by later CustomerDbs").that(declarations.get()).isEqualTo(first);
+	}
+	
+	/** Test backing up the Customer tables and restoring them */
+	@Test
+	public void testBackup() throws IOException {
+		File dir = Files.createTempDirectory("backup").toFile();
+		File target = new File(dir, "Customer");
+		try {
+			db.backup(target);
+			Customer newP = db.createCustomer(Customer.builder().name("New Person").address("123 Sesame Street"));
+			db.deleteCustomer(TEST_ID);
+			assertThat(db.readCustomer(newP.id())).isNotNull();
+
+			db.restore(target);
+			assertWithMessage("Customer created after the backup").that(db.readCustomer(newP.id())).isNull();
+			assertWithMessage("Customer deleted after the backup").that(db.readCustomer(TEST_ID)).isNotNull();
+			assertThat(db.getCustomers()).hasSize(EXPECTED_NROWS);
+		} finally {
+			for (File f : target.listFiles()) {
+				f.delete();
+			}
+			target.delete();
+			dir.delete();
+		}
+	}
+	
 	// Utility routines below
 	
 	private void showData(String tag, List<Customer> data) {
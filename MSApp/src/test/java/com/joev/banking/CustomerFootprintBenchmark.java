@@ -0,0 +1,111 @@
+package com.joev.banking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import com.joev.util.InMemoryDb;
+
+/**
+ * Compares the memory used by a large number of Customers in each of the ways they can be held:
+ * as a List<Customer> (as CustomerDb returns them), and in the rows of an InMemoryDb: on the
+ * heap, packed by numeric id, and off the heap. For each, it reports the heap used, the memory
+ * used outside the heap, and how long a full garbage collection takes with them on the heap.
+ * This is not a unit test; run it by hand, e.g.:
+ * 
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -Xmx2g -cp target/classes:target/test-classes:$(cat cp.txt) com.joev.banking.CustomerFootprintBenchmark [nCustomers...]
+ * </pre>
+ * 
+ * The default number of Customers is 1,000,000. The name and address Strings are created before
+ * the measurements and kept throughout, so they only count where a representation makes copies
+ * of them.
+ */
+public class CustomerFootprintBenchmark {
+	private static final String TABLE = "Customers";
+	private static final int BATCH_SIZE = 10000;
+
+	public static void main(String[] args) {
+		int[] sizes = { 1_000_000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		System.out.printf("%-20s %10s %14s %10s %10s %10s%n", "representation", "customers", "heap bytes",
+				"heap/cust", "off/cust", "full GC ms");
+		for (int n : sizes) {
+			String[] names = new String[n];
+			String[] addresses = new String[n];
+			for (int i = 0; i < n; i++) {
+				names[i] = "Customer Number " + i;
+				addresses[i] = (i % 997) + " Main Street, Springfield";
+			}
+			IntFunction<Customer> customer = i -> Customer.builder().id(Integer.toString(1000 + i)).name(names[i])
+					.address(addresses[i]).build();
+			long base = usedHeap();
+
+			List<Customer> list = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				list.add(customer.apply(i));
+			}
+			report("List<Customer>", n, base, 0);
+			check(list.get(n - 1), names[n - 1]);
+			list = null;
+
+			for (String engine : new String[] { "InMemoryDb", "InMemoryDb packed", "InMemoryDb off-heap" }) {
+				InMemoryDb db = new InMemoryDb("Benchmark");
+				if (engine.endsWith("packed")) {
+					db.withPackedRows();
+				} else if (engine.endsWith("off-heap")) {
+					db.withOffHeapRows();
+				}
+				for (int start = 0; start < n; start += BATCH_SIZE) {
+					List<Customer> batch = new ArrayList<>(BATCH_SIZE);
+					for (int i = start; i < Math.min(n, start + BATCH_SIZE); i++) {
+						batch.add(customer.apply(i));
+					}
+					db.insertRows(TABLE, batch);
+				}
+				report(engine, n, base, db.offHeapBytes());
+				check(db.readRow(Customer.Builder.class, TABLE, Integer.toString(1000 + n - 1)).build(), names[n - 1]);
+				db = null;
+			}
+		}
+	}
+
+	private static void check(Customer customer, String expectedName) {
+		if (!customer.name().equals(expectedName)) {
+			throw new IllegalStateException("Wrong Customer: " + customer);
+		}
+	}
+
+	private static void report(String representation, int n, long base, long offHeapBytes) {
+		long bytes = usedHeap() - base;
+		long start = System.nanoTime();
+		System.gc();
+		long gcNanos = System.nanoTime() - start;
+		System.out.printf("%-20s %10d %14d %10.1f %10.1f %10.1f%n", representation, n, bytes, (double) bytes / n,
+				(double) offHeapBytes / n, gcNanos / 1e6);
+	}
+
+	/**
+	 * @return the number of bytes of heap in use, after collecting as much garbage as possible
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// Repeat until a collection frees nothing more
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			long now = runtime.totalMemory() - runtime.freeMemory();
+			if (now >= used) {
+				break;
+			}
+			used = now;
+		}
+		return used;
+	}
+}
@@ -4,12 +4,18 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.ws.rs.core.Response.Status;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.MappingIterator;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.eclipse.jetty.server.Server;
 import org.junit.After;
@@ -121,6 +127,21 @@ public class CustomerServiceTest {
 		//    retrieve the newly-created Customer
 	}
 	
+	/** Test creating a new Customer with an id which is already in use */
+	@Test
+	public void testCreateCustomer_IdInUse() throws Exception {
+		String json = "{\"id\": \"" + TEST_ID + "\", \"name\": \"" + TEST_NEWUSER_NAME + "\", "
+				+ "\"address\": \"" + TEST_NEWUSER_ADDRESS + "\"}";
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers", SHClient.RM.POST, json, SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.CONFLICT.getStatusCode());
+		assertWithMessage("Response message").that(response.responseMessage).isEqualTo(Status.CONFLICT.getReasonPhrase());
+		// The existing Customer is unchanged
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		assertThat(mapper.readValue(response.responseBody, Customer.Builder.class).build().name())
+			.isNotEqualTo(TEST_NEWUSER_NAME);
+	}
+	
 	/** Test reading a specific Customer's information */
 	@Test
 	public void testGetCustomer() throws Exception {
@@ -216,6 +237,124 @@ public class CustomerServiceTest {
 		assertWithMessage("Response message").that(response.responseMessage).isEqualTo(Status.BAD_REQUEST.getReasonPhrase());
 	}
 
+	/**
+	 * Test updating a Customer only if it still has one of the ETags listed in If-Match, or exists
+	 * at all ("*")
+	 */
+	@Test
+	public void testUpdateCustomer_IfMatch() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		String etag = header(response, "ETag");
+		Customer origP = mapper.readValue(response.responseBody, Customer.Builder.class).build();
+		String modPJson = mapper.writeValueAsString(
+			Customer.builder().id(origP.id()).name(TEST_MODUSER_NAME).address(origP.address()).build());
+
+		// A list of ETags, one of which matches
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.PUT, modPJson,
+			Collections.singletonMap("If-Match", "\"no-such-version\", " + etag), SHClient.RP.CON_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (matching ETag in list)").that(response.responseCode)
+			.isEqualTo(Status.OK.getStatusCode());
+
+		// The Customer has changed since 'etag', and a weak ETag never matches
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.PUT, modPJson,
+			Collections.singletonMap("If-Match", etag + ", W/" + etag), SHClient.RP.CON_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (stale ETags)").that(response.responseCode)
+			.isEqualTo(Status.PRECONDITION_FAILED.getStatusCode());
+		assertWithMessage("Current ETag").that(header(response, "ETag")).isNotEqualTo(etag);
+
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.PUT, modPJson,
+			Collections.singletonMap("If-Match", "*"), SHClient.RP.CON_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (If-Match: *)").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.DELETE, null,
+			Collections.singletonMap("If-Match", etag), SHClient.RP.ACC_TEXT);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (delete with stale ETag)").that(response.responseCode)
+			.isEqualTo(Status.PRECONDITION_FAILED.getStatusCode());
+	}
+	
+	/**
+	 * Test creating Customers in bulk: the status says how the request went if it fits in one
+	 * batch, and the body ends with a summary either way
+	 */
+	@Test
+	public void testCreateCustomers_Bulk() throws Exception {
+		String body = TEST_NEWUSER_JSON + "\n\n{\"name\": \"No Address\"}\n"
+			+ "{\"id\": \"" + TEST_ID + "\", \"name\": \"Taken\", \"address\": \"Here\"}\n";
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:bulk", SHClient.RM.POST, body,
+			SHClient.RP.CON_NDJSON, SHClient.RP.ACC_NDJSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(CustomerServlet.MULTI_STATUS);
+		List<JsonNode> results = ndjson(response);
+		assertThat(results).hasSize(4);
+		assertWithMessage("Line 1").that(results.get(0).get("status").getIntValue())
+			.isEqualTo(Status.CREATED.getStatusCode());
+		assertWithMessage("Line 3").that(results.get(1).get("line").getIntValue()).isEqualTo(3);
+		assertWithMessage("Line 3").that(results.get(1).get("status").getIntValue())
+			.isEqualTo(Status.BAD_REQUEST.getStatusCode());
+		assertWithMessage("Line 4").that(results.get(2).get("status").getIntValue())
+			.isEqualTo(Status.CONFLICT.getStatusCode());
+		JsonNode summary = results.get(3);
+		assertWithMessage("Summary").that(summary.has("line")).isFalse();
+		assertWithMessage("Summary status").that(summary.get("status").getIntValue())
+			.isEqualTo(CustomerServlet.MULTI_STATUS);
+		assertWithMessage("Summary lines").that(summary.get("lines").getIntValue()).isEqualTo(3);
+		assertWithMessage("Summary created").that(summary.get("created").getIntValue()).isEqualTo(1);
+		assertWithMessage("Summary failed").that(summary.get("failed").getIntValue()).isEqualTo(2);
+
+		response = SHClient.doHttp(URL_BASE + "/customers:bulk", SHClient.RM.POST, TEST_NEWUSER_JSON + "\n",
+			SHClient.RP.CON_NDJSON, SHClient.RP.ACC_NDJSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (all created)").that(response.responseCode)
+			.isEqualTo(Status.OK.getStatusCode());
+	}
+
+	/** Test creating Customers in bulk from a request none of whose lines is a valid Customer */
+	@Test
+	public void testCreateCustomers_BulkInvalid() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:bulk", SHClient.RM.POST, "not json\n[]\n",
+			SHClient.RP.CON_NDJSON, SHClient.RP.ACC_NDJSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+		List<JsonNode> results = ndjson(response);
+		assertThat(results).hasSize(3);
+		assertWithMessage("Summary created").that(results.get(2).get("created").getIntValue()).isEqualTo(0);
+
+		response = SHClient.doHttp(URL_BASE + "/customers:bulk", SHClient.RM.POST, "\n",
+			SHClient.RP.CON_NDJSON, SHClient.RP.ACC_NDJSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (no lines)").that(response.responseCode)
+			.isEqualTo(Status.BAD_REQUEST.getStatusCode());
+	}
+
+	/**
+	 * Test creating more Customers in bulk than fit in one batch: the response is streamed with
+	 * status 200, so only its summary tells that a line failed
+	 */
+	@Test
+	public void testCreateCustomers_BulkStreamed() throws Exception {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < CustomerServlet.BULK_BATCH_SIZE; i++) {
+			body.append(TEST_NEWUSER_JSON).append('\n');
+		}
+		body.append("{}\n");
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:bulk", SHClient.RM.POST, body.toString(),
+			SHClient.RP.CON_NDJSON, SHClient.RP.ACC_NDJSON);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		List<JsonNode> results = ndjson(response);
+		assertThat(results).hasSize(CustomerServlet.BULK_BATCH_SIZE + 2);
+		JsonNode summary = results.get(results.size() - 1);
+		logger.info("Summary: {}", summary);
+		assertWithMessage("Summary status").that(summary.get("status").getIntValue())
+			.isEqualTo(CustomerServlet.MULTI_STATUS);
+		assertWithMessage("Summary created").that(summary.get("created").getIntValue())
+			.isEqualTo(CustomerServlet.BULK_BATCH_SIZE);
+		assertWithMessage("Summary failed").that(summary.get("failed").getIntValue()).isEqualTo(1);
+	}
+	
 	/** Test deleting a specific Customer */
 	@Test
 	public void testDeleteCustomer() throws Exception {
@@ -240,4 +379,306 @@ public class CustomerServiceTest {
 		assertWithMessage("Response message").that(response.responseMessage).isEqualTo(Status.NOT_FOUND.getReasonPhrase());
 		assertThat(response.responseBody).isNotEmpty();
 	}
+	
+	/**
+	 * Test getting the Customers list a page at a time, following the 'next' links until the last
+	 * page (which has none)
+	 */
+	@Test
+	public void testGetCustomers_Paged() throws Exception {
+		List<String> ids = new ArrayList<>();
+		String url = URL_BASE + "/customers?limit=3";
+		int nPages = 0;
+		while (url != null) {
+			SHResp response = SHClient.doHttp(url, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+			SHClient.logResponse(response);
+			assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+			Customer.Builder customers[] = mapper.readValue(response.responseBody, Customer.Builder[].class);
+			assertWithMessage("Page size").that(customers.length).isAtMost(3);
+			for (Customer.Builder pb : customers) {
+				ids.add(pb.id().get());
+			}
+			url = nextLink(response);
+			nPages++;
+		}
+		assertWithMessage("Pages").that(nPages).isEqualTo(2);
+		assertThat(ids).containsExactly("100", "101", "102", "103").inOrder();
+	}
+
+	/** Test getting a page of the Customers list with an invalid limit or cursor */
+	@Test
+	public void testGetCustomers_PagedInvalid() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers?limit=0", SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (limit)").that(response.responseCode).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+		response = SHClient.doHttp(URL_BASE + "/customers?cursor=*", SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (cursor)").that(response.responseCode).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+	}
+
+	/** Test that the whole Customers list is streamed, as JSON and as text */
+	@Test
+	public void testGetCustomers_Streamed() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers", SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		assertWithMessage("Transfer-Encoding").that(header(response, "Transfer-Encoding")).isEqualTo("chunked");
+		assertWithMessage("Link").that(header(response, "Link")).isNull();
+		assertThat(mapper.readValue(response.responseBody, Customer.Builder[].class)).hasLength(4);
+
+		response = SHClient.doHttp(URL_BASE + "/customers", SHClient.RM.GET, null, SHClient.RP.ACC_TEXT);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (text)").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		assertThat(response.responseBody).startsWith("[");
+		assertThat(response.responseBody).contains(TEST_ID2);
+	}
+
+	/** Test getting Customers by id, in the URL and in the body of a batchGet */
+	@Test
+	public void testGetCustomersById() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers?ids=103," + TEST_ID_BAD + "," + TEST_ID,
+			SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		assertThat(ids(response)).containsExactly("103", TEST_ID).inOrder();
+
+		response = SHClient.doHttp(URL_BASE + "/customers:batchGet", SHClient.RM.POST,
+			"[\"" + TEST_ID2 + "\", \"" + TEST_ID_BAD + "\", \"" + TEST_ID + "\"]", SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (batchGet)").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		assertThat(ids(response)).containsExactly(TEST_ID2, TEST_ID).inOrder();
+	}
+
+	/** Test getting more Customers by id than a batchGet allows */
+	@Test
+	public void testGetCustomersById_TooMany() throws Exception {
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i <= CustomerServlet.MAX_BATCH_IDS; i++) {
+			ids.add(Integer.toString(i));
+		}
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:batchGet", SHClient.RM.POST,
+			mapper.writeValueAsString(ids), SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+	}
+
+	/**
+	 * Test exporting the Customers as NDJSON, then importing the export (after deleting them all)
+	 * to get the same Customers back
+	 */
+	@Test
+	public void testExportCustomers() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:export", SHClient.RM.GET, null, SHClient.RP.ACC_NDJSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		List<JsonNode> exported = ndjson(response);
+		assertThat(exported).hasSize(4);
+		List<String> ids = new ArrayList<>();
+		StringBuilder body = new StringBuilder();
+		for (JsonNode customer : exported) {
+			ids.add(customer.get("id").getTextValue());
+			body.append(customer).append('\n');
+		}
+
+		response = SHClient.doHttp(URL_BASE + "/customers:batchDelete", SHClient.RM.POST,
+			mapper.writeValueAsString(ids), SHClient.RP.CON_JSON, SHClient.RP.ACC_TEXT);
+		assertWithMessage("Response code (batchDelete)").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		response = SHClient.doHttp(URL_BASE + "/customers:bulk", SHClient.RM.POST, body.toString(),
+			SHClient.RP.CON_NDJSON, SHClient.RP.ACC_NDJSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (bulk)").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+
+		response = SHClient.doHttp(URL_BASE + "/customers:export", SHClient.RM.GET, null, SHClient.RP.ACC_NDJSON);
+		assertThat(ndjson(response)).containsExactlyElementsIn(exported);
+	}
+
+	/** Test updating several Customers at once */
+	@Test
+	public void testUpdateCustomers() throws Exception {
+		String body = "[{\"id\": \"" + TEST_ID + "\", \"name\": \"" + TEST_MODUSER_NAME + "\", \"address\": \"A\"},"
+			+ " {\"id\": \"" + TEST_ID2 + "\", \"name\": \"" + TEST_MODUSER_NAME + "\", \"address\": \"B\"}]";
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:batchUpdate", SHClient.RM.POST, body,
+			SHClient.RP.CON_JSON, SHClient.RP.ACC_TEXT);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID2, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		Customer verifyP = mapper.readValue(response.responseBody, Customer.Builder.class).build();
+		assertThat(verifyP.name()).isEqualTo(TEST_MODUSER_NAME);
+		assertThat(verifyP.address()).isEqualTo("B");
+	}
+
+	/**
+	 * Test updating several Customers at once when one doesn't exist or one is incomplete: none of
+	 * them is changed
+	 */
+	@Test
+	public void testUpdateCustomers_Invalid() throws Exception {
+		String body = "[{\"id\": \"" + TEST_ID + "\", \"name\": \"" + TEST_MODUSER_NAME + "\", \"address\": \"A\"},"
+			+ " {\"id\": \"" + TEST_ID_BAD + "\", \"name\": \"" + TEST_MODUSER_NAME + "\", \"address\": \"B\"}]";
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:batchUpdate", SHClient.RM.POST, body,
+			SHClient.RP.CON_JSON, SHClient.RP.ACC_TEXT);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (not found)").that(response.responseCode).isEqualTo(Status.NOT_FOUND.getStatusCode());
+
+		body = "[{\"id\": \"" + TEST_ID + "\", \"name\": \"" + TEST_MODUSER_NAME + "\"}]";
+		response = SHClient.doHttp(URL_BASE + "/customers:batchUpdate", SHClient.RM.POST, body,
+			SHClient.RP.CON_JSON, SHClient.RP.ACC_TEXT);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (incomplete)").that(response.responseCode).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		Customer verifyP = mapper.readValue(response.responseBody, Customer.Builder.class).build();
+		assertThat(verifyP.name()).isNotEqualTo(TEST_MODUSER_NAME);
+	}
+
+	/** Test deleting several Customers at once, and that none is deleted if one doesn't exist */
+	@Test
+	public void testDeleteCustomers() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers:batchDelete", SHClient.RM.POST,
+			"[\"" + TEST_ID + "\", \"" + TEST_ID_BAD + "\"]", SHClient.RP.CON_JSON, SHClient.RP.ACC_TEXT);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (not found)").that(response.responseCode).isEqualTo(Status.NOT_FOUND.getStatusCode());
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		assertWithMessage("Response code (not deleted)").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+
+		response = SHClient.doHttp(URL_BASE + "/customers:batchDelete", SHClient.RM.POST,
+			"[\"" + TEST_ID + "\", \"" + TEST_ID2 + "\"]", SHClient.RP.CON_JSON, SHClient.RP.ACC_TEXT);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		response = SHClient.doHttp(URL_BASE + "/customers", SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		assertThat(ids(response)).containsExactly("102", "103");
+	}
+
+	/** Test changing part of a Customer with a merge patch (sent as a POST with a method override) */
+	@Test
+	public void testPatchCustomer() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.PATCH,
+			"{\"address\": \"" + TEST_NEWUSER_ADDRESS + "\"}", SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code").that(response.responseCode).isEqualTo(Status.OK.getStatusCode());
+		Customer patched = mapper.readValue(response.responseBody, Customer.Builder.class).build();
+		assertThat(patched.address()).isEqualTo(TEST_NEWUSER_ADDRESS);
+		assertThat(patched.name()).isEqualTo("Joe Veilleux");
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+		assertThat(mapper.readValue(response.responseBody, Customer.Builder.class).build()).isEqualTo(patched);
+	}
+
+	/** Test patching a nonexistent Customer, and a patch which changes the id or removes a field */
+	@Test
+	public void testPatchCustomer_Invalid() throws Exception {
+		SHResp response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID_BAD, SHClient.RM.PATCH,
+			"{\"name\": \"" + TEST_MODUSER_NAME + "\"}", SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (not found)").that(response.responseCode).isEqualTo(Status.NOT_FOUND.getStatusCode());
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.PATCH,
+			"{\"id\": \"" + TEST_ID2 + "\"}", SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (id)").that(response.responseCode).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+		response = SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.PATCH,
+			"{\"name\": null}", SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+		SHClient.logResponse(response);
+		assertWithMessage("Response code (no name)").that(response.responseCode).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+	}
+
+	/**
+	 * Test getting a Customer, and a page of the list, with If-None-Match: NOT_MODIFIED until the
+	 * data changes
+	 */
+	@Test
+	public void testGetCustomer_NotModified() throws Exception {
+		for (String url : Arrays.asList(URL_BASE + "/customers/" + TEST_ID, URL_BASE + "/customers?limit=2")) {
+			SHResp response = SHClient.doHttp(url, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+			String etag = header(response, "ETag");
+			assertWithMessage("ETag of %s", url).that(etag).isNotNull();
+			response = SHClient.doHttp(url, SHClient.RM.GET, null,
+				Collections.singletonMap("If-None-Match", etag), SHClient.RP.ACC_JSON);
+			SHClient.logResponse(response);
+			assertWithMessage("Response code of %s", url).that(response.responseCode)
+				.isEqualTo(Status.NOT_MODIFIED.getStatusCode());
+			assertThat(response.responseBody).isEmpty();
+
+			SHClient.doHttp(URL_BASE + "/customers/" + TEST_ID, SHClient.RM.PATCH,
+				"{\"name\": \"" + url + "\"}", SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
+			response = SHClient.doHttp(url, SHClient.RM.GET, null,
+				Collections.singletonMap("If-None-Match", etag), SHClient.RP.ACC_JSON);
+			SHClient.logResponse(response);
+			assertWithMessage("Response code of %s after change", url).that(response.responseCode)
+				.isEqualTo(Status.OK.getStatusCode());
+			assertWithMessage("ETag of %s after change", url).that(header(response, "ETag")).isNotEqualTo(etag);
+			assertThat(response.responseBody).contains(url);
+		}
+	}
+
+	/**
+	 * Test that the cached JSON of a Customer, and of a page of the list, is used only while the
+	 * data hasn't changed, even when the change isn't made through the service
+	 */
+	@Test
+	public void testGetCustomer_Cached() throws Exception {
+		for (String url : Arrays.asList(URL_BASE + "/customers/" + TEST_ID, URL_BASE + "/customers?limit=2")) {
+			SHResp first = SHClient.doHttp(url, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+			SHResp second = SHClient.doHttp(url, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+			assertWithMessage("Cached body of %s", url).that(second.responseBody).isEqualTo(first.responseBody);
+			assertWithMessage("Cached ETag of %s", url).that(header(second, "ETag")).isEqualTo(header(first, "ETag"));
+
+			CustomerDb customerDb = new CustomerDb();
+			Customer origP = customerDb.readCustomer(TEST_ID);
+			customerDb.updateCustomer(Customer.builder().id(TEST_ID).name(url).address(origP.address()).build());
+			SHResp third = SHClient.doHttp(url, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+			SHClient.logResponse(third);
+			assertWithMessage("Body of %s after change", url).that(third.responseBody).contains(url);
+			assertWithMessage("ETag of %s after change", url).that(header(third, "ETag"))
+				.isNotEqualTo(header(first, "ETag"));
+		}
+	}
+	
+	// Utility routines below
+	
+	/**
+	 * @return the URL of the next page from a response's 'Link' header, or null if there is none
+	 */
+	private static String nextLink(SHResp response) {
+		String link = header(response, "Link");
+		if (link == null) {
+			return null;
+		}
+		assertThat(link).endsWith("rel=\"next\"");
+		return link.substring(link.indexOf('<') + 1, link.indexOf('>'));
+	}
+	
+	/**
+	 * @return the ids of the Customers in a JSON response body
+	 */
+	private static List<String> ids(SHResp response) throws IOException {
+		List<String> ids = new ArrayList<>();
+		for (Customer.Builder pb : mapper.readValue(response.responseBody, Customer.Builder[].class)) {
+			ids.add(pb.id().get());
+		}
+		return ids;
+	}
+	
+	/**
+	 * @return the values in an NDJSON response body (whose lines SHResp has joined together)
+	 */
+	private static List<JsonNode> ndjson(SHResp response) throws IOException {
+		List<JsonNode> values = new ArrayList<>();
+		MappingIterator<JsonNode> it = mapper.reader(JsonNode.class).readValues(response.responseBody);
+		while (it.hasNext()) {
+			values.add(it.next());
+		}
+		return values;
+	}
+	
+	/**
+	 * @return the value of a response header (whose name may differ in case), or null if there is
+	 *         none
+	 */
+	private static String header(SHResp response, String name) {
+		for (Map.Entry<String, List<String>> header : response.responseHeaders.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey())) {
+				return header.getValue().get(0);
+			}
+		}
+		return null;
+	}
 }
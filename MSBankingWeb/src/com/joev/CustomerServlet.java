@@ -2,6 +2,9 @@ package com.joev;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -12,6 +15,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
 
 import com.joev.banking.Customer;
 import com.joev.util.SHClient;
@@ -33,6 +37,12 @@ public class CustomerServlet extends HttpServlet {
 
 	String baseUri;
 
+	// Number of Customers per page of the list
+	private static final int PAGE_SIZE = 50;
+
+	// Cursor parameter of a 'next' link, e.g. <http://host/customers?cursor=MTAz&limit=50>; rel="next"
+	private static final Pattern NEXT_CURSOR = Pattern.compile("[?&]cursor=([^&>]+)[^>]*>;\\s*rel=\"next\"");
+
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
@@ -74,6 +84,23 @@ public class CustomerServlet extends HttpServlet {
 		return sb.toString();
 	}
 
+	/**
+	 * @return the cursor for the next page of a list, from the 'next' link in the response of the
+	 *         REST service, or null if there is no next page
+	 */
+	private static String getNextCursor(SHResp srvResponse) {
+		List<String> links = srvResponse.responseHeaders.get("Link");
+		if (links != null) {
+			for (String link : links) {
+				Matcher m = NEXT_CURSOR.matcher(link);
+				if (m.find()) {
+					return m.group(1);
+				}
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse
 	 *      response)
@@ -95,7 +122,10 @@ public class CustomerServlet extends HttpServlet {
 			body.append("<h1>Manage Customers</h1>");
 			body.append("<p>Click the Id of a customer to see their details and perform actions."
 					+ " Click the 'New Customer' button to create a new customer.</p>");
-			SHResp srvResponse = SHClient.doHttp(URL_BASE + "/customers", SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
+			// The service returns the list a page at a time; 'cursor' continues from a previous page
+			String cursor = request.getParameter("cursor");
+			String listUrl = URL_BASE + "/customers?limit=" + PAGE_SIZE + (cursor == null ? "" : "&cursor=" + cursor);
+			SHResp srvResponse = SHClient.doHttp(listUrl, SHClient.RM.GET, null, SHClient.RP.ACC_JSON);
 			SHClient.logResponse(srvResponse);
 			String data = srvResponse.responseBody;
 			Customer.Builder customers[] = mapper.readValue(data, Customer.Builder[].class);
@@ -115,6 +145,12 @@ public class CustomerServlet extends HttpServlet {
 					"<a href=\"newcustomer.jsp\">"
 					+ "<button type=\"button\" id=\"new_customer\">New Customer</button>"
 					+ "</a>");
+			// ...and "Next" button if there are more Customers
+			String nextCursor = getNextCursor(srvResponse);
+			if (nextCursor != null) {
+				body.append("<a href=" + request.getRequestURL() + "?cursor=" + nextCursor + ">"
+						+ "<button type=\"button\" id=\"next_page\">Next Page</button></a>");
+			}
 			body.append("</div>");
 		} else {
 			// A customer-id was specified
@@ -156,10 +192,13 @@ public class CustomerServlet extends HttpServlet {
 						"    <tr><th>Name</th><td><input type=\"text\" name=\"name\" size=\"20\" value=\"%s\"></td></tr>\n" + 
 						"    <tr><th>Address</th><td><input type=\"text\" name=\"address\" size=\"40\" value=\"%s\"></td></tr>\n" + 
 						"  </table>\n" + 
+						// The original values, so that only the changes need to be sent
+						"  <input type=\"hidden\" name=\"orig_name\" value=\"%s\">\n" + 
+						"  <input type=\"hidden\" name=\"orig_address\" value=\"%s\">\n" + 
 						"  <button type=\"submit\" name=\"button\" value=\"Cancel\">Cancel</button>\n" + 
 						"  <button type=\"submit\" name=\"button\" value=\"Submit\">Submit</button>\n" + 
 						"</form>\n",
-						header, instructions, p.id(), p.name(), p.address()
+						header, instructions, p.id(), p.name(), p.address(), p.name(), p.address()
 					)
 				);
 			} else if (action.equals("confirmdelete")) {
@@ -224,11 +263,23 @@ public class CustomerServlet extends HttpServlet {
 				requestMethod = SHClient.RM.POST;
 				requestBody = "{\"name\":\"" + name + "\",\"address\":\"" + address + "\"}";
 			} else {
-				// id specified, so this is a request to update an existing Customer
+				// id specified, so this is a request to update an existing Customer: send just the
+				// fields which were changed, as a merge patch
 				url = URL_BASE + "/customers/" + id;
-				requestMethod = SHClient.RM.PUT;
-				// TODO: Create JSON by creating new Customer.Builder using these values, then JSON-izing
-				requestBody = "{\"id\":\"" + id + "\", \"name\":\"" + name + "\",\"address\":\"" + address + "\"}";
+				requestMethod = SHClient.RM.PATCH;
+				ObjectNode patch = mapper.createObjectNode();
+				if (!name.equals(request.getParameter("orig_name"))) {
+					patch.put("name", name);
+				}
+				if (!address.equals(request.getParameter("orig_address"))) {
+					patch.put("address", address);
+				}
+				if (patch.size() == 0) {
+					// Nothing changed
+					doGet(request, response);
+					return;
+				}
+				requestBody = mapper.writeValueAsString(patch);
 			}
 			SHResp srvResponse = SHClient.doHttp(url, requestMethod, requestBody,
 					SHClient.RP.CON_JSON, SHClient.RP.ACC_JSON);
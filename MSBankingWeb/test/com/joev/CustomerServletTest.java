@@ -0,0 +1,229 @@
+package com.joev;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of the web UI's customer pages, against a stand-in for the REST service which records
+ * the requests it gets and gives canned responses
+ */
+public class CustomerServletTest {
+	private static final Logger logger = LogManager.getLogger(CustomerServletTest.class);
+
+	@Rule public TestName testName = new TestName();
+
+	private static final String REQUEST_URL = "http://localhost:8080/MSBankingWeb/customers";
+	private static final String CUSTOMER_JSON = "{\"id\":\"100\",\"name\":\"Joe Veilleux\","
+			+ "\"address\":\"148 PotOGold Street Anytown USA\"}";
+	private static final String PAGE_JSON = "[" + CUSTOMER_JSON + "]";
+
+	/** Stand-in for the REST service */
+	private HttpServer service;
+	/** Requests received by the service, e.g. "GET /customers?limit=50" */
+	private final List<String> serviceRequests = new ArrayList<>();
+	/** Method override headers and bodies of the requests received by the service */
+	private final List<String> serviceOverrides = new ArrayList<>();
+	private final List<String> serviceBodies = new ArrayList<>();
+	/** Responses for the service to give, in order */
+	private final Queue<ServiceResponse> serviceResponses = new LinkedList<>();
+
+	private CustomerServlet servlet;
+
+	@Before
+	public void before() throws Exception {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+		service = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		service.createContext("/", this::serve);
+		service.start();
+		servlet = new CustomerServlet();
+		servlet.URL_BASE = "http://localhost:" + service.getAddress().getPort();
+	}
+
+	@After
+	public void after() {
+		service.stop(0);
+	}
+
+	/** Test that the list shows a 'Next Page' button which continues from the service's 'next' link */
+	@Test
+	public void testList_NextPage() throws Exception {
+		serviceResponses.add(new ServiceResponse(200, PAGE_JSON,
+				"<" + servlet.URL_BASE + "/customers?cursor=MTAw&limit=50>; rel=\"next\""));
+		String page = get(params());
+		assertThat(serviceRequests).containsExactly("GET /customers?limit=50");
+		assertThat(page).contains("Joe Veilleux");
+		assertThat(page).contains("<a href=" + REQUEST_URL + "?cursor=MTAw><button type=\"button\" id=\"next_page\">");
+	}
+
+	/** Test that the list continues from the cursor in the request, and has no 'Next Page' at the end */
+	@Test
+	public void testList_LastPage() throws Exception {
+		serviceResponses.add(new ServiceResponse(200, PAGE_JSON, null));
+		String page = get(params("cursor", "MTAw"));
+		assertThat(serviceRequests).containsExactly("GET /customers?limit=50&cursor=MTAw");
+		assertThat(page).contains("Joe Veilleux");
+		assertThat(page).doesNotContain("next_page");
+	}
+
+	/** Test that the edit form sends just the changed fields, as a merge patch */
+	@Test
+	public void testEdit_Patch() throws Exception {
+		serviceResponses.add(new ServiceResponse(200, CUSTOMER_JSON, null));
+		serviceResponses.add(new ServiceResponse(200, CUSTOMER_JSON, null));
+		String page = post(params("button", "Submit", "id", "100", "name", "Joe V",
+				"orig_name", "Joe Veilleux", "address", "148 PotOGold Street Anytown USA",
+				"orig_address", "148 PotOGold Street Anytown USA"));
+		assertThat(serviceRequests).containsExactly("POST /customers/100", "GET /customers/100").inOrder();
+		assertWithMessage("Method override").that(serviceOverrides.get(0)).isEqualTo("PATCH");
+		assertWithMessage("Patch").that(serviceBodies.get(0)).isEqualTo("{\"name\":\"Joe V\"}");
+		assertThat(page).contains("Customer 100 Details");
+	}
+
+	/** Test that the edit form sends nothing to the service if nothing was changed */
+	@Test
+	public void testEdit_Unchanged() throws Exception {
+		serviceResponses.add(new ServiceResponse(200, CUSTOMER_JSON, null));
+		String page = post(params("button", "Submit", "id", "100", "name", "Joe Veilleux",
+				"orig_name", "Joe Veilleux", "address", "148 PotOGold Street Anytown USA",
+				"orig_address", "148 PotOGold Street Anytown USA"));
+		assertThat(serviceRequests).containsExactly("GET /customers/100");
+		assertThat(page).contains("Customer 100 Details");
+	}
+
+	/** Test that the edit form shows the service's response if the patch fails */
+	@Test
+	public void testEdit_PatchFails() throws Exception {
+		serviceResponses.add(new ServiceResponse(400, "Invalid patch for Customer 100", null));
+		String page = post(params("button", "Submit", "id", "100", "name", "Joe Veilleux",
+				"orig_name", "Joe Veilleux", "address", "", "orig_address", "148 PotOGold Street Anytown USA"));
+		assertThat(serviceRequests).containsExactly("POST /customers/100");
+		assertThat(page).contains("ERROR: Unable to modify customer 100!");
+		assertThat(page).contains("Invalid patch for Customer 100");
+	}
+
+	// Utility routines below
+
+	/** A canned response of the REST service */
+	private static class ServiceResponse {
+		final int code;
+		final String body;
+		/** The 'Link' header, or null */
+		final String link;
+
+		ServiceResponse(int code, String body, String link) {
+			this.code = code;
+			this.body = body;
+			this.link = link;
+		}
+	}
+
+	/**
+	 * Record a request to the REST service, and send it the next canned response
+	 */
+	private void serve(HttpExchange exchange) throws IOException {
+		String uri = exchange.getRequestURI().toString();
+		logger.info("Service request: {} {}", exchange.getRequestMethod(), uri);
+		serviceRequests.add(exchange.getRequestMethod() + " " + uri);
+		serviceOverrides.add(exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override"));
+		serviceBodies.add(read(exchange.getRequestBody()));
+		ServiceResponse response = serviceResponses.remove();
+		if (response.link != null) {
+			exchange.getResponseHeaders().add("Link", response.link);
+		}
+		byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(response.code, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private static String read(InputStream is) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = is.read(buffer)) > 0) {
+			bytes.write(buffer, 0, n);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/** @return request parameters from a list of names and values */
+	private static Map<String, String> params(String... namesAndValues) {
+		Map<String, String> params = new HashMap<>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			params.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return params;
+	}
+
+	/** @return the page written by the servlet's doGet */
+	private String get(Map<String, String> params) throws Exception {
+		StringWriter page = new StringWriter();
+		servlet.doGet(request(params), response(page));
+		return page.toString();
+	}
+
+	/** @return the page written by the servlet's doPost */
+	private String post(Map<String, String> params) throws Exception {
+		StringWriter page = new StringWriter();
+		servlet.doPost(request(params), response(page));
+		return page.toString();
+	}
+
+	/** @return a request to the customers page, with the specified parameters */
+	private static HttpServletRequest request(Map<String, String> params) {
+		return (HttpServletRequest) Proxy.newProxyInstance(CustomerServletTest.class.getClassLoader(),
+			new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+				switch (method.getName()) {
+				case "getParameter":
+					return params.get(args[0]);
+				case "getRequestURL":
+					return new StringBuffer(REQUEST_URL);
+				case "getContextPath":
+					return "/MSBankingWeb";
+				default:
+					return null;
+				}
+			});
+	}
+
+	/** @return a response whose body is written to 'page' */
+	private static HttpServletResponse response(StringWriter page) {
+		PrintWriter writer = new PrintWriter(page);
+		return (HttpServletResponse) Proxy.newProxyInstance(CustomerServletTest.class.getClassLoader(),
+			new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+				return method.getName().equals("getWriter") ? writer : null;
+			});
+	}
+}
@@ -0,0 +1,392 @@
+package com.joev.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Tables stored as compact binary rows. The file consists of:
+ * <ul>
+ * <li>a header: the magic number "SJDB", a format version, and the schema (the names of all the
+ * fields which appear in any row, in order of first appearance)</li>
+ * <li>the rows, each one a 4-byte length followed by that many bytes: for each field of the
+ * schema, a 1-byte type tag followed by the field's value (if any)</li>
+ * </ul>
+ * Field names are therefore stored once per file rather than once per row, and numbers are stored
+ * in binary. The length prefix allows a reader to skip (or locate) rows without decoding them.
+ * Nested objects and arrays are rare in SimpleJsonDb tables, and are stored as JSON text.
+ */
+class BinaryTableFormat implements TableFormat {
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private static final JsonNodeFactory nodeFactory = JsonNodeFactory.instance;
+
+	private static final int MAGIC = 0x534A4442; // "SJDB"
+	private static final int VERSION = 1;
+
+	/** Field not present in the row */
+	private static final byte TAG_ABSENT = 0;
+	private static final byte TAG_NULL = 1;
+	private static final byte TAG_FALSE = 2;
+	private static final byte TAG_TRUE = 3;
+	/** 8-byte integer */
+	private static final byte TAG_LONG = 4;
+	/** 8-byte floating point */
+	private static final byte TAG_DOUBLE = 5;
+	/** 4-byte length, then UTF-8 bytes */
+	private static final byte TAG_STRING = 6;
+	/** 4-byte length, then the value as UTF-8 JSON text */
+	private static final byte TAG_JSON = 7;
+
+	@Override
+	public String getExtension() {
+		return ".sjdb";
+	}
+
+	@Override
+	public void write(OutputStream os, List<JsonNode> rows) throws IOException {
+		Map<String, Integer> schema = new LinkedHashMap<>();
+		for (JsonNode row : rows) {
+			Iterator<String> names = row.getFieldNames();
+			while (names.hasNext()) {
+				String name = names.next();
+				if (!schema.containsKey(name)) {
+					schema.put(name, schema.size());
+				}
+			}
+		}
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		dos.writeInt(schema.size());
+		for (String name : schema.keySet()) {
+			dos.writeUTF(name);
+		}
+		dos.writeInt(rows.size());
+		String[] fields = schema.keySet().toArray(new String[0]);
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		for (JsonNode row : rows) {
+			buf = encodeRow(row, fields, buf);
+			dos.writeInt(buf.position());
+			dos.write(buf.array(), 0, buf.position());
+		}
+		dos.flush();
+	}
+
+	@Override
+	public <T> RowReader<T> read(InputStream is, Class<T> clazz) throws IOException {
+		return new StreamReader<>(is, clazz);
+	}
+
+	@Override
+	public <T> RowReader<T> read(ByteBuffer buf, Class<T> clazz) throws IOException {
+		return new BufferReader<>(buf, clazz);
+	}
+
+	@Override
+	public String toString() {
+		return "BINARY";
+	}
+
+	/**
+	 * Encode a row into a buffer (which is cleared first), growing it as needed
+	 * 
+	 * @return the buffer containing the row; its position is the encoded length
+	 */
+	private static ByteBuffer encodeRow(JsonNode row, String[] fields, ByteBuffer buf) throws IOException {
+		buf.clear();
+		for (String field : fields) {
+			JsonNode value = row.get(field);
+			byte[] bytes = null;
+			byte tag;
+			if (value == null) {
+				tag = TAG_ABSENT;
+			} else if (value.isNull()) {
+				tag = TAG_NULL;
+			} else if (value.isBoolean()) {
+				tag = value.getBooleanValue() ? TAG_TRUE : TAG_FALSE;
+			} else if (value.isIntegralNumber() && !value.isBigInteger()) {
+				tag = TAG_LONG;
+			} else if (value.isDouble()) {
+				tag = TAG_DOUBLE;
+			} else if (value.isTextual()) {
+				tag = TAG_STRING;
+				bytes = value.getTextValue().getBytes(StandardCharsets.UTF_8);
+			} else {
+				tag = TAG_JSON;
+				bytes = mapper.writeValueAsBytes(value);
+			}
+			int needed = 1 + 8 + ((bytes == null) ? 0 : 4 + bytes.length);
+			if (buf.remaining() < needed) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + needed));
+				buf.flip();
+				bigger.put(buf);
+				buf = bigger;
+			}
+			buf.put(tag);
+			switch (tag) {
+			case TAG_LONG:
+				buf.putLong(value.getLongValue());
+				break;
+			case TAG_DOUBLE:
+				buf.putDouble(value.getDoubleValue());
+				break;
+			case TAG_STRING:
+			case TAG_JSON:
+				buf.putInt(bytes.length);
+				buf.put(bytes);
+				break;
+			default:
+				break;
+			}
+		}
+		return buf;
+	}
+
+	/**
+	 * Decode one row
+	 * 
+	 * @param buf    buffer positioned at the start of the row's fields; on return it is positioned
+	 *               after them
+	 * @param fields the schema of the table
+	 * @return the row
+	 * @throws IOException if the row is malformed
+	 */
+	static ObjectNode decodeRow(ByteBuffer buf, String[] fields) throws IOException {
+		try {
+			return decodeFields(buf, fields);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated row: " + buf.remaining() + " bytes left", e);
+		}
+	}
+
+	private static ObjectNode decodeFields(ByteBuffer buf, String[] fields) throws IOException {
+		ObjectNode row = nodeFactory.objectNode();
+		for (String field : fields) {
+			byte tag = buf.get();
+			switch (tag) {
+			case TAG_ABSENT:
+				break;
+			case TAG_NULL:
+				row.putNull(field);
+				break;
+			case TAG_FALSE:
+				row.put(field, false);
+				break;
+			case TAG_TRUE:
+				row.put(field, true);
+				break;
+			case TAG_LONG:
+				long l = buf.getLong();
+				if (l == (int) l) {
+					row.put(field, (int) l);
+				} else {
+					row.put(field, l);
+				}
+				break;
+			case TAG_DOUBLE:
+				row.put(field, buf.getDouble());
+				break;
+			case TAG_STRING:
+				row.put(field, new String(bytes(buf), StandardCharsets.UTF_8));
+				break;
+			case TAG_JSON:
+				row.put(field, mapper.readTree(new String(bytes(buf), StandardCharsets.UTF_8)));
+				break;
+			default:
+				throw new IOException("Unknown field type " + tag + " for field " + field);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Read a length-prefixed byte array
+	 */
+	private static byte[] bytes(ByteBuffer buf) throws IOException {
+		int length = buf.getInt();
+		if (length < 0 || length > buf.remaining()) {
+			throw new IOException("Truncated field: length " + length + ", " + buf.remaining() + " bytes left");
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Read the header of a table
+	 * 
+	 * @param dis stream positioned at the start of the table
+	 * @return the schema of the table
+	 * @throws IOException if the stream doesn't contain a table in this format
+	 */
+	static String[] readSchema(DataInputStream dis) throws IOException {
+		if (dis.readInt() != MAGIC) {
+			throw new IOException("Not a binary table");
+		}
+		int version = dis.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary table version " + version);
+		}
+		String[] fields = new String[dis.readInt()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = dis.readUTF();
+		}
+		return fields;
+	}
+
+	/**
+	 * Reads the rows of a binary table one at a time
+	 */
+	private abstract static class Reader<T> implements RowReader<T> {
+		private final Class<T> clazz;
+		protected String[] fields;
+		protected int remaining;
+
+		Reader(Class<T> clazz) {
+			this.clazz = clazz;
+		}
+
+		/**
+		 * Read the header of the table, from a stream positioned at its start
+		 * 
+		 * @param empty whether the stream is empty (an empty file is a table with no rows; any
+		 *              other file too short for the header is corrupt)
+		 */
+		protected void readHeader(DataInputStream dis, boolean empty) throws IOException {
+			if (!empty) {
+				try {
+					fields = readSchema(dis);
+					remaining = dis.readInt();
+					if (remaining < 0) {
+						throw new IOException("Corrupt header: " + remaining + " rows");
+					}
+				} catch (IOException e) {
+					close();
+					throw e;
+				}
+			}
+			if (remaining == 0) {
+				close();
+			}
+		}
+
+		/**
+		 * @return buffer containing the encoded fields of the next row
+		 */
+		protected abstract ByteBuffer nextRow() throws IOException;
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		@Override
+		public T next() {
+			if (remaining <= 0) {
+				throw new NoSuchElementException();
+			}
+			try {
+				ObjectNode row = decodeRow(nextRow(), fields);
+				if (--remaining == 0) {
+					close();
+				}
+				return clazz.isInstance(row) ? clazz.cast(row) : mapper.readValue(row, clazz);
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rows of a binary table from a stream
+	 */
+	private static class StreamReader<T> extends Reader<T> {
+		private final DataInputStream dis;
+		private byte[] buf = new byte[1024];
+
+		StreamReader(InputStream is, Class<T> clazz) throws IOException {
+			super(clazz);
+			this.dis = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+			dis.mark(1);
+			boolean empty = (dis.read() < 0);
+			dis.reset();
+			readHeader(dis, empty);
+		}
+
+		@Override
+		protected ByteBuffer nextRow() throws IOException {
+			int length = dis.readInt();
+			if (length < 0) {
+				throw new IOException("Corrupt row: length " + length);
+			}
+			if (buf.length < length) {
+				buf = new byte[Math.max(length, buf.length * 2)];
+			}
+			dis.readFully(buf, 0, length);
+			return ByteBuffer.wrap(buf, 0, length);
+		}
+
+		@Override
+		public void close() {
+			remaining = 0;
+			try {
+				dis.close();
+			} catch (IOException e) {
+				// Nothing useful to do
+			}
+		}
+	}
+
+	/**
+	 * Reads the rows of a binary table straight from a buffer, without copying them
+	 */
+	private static class BufferReader<T> extends Reader<T> {
+		private final ByteBuffer buf;
+
+		BufferReader(ByteBuffer buf, Class<T> clazz) throws IOException {
+			super(clazz);
+			this.buf = buf;
+			// DataInputStream doesn't read ahead, so this leaves 'buf' positioned at the first row
+			readHeader(new DataInputStream(new ByteBufferInputStream(buf)), !buf.hasRemaining());
+		}
+
+		@Override
+		protected ByteBuffer nextRow() throws IOException {
+			if (buf.remaining() < 4) {
+				throw new IOException("Truncated row: " + buf.remaining() + " bytes left");
+			}
+			int length = buf.getInt();
+			if (length < 0 || length > buf.remaining()) {
+				throw new IOException("Truncated row: length " + length + ", " + buf.remaining() + " bytes left");
+			}
+			ByteBuffer row = buf.slice();
+			row.limit(length);
+			buf.position(buf.position() + length);
+			return row;
+		}
+
+		@Override
+		public void close() {
+			remaining = 0;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package com.joev.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache whose total size is bounded. Each entry has a weight (e.g. its size in bytes), given by
+ * a weigher function; when adding an entry takes the total weight over the bound, entries are
+ * evicted, according to the cache's Policy, until it fits again. An entry which is heavier than
+ * the bound by itself is not cached at all.
+ * <p>
+ * Thread-safe: all operations are synchronized. They are all O(1), so the cache suits values
+ * which are expensive to compute but cheap to hold on to, such as serialized responses.
+ * 
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+public class BoundedCache<K, V> {
+
+	/** How a cache chooses which entries to evict */
+	public enum Policy {
+		/** Evict the least recently used entries */
+		LRU,
+		/**
+		 * W-TinyLFU: new entries go into a small LRU "window" (1% of the cache). An entry evicted
+		 * from the window is only admitted to the rest of the cache if its key has been used more
+		 * often, recently, than that of the entry which it would replace; otherwise it is
+		 * discarded instead. Frequencies are estimated with a count-min sketch which is halved
+		 * periodically, so old popularity fades. Unlike LRU, a scan of many keys which are each
+		 * used once can't flush out the frequently used entries.
+		 */
+		TINY_LFU
+	}
+
+	/** Fraction of a TINY_LFU cache's weight given to the window */
+	private static final int WINDOW_PERCENT = 1;
+
+	private final Policy policy;
+	private final ToLongFunction<? super V> weigher;
+	/** Entries not yet admitted to main (TINY_LFU only), least recently used first */
+	private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+	/** Other entries, least recently used first */
+	private final LinkedHashMap<K, V> main = new LinkedHashMap<>(16, 0.75f, true);
+	private final long maxWeight;
+	private final long maxWindowWeight;
+	private final FrequencySketch sketch;
+	private long windowWeight;
+	private long mainWeight;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Create an LRU cache
+	 * 
+	 * @param maxWeight largest total weight of the entries
+	 * @param weigher   gives the weight of a value
+	 */
+	public BoundedCache(long maxWeight, ToLongFunction<? super V> weigher) {
+		this(maxWeight, weigher, Policy.LRU);
+	}
+
+	/**
+	 * @param maxWeight largest total weight of the entries
+	 * @param weigher   gives the weight of a value
+	 * @param policy    how to choose the entries to evict
+	 */
+	public BoundedCache(long maxWeight, ToLongFunction<? super V> weigher, Policy policy) {
+		if (maxWeight < 0) {
+			throw new IllegalArgumentException("maxWeight must not be negative: " + maxWeight);
+		}
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.policy = policy;
+		if (policy == Policy.TINY_LFU) {
+			maxWindowWeight = maxWeight * WINDOW_PERCENT / 100;
+			sketch = new FrequencySketch();
+		} else {
+			maxWindowWeight = 0;
+			sketch = null;
+		}
+	}
+
+	/**
+	 * @return the value cached for a key, or null if there is none
+	 */
+	public synchronized V get(K key) {
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		V value = window.get(key);
+		if (value == null) {
+			value = main.get(key);
+		}
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * Cache a value, replacing any value already cached for the key, and evicting entries as
+	 * necessary. With the TINY_LFU policy, the value may itself be evicted straight away (see
+	 * Policy.TINY_LFU).
+	 */
+	public synchronized void put(K key, V value) {
+		remove(key);
+		long w = weigher.applyAsLong(value);
+		if (w > maxWeight) {
+			return;
+		}
+		if (sketch == null) {
+			admit(key, value, w);
+			return;
+		}
+		sketch.increment(key);
+		sketch.ensureCapacity(size() + 1);
+		window.put(key, value);
+		windowWeight += w;
+		for (Iterator<Map.Entry<K, V>> it = window.entrySet().iterator(); windowWeight > maxWindowWeight
+				&& it.hasNext();) {
+			Map.Entry<K, V> candidate = it.next();
+			it.remove();
+			long cw = weigher.applyAsLong(candidate.getValue());
+			windowWeight -= cw;
+			admit(candidate.getKey(), candidate.getValue(), cw);
+		}
+	}
+
+	/**
+	 * Add an entry to main, evicting entries from main to make room for it, unless (TINY_LFU) an
+	 * entry which would be evicted is used more often than the new one, in which case the new
+	 * one is discarded
+	 */
+	private void admit(K key, V value, long w) {
+		long maxMainWeight = maxWeight - maxWindowWeight;
+		if (w > maxMainWeight) {
+			evictions++;
+			return;
+		}
+		for (Iterator<Map.Entry<K, V>> it = main.entrySet().iterator(); mainWeight + w > maxMainWeight
+				&& it.hasNext();) {
+			Map.Entry<K, V> victim = it.next();
+			if (sketch != null && sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+				evictions++;
+				return;
+			}
+			it.remove();
+			mainWeight -= weigher.applyAsLong(victim.getValue());
+			evictions++;
+		}
+		main.put(key, value);
+		mainWeight += w;
+	}
+
+	/**
+	 * Remove the value cached for a key (if any)
+	 */
+	public synchronized void remove(K key) {
+		V old = window.remove(key);
+		if (old != null) {
+			windowWeight -= weigher.applyAsLong(old);
+		}
+		old = main.remove(key);
+		if (old != null) {
+			mainWeight -= weigher.applyAsLong(old);
+		}
+	}
+
+	/**
+	 * Remove all the cached values
+	 */
+	public synchronized void clear() {
+		window.clear();
+		main.clear();
+		windowWeight = 0;
+		mainWeight = 0;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return window.size() + main.size();
+	}
+
+	/**
+	 * @return the total weight of the entries
+	 */
+	public synchronized long weight() {
+		return windowWeight + mainWeight;
+	}
+
+	/**
+	 * @return the eviction policy
+	 */
+	public Policy policy() {
+		return policy;
+	}
+
+	/**
+	 * @return statistics of the cache's use: hits, misses, evictions (including, for TINY_LFU,
+	 *         new entries which weren't admitted), size and weight
+	 */
+	public synchronized Map<String, Long> stats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("evictions", evictions);
+		stats.put("size", (long) size());
+		stats.put("weight", weight());
+		return stats;
+	}
+
+	/**
+	 * Estimates how often keys have been used recently: a count-min sketch of small counters
+	 * (each at most 15), all of which are halved once the number of increments reaches ten times
+	 * the sketch's width. It keeps about twice as many counters per row as the cache has entries.
+	 */
+	private static class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x97cb3127, 0xb7dd5b4b, 0x5bd1e995, 0x9e3779b9 };
+
+		private int width = 64;
+		private byte[] counts = new byte[DEPTH * width];
+		private int increments;
+
+		/**
+		 * Make the sketch wide enough for a number of entries. When it grows, each new counter
+		 * starts with the count of the old counter whose keys it takes a share of, so no estimate
+		 * goes down.
+		 */
+		void ensureCapacity(int entries) {
+			int needed = Integer.highestOneBit(Math.max(64, entries * 2) - 1) << 1;
+			if (needed > width) {
+				byte[] newCounts = new byte[DEPTH * needed];
+				int ratio = needed / width;
+				for (int row = 0; row < DEPTH; row++) {
+					for (int i = 0; i < needed; i++) {
+						newCounts[row * needed + i] = counts[row * width + i / ratio];
+					}
+				}
+				width = needed;
+				counts = newCounts;
+			}
+		}
+
+		void increment(Object key) {
+			int hash = key.hashCode();
+			for (int row = 0; row < DEPTH; row++) {
+				int i = index(hash, row);
+				if (counts[i] < MAX_COUNT) {
+					counts[i]++;
+				}
+			}
+			if (++increments >= 10 * width) {
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] >>= 1;
+				}
+				increments /= 2;
+			}
+		}
+
+		int frequency(Object key) {
+			int hash = key.hashCode();
+			int min = MAX_COUNT;
+			for (int row = 0; row < DEPTH; row++) {
+				min = Math.min(min, counts[index(hash, row)]);
+			}
+			return min;
+		}
+
+		/** @return the index of the key's counter in a row: the top bits of a hash for that row */
+		private int index(int hash, int row) {
+			int h = hash + SEEDS[row];
+			// Murmur3's finalizer, so that similar keys (e.g. consecutive numbers) are spread out
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return row * width + (h >>> (32 - Integer.numberOfTrailingZeros(width)));
+		}
+	}
+}
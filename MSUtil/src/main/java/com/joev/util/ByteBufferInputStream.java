@@ -0,0 +1,45 @@
+package com.joev.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream which reads from a ByteBuffer (e.g. a memory-mapped file), advancing its position
+ */
+class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buf;
+
+	ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	@Override
+	public int read() {
+		return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buf.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, buf.remaining());
+		buf.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+		buf.position(buf.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+}
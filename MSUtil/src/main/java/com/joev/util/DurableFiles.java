@@ -0,0 +1,91 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File writes which survive a crash: a file is either completely replaced or left as it was, and
+ * data is forced to the storage device before the write is considered done.
+ */
+class DurableFiles {
+
+	/** Writes the new contents of a file */
+	interface Writer {
+		void write(OutputStream os) throws IOException;
+	}
+
+	private DurableFiles() {
+	}
+
+	/**
+	 * Atomically replace the contents of a file: write the new contents to a temporary file in the
+	 * same directory, force it to disk, then rename it over the target.
+	 * 
+	 * @param target file to be replaced (or created)
+	 * @param writer writes the new contents
+	 * @throws IOException
+	 */
+	static void replace(File target, Writer writer) throws IOException {
+		File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			// The writer may close its stream (as Jackson does), but we still need to force it
+			writer.write(new FilterOutputStream(fos) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			});
+			fos.getChannel().force(true);
+		}
+		try {
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		syncDirectory(target.getParentFile());
+	}
+
+	/**
+	 * Append data to a file (creating it if necessary), and force it to disk
+	 * 
+	 * @param target file to be appended to
+	 * @param data   data to be appended
+	 * @throws IOException
+	 */
+	static void append(File target, byte[] data) throws IOException {
+		boolean created = !target.exists();
+		try (FileOutputStream fos = new FileOutputStream(target, true)) {
+			fos.write(data);
+			fos.getChannel().force(false);
+		}
+		if (created) {
+			syncDirectory(target.getParentFile());
+		}
+	}
+
+	/**
+	 * Force a directory's entries (e.g. a rename or a newly-created file) to disk. Not all
+	 * platforms allow a directory to be opened for this, in which case it is skipped.
+	 */
+	private static void syncDirectory(File dir) {
+		try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (IOException e) {
+			// Not supported on this platform
+		}
+	}
+}
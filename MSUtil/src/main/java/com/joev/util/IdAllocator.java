@@ -0,0 +1,85 @@
+package com.joev.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Hands out unique ids from blocks reserved in advance. Each block is reserved with a single
+ * (durable) update of a persistent high-water mark; ids within the block are then handed out from
+ * an AtomicLong without any locking or I/O.
+ * <p>
+ * Ids left unused in the current block when the program stops are never handed out, so there will
+ * be gaps in the sequence after a restart, but an id is never handed out twice.
+ */
+class IdAllocator {
+	private final int blockSize;
+	private final IntToLongFunction reserveBlock;
+
+	/**
+	 * The current block. Replaced (never changed) when a new block is reserved, or on reset, so an
+	 * id is only handed out from a block which was actually reserved.
+	 */
+	private final AtomicReference<Block> block = new AtomicReference<>(new Block(0, 0));
+
+	/** A block of reserved ids */
+	private static class Block {
+		/** Next id to hand out; may run past 'limit' once the block is used up */
+		final AtomicLong next;
+		/** End (exclusive) of the block */
+		final long limit;
+
+		Block(long start, long limit) {
+			this.next = new AtomicLong(start);
+			this.limit = limit;
+		}
+	}
+
+	/**
+	 * @param blockSize    number of ids to reserve at a time
+	 * @param reserveBlock given the block size, durably advances the high-water mark by that amount
+	 *                     and returns its previous value (i.e. the first id in the new block)
+	 */
+	IdAllocator(int blockSize, IntToLongFunction reserveBlock) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+		}
+		this.blockSize = blockSize;
+		this.reserveBlock = reserveBlock;
+	}
+
+	/**
+	 * @return a unique id
+	 */
+	long nextId() {
+		while (true) {
+			Block current = block.get();
+			long id = current.next.getAndIncrement();
+			if (id < current.limit) {
+				return id;
+			}
+			reserve(current);
+		}
+	}
+
+	/**
+	 * Forget the current block, so that the next id comes from a freshly-reserved block (e.g.
+	 * after the persistent high-water mark has been reset)
+	 */
+	synchronized void reset() {
+		block.set(new Block(0, 0));
+	}
+
+	/**
+	 * Reserve a new block, unless another thread has already replaced the used-up one
+	 * 
+	 * @param usedUp the block which has no ids left
+	 */
+	private synchronized void reserve(Block usedUp) {
+		if (block.get() != usedUp) {
+			return;
+		}
+		long start = reserveBlock.applyAsLong(blockSize);
+		block.set(new Block(start, start + blockSize));
+	}
+}
@@ -0,0 +1,791 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * A StorageEngine which holds its tables only in memory: nothing is written to disk (except by
+ * snapshot), and the contents are lost when the program stops. Useful for tests, load tests,
+ * and caches, and as a baseline when comparing engines.
+ * <p>
+ * Tables are initialized from the same samples in the program's resources as SimpleJsonDb's.
+ * nextId() starts from the 'nextId' counter of the Metadata table (if it has been initialized),
+ * but doesn't update it.
+ * <p>
+ * Each table is kept in insertion order, keyed by id, and has its own read/write lock. Secondary
+ * indexes work as in SimpleJsonDb.
+ * <p>
+ * With withOffHeapRows(), the rows are kept outside the Java heap (see OffHeapRowMap), so that
+ * a large table neither grows the heap nor lengthens garbage collection pauses. Only the ids,
+ * row versions and secondary indexes stay on the heap, and each row read is decoded afresh.
+ * <p>
+ * With withPackedRows(), rows whose ids are numbers are kept on the heap without an object per
+ * row (see PackedRowMap), which makes a large table with interned fields a fraction of the size.
+ */
+public class InMemoryDb implements StorageEngine {
+	private static final Logger logger = LogManager.getLogger(InMemoryDb.class);
+
+	private final String dbName;
+	private final Map<String, Table> tables = new ConcurrentHashMap<>();
+	private final Versions versions = new Versions();
+	/** Fields on which secondary indexes have been declared, by table */
+	private final Map<String, Set<String>> declaredIndexes = new ConcurrentHashMap<>();
+	/** Fields whose values are interned (see internField), by table */
+	private final Map<String, Set<String>> declaredInterns = new ConcurrentHashMap<>();
+	private final InternPool<JsonNode> internPool = new InternPool<>(SimpleJsonDb.DEFAULT_INTERN_POOL_SIZE);
+	private AtomicInteger nextId;
+	private boolean offHeapRows;
+	private boolean packedRows;
+
+	public InMemoryDb(String dbName) {
+		this.dbName = dbName;
+	}
+
+	/**
+	 * Keep the rows of tables outside the Java heap. Must be called before any table is used.
+	 * 
+	 * @return this InMemoryDb
+	 */
+	public InMemoryDb withOffHeapRows() {
+		if (!tables.isEmpty()) {
+			throw new IllegalStateException("Tables of database " + dbName + " are already in use");
+		}
+		this.offHeapRows = true;
+		return this;
+	}
+
+	/**
+	 * Keep the rows of tables packed by numeric id (see PackedRowMap). Must be called before any
+	 * table is used.
+	 * 
+	 * @return this InMemoryDb
+	 */
+	public InMemoryDb withPackedRows() {
+		if (!tables.isEmpty()) {
+			throw new IllegalStateException("Tables of database " + dbName + " are already in use");
+		}
+		this.packedRows = true;
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes of memory held outside the Java heap by the tables' rows (0
+	 *         unless withOffHeapRows() has been called)
+	 */
+	public long offHeapBytes() {
+		long bytes = 0;
+		for (Table t : tables.values()) {
+			if (t.rows instanceof OffHeapRowMap) {
+				t.lock.readLock().lock();
+				try {
+					bytes += ((OffHeapRowMap) t.rows).offHeapBytes();
+				} finally {
+					t.lock.readLock().unlock();
+				}
+			}
+		}
+		return bytes;
+	}
+
+	@Override
+	public void initTable(String table) throws IOException {
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			if (t.initialized) {
+				logger.info("initTable: Database={} table={} already exists", dbName, table);
+				return;
+			}
+			String resource = String.format("/DB_%s_%s.json", dbName, table);
+			List<JsonNode> rows = new ArrayList<>();
+			try (InputStream is = getClass().getResourceAsStream(resource)) {
+				if (is != null) {
+					TableFormat.JSON.read(is, JsonNode.class).forEachRemaining(rows::add);
+				}
+			}
+			logger.info("initTable: Creating database={} table={} with {} rows from resource {}", dbName, table,
+					rows.size(), resource);
+			intern(table, rows);
+			t.replaceRows(rows);
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void rmTable(String table) {
+		tables.remove(table);
+		if (table.equals(SimpleJsonDb.DB_METADATA_TABLE)) {
+			synchronized (this) {
+				nextId = null;
+			}
+		}
+	}
+
+	@Override
+	public <T> List<T> readTable(Class<T> clazz, String table) {
+		List<T> contents = new ArrayList<>();
+		for (JsonNode row : getTable(table).copyRows()) {
+			contents.add(SimpleJsonDb.fromRow(row, clazz, table));
+		}
+		return contents;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * With off-heap rows, only the keys are copied at the start, and each row is decoded as the
+	 * stream reaches it, so streaming a large table doesn't bring it all onto the heap at once.
+	 * The stream then sees the rows as they are when it reaches them, and leaves out those deleted
+	 * in the meantime.
+	 */
+	@Override
+	public <T> Stream<T> streamTable(Class<T> clazz, String table) {
+		Table t = getTable(table);
+		if (!(t.rows instanceof OffHeapRowMap)) {
+			return t.copyRows().stream().map(row -> SimpleJsonDb.fromRow(row, clazz, table));
+		}
+		List<Object> keys;
+		t.lock.readLock().lock();
+		try {
+			keys = new ArrayList<>(t.rows.keySet());
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		return keys.stream().map(key -> {
+			t.lock.readLock().lock();
+			try {
+				return t.rows.get(key);
+			} finally {
+				t.lock.readLock().unlock();
+			}
+		}).filter(row -> row != null).map(row -> SimpleJsonDb.fromRow(row, clazz, table));
+	}
+
+	@Override
+	public <T> List<T> scanRows(Class<T> clazz, String table, String afterId, int limit) {
+		Table t = getTable(table);
+		List<JsonNode> found = new ArrayList<>();
+		t.lock.readLock().lock();
+		try {
+			for (String id : (afterId == null) ? t.orderedIds : t.orderedIds.tailSet(afterId, false)) {
+				if (found.size() >= limit) {
+					break;
+				}
+				found.add(t.rows.get(id));
+			}
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		List<T> result = new ArrayList<>(found.size());
+		for (JsonNode row : found) {
+			result.add(SimpleJsonDb.fromRow(row, clazz, table));
+		}
+		return result;
+	}
+
+	@Override
+	public void writeTable(String table, Object value) {
+		Table t = getTable(table);
+		List<JsonNode> rows = SimpleJsonDb.toRows(value);
+		intern(table, rows);
+		t.lock.writeLock().lock();
+		try {
+			t.replaceRows(rows);
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public <T> T readRow(Class<T> clazz, String table, String id) {
+		Table t = getTable(table);
+		JsonNode row;
+		t.lock.readLock().lock();
+		try {
+			row = t.rows.get(id);
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		return (row == null) ? null : SimpleJsonDb.fromRow(row, clazz, table);
+	}
+
+	@Override
+	public <T> List<T> readRows(Class<T> clazz, String table, List<String> ids) {
+		Table t = getTable(table);
+		List<JsonNode> found = new ArrayList<>(ids.size());
+		t.lock.readLock().lock();
+		try {
+			for (String id : ids) {
+				found.add(t.rows.get(id));
+			}
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		List<T> result = new ArrayList<>(found.size());
+		for (JsonNode row : found) {
+			result.add((row == null) ? null : SimpleJsonDb.fromRow(row, clazz, table));
+		}
+		return result;
+	}
+
+	@Override
+	public <T> VersionedRow<T> readVersionedRow(Class<T> clazz, String table, String id) {
+		Table t = getTable(table);
+		JsonNode row;
+		String version;
+		t.lock.readLock().lock();
+		try {
+			row = t.rows.get(id);
+			if (row == null) {
+				return null;
+			}
+			version = t.rowVersions.row(id);
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		return new VersionedRow<>(SimpleJsonDb.fromRow(row, clazz, table), version);
+	}
+
+	@Override
+	public String rowVersion(String table, String id) {
+		Table t = getTable(table);
+		t.lock.readLock().lock();
+		try {
+			return t.rows.containsKey(id) ? t.rowVersions.row(id) : null;
+		} finally {
+			t.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String tableVersion(String table) {
+		Table t = getTable(table);
+		t.lock.readLock().lock();
+		try {
+			return t.rowVersions.table();
+		} finally {
+			t.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void insertRow(String table, Object row) {
+		JsonNode node = SimpleJsonDb.toRow(row);
+		String id = node.get(SimpleJsonDb.ID_FIELD).asText();
+		intern(table, node);
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			if (t.rows.containsKey(id)) {
+				throw new IllegalArgumentException("Table " + table + " already contains a row with id " + id);
+			}
+			t.initialized = true;
+			t.rows.put(id, node);
+			t.orderedIds.add(id);
+			t.secondary.add(node);
+			t.rowVersions.changed(Collections.singletonList(id), Collections.emptyList());
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean[] insertRows(String table, List<?> rows) {
+		List<JsonNode> nodes = SimpleJsonDb.toRows(rows);
+		for (int i = 0; i < nodes.size(); i++) {
+			JsonNode id = nodes.get(i).get(SimpleJsonDb.ID_FIELD);
+			if (id == null || id.isNull()) {
+				throw new IllegalArgumentException("Row " + i + " of batch for table " + table + " has no id");
+			}
+		}
+		intern(table, nodes);
+		boolean[] inserted = new boolean[nodes.size()];
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			t.initialized = true;
+			List<String> insertedIds = new ArrayList<>();
+			for (int i = 0; i < nodes.size(); i++) {
+				JsonNode node = nodes.get(i);
+				String id = node.get(SimpleJsonDb.ID_FIELD).asText();
+				if (!t.rows.containsKey(id)) {
+					t.rows.put(id, node);
+					t.orderedIds.add(id);
+					t.secondary.add(node);
+					insertedIds.add(id);
+					inserted[i] = true;
+				}
+			}
+			t.rowVersions.changed(insertedIds, Collections.emptyList());
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+		return inserted;
+	}
+
+	@Override
+	public boolean updateRow(String table, Object row) {
+		return updateRow(table, row, null);
+	}
+
+	@Override
+	public boolean updateRow(String table, Object row, String ifVersion) {
+		JsonNode node = SimpleJsonDb.toRow(row);
+		String id = node.get(SimpleJsonDb.ID_FIELD).asText();
+		intern(table, node);
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			if (!t.rows.containsKey(id)) {
+				return false;
+			}
+			t.checkVersion(table, id, ifVersion);
+			t.secondary.remove(t.rows.put(id, node));
+			t.secondary.add(node);
+			t.rowVersions.changed(Collections.singletonList(id), Collections.emptyList());
+			return true;
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public <T> boolean updateRow(Class<T> clazz, String table, String id, UnaryOperator<T> modifier) {
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			JsonNode row = t.rows.get(id);
+			if (row == null) {
+				return false;
+			}
+			JsonNode node = SimpleJsonDb.toRow(modifier.apply(SimpleJsonDb.fromRow(row, clazz, table)));
+			if (!node.get(SimpleJsonDb.ID_FIELD).asText().equals(id)) {
+				throw new IllegalArgumentException("Cannot change the id of row " + id + " of table " + table);
+			}
+			intern(table, node);
+			t.secondary.remove(t.rows.put(id, node));
+			t.secondary.add(node);
+			t.rowVersions.changed(Collections.singletonList(id), Collections.emptyList());
+			return true;
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean deleteRow(String table, String id) {
+		return deleteRow(table, id, null);
+	}
+
+	@Override
+	public boolean deleteRow(String table, String id, String ifVersion) {
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			if (!t.rows.containsKey(id)) {
+				return false;
+			}
+			t.checkVersion(table, id, ifVersion);
+			JsonNode row = t.rows.remove(id);
+			t.orderedIds.remove(id);
+			t.secondary.remove(row);
+			t.rowVersions.changed(Collections.emptyList(), Collections.singletonList(id));
+			return true;
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> updateRows(String table, List<?> rows) {
+		List<JsonNode> nodes = SimpleJsonDb.toRows(rows);
+		for (int i = 0; i < nodes.size(); i++) {
+			JsonNode id = nodes.get(i).get(SimpleJsonDb.ID_FIELD);
+			if (id == null || id.isNull()) {
+				throw new IllegalArgumentException("Row " + i + " of batch for table " + table + " has no id");
+			}
+		}
+		intern(table, nodes);
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			List<String> missing = new ArrayList<>();
+			for (JsonNode node : nodes) {
+				String id = node.get(SimpleJsonDb.ID_FIELD).asText();
+				if (!t.rows.containsKey(id)) {
+					missing.add(id);
+				}
+			}
+			if (missing.isEmpty()) {
+				List<String> ids = new ArrayList<>(nodes.size());
+				for (JsonNode node : nodes) {
+					String id = node.get(SimpleJsonDb.ID_FIELD).asText();
+					t.secondary.remove(t.rows.put(id, node));
+					t.secondary.add(node);
+					ids.add(id);
+				}
+				t.rowVersions.changed(ids, Collections.emptyList());
+			}
+			return missing;
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> deleteRows(String table, List<String> ids) {
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			List<String> missing = new ArrayList<>();
+			for (String id : ids) {
+				if (!t.rows.containsKey(id)) {
+					missing.add(id);
+				}
+			}
+			if (missing.isEmpty()) {
+				for (String id : ids) {
+					JsonNode row = t.rows.remove(id);
+					if (row != null) {
+						t.orderedIds.remove(id);
+						t.secondary.remove(row);
+					}
+				}
+				t.rowVersions.changed(Collections.emptyList(), ids);
+			}
+			return missing;
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void createIndex(String table, String field) {
+		declaredIndexes.computeIfAbsent(table, k -> ConcurrentHashMap.newKeySet()).add(field);
+		Table t = getTable(table);
+		t.lock.writeLock().lock();
+		try {
+			if (t.secondary.declare(field)) {
+				t.secondary.rebuild(field, new ArrayList<>(t.rows.values()));
+			}
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Does nothing for off-heap rows (see withOffHeapRows), which are encoded as they are stored.
+	 */
+	@Override
+	public void internField(String table, String field) {
+		declaredInterns.computeIfAbsent(table, k -> ConcurrentHashMap.newKeySet()).add(field);
+	}
+
+	@Override
+	public <T> List<T> findRows(Class<T> clazz, String table, String field, String value) {
+		return findRows(clazz, table, field, value, false);
+	}
+
+	@Override
+	public <T> List<T> findRowsByPrefix(Class<T> clazz, String table, String field, String prefix) {
+		return findRows(clazz, table, field, prefix, true);
+	}
+
+	private <T> List<T> findRows(Class<T> clazz, String table, String field, String key, boolean prefix) {
+		Table t = getTable(table);
+		List<JsonNode> found = new ArrayList<>();
+		t.lock.readLock().lock();
+		try {
+			if (t.secondary.isIndexed(field)) {
+				for (String id : prefix ? t.secondary.findPrefix(field, key) : t.secondary.find(field, key)) {
+					JsonNode row = t.rows.get(id);
+					if (row != null) {
+						found.add(row);
+					}
+				}
+			} else {
+				for (JsonNode row : t.rows.values()) {
+					String value = SecondaryIndexes.value(row, field);
+					if (value != null && (prefix ? value.startsWith(key) : value.equals(key))) {
+						found.add(row);
+					}
+				}
+				if (prefix) {
+					found.sort(Comparator.comparing(row -> SecondaryIndexes.value(row, field)));
+				}
+			}
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		List<T> result = new ArrayList<>(found.size());
+		for (JsonNode row : found) {
+			result.add(SimpleJsonDb.fromRow(row, clazz, table));
+		}
+		return result;
+	}
+
+	@Override
+	public int nextId() {
+		AtomicInteger counter;
+		synchronized (this) {
+			if (nextId == null) {
+				List<JsonNode> metadata = getTable(SimpleJsonDb.DB_METADATA_TABLE).copyRows();
+				int start = metadata.isEmpty() ? 1 : metadata.get(0).path("nextId").asInt(1);
+				nextId = new AtomicInteger(start);
+			}
+			counter = nextId;
+		}
+		return counter.getAndIncrement();
+	}
+
+	/**
+	 * Nothing to do: there is no durable storage
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Nothing to do: there are no background resources
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each table is written as a JSON file named as in SimpleJsonDb (DB_&lt;db&gt;_&lt;table&gt;.json).
+	 * The tables are read-locked together only while their rows are copied, and are written out
+	 * afterwards, into a temporary directory which is renamed to the target once they are all on
+	 * disk (as in SimpleJsonDb), so the target never holds a partial snapshot.
+	 */
+	@Override
+	public void snapshot(File target) throws IOException {
+		if (target.exists()) {
+			throw new IllegalArgumentException("Snapshot target already exists: " + target);
+		}
+		List<String> names = new ArrayList<>(tables.keySet());
+		Collections.sort(names);
+		List<Table> snapshotTables = new ArrayList<>();
+		for (String name : names) {
+			snapshotTables.add(tables.get(name));
+		}
+		Map<String, List<JsonNode>> copies = new LinkedHashMap<>();
+		int locked = 0;
+		try {
+			for (Table t : snapshotTables) {
+				t.lock.readLock().lock();
+				locked++;
+			}
+			for (int i = 0; i < names.size(); i++) {
+				Table t = snapshotTables.get(i);
+				if (t.initialized) {
+					copies.put(names.get(i), new ArrayList<>(t.rows.values()));
+				}
+			}
+		} finally {
+			for (int i = 0; i < locked; i++) {
+				snapshotTables.get(i).lock.readLock().unlock();
+			}
+		}
+		File parent = target.getAbsoluteFile().getParentFile();
+		File staging = Files.createTempDirectory(parent.toPath(), target.getName() + ".").toFile();
+		try {
+			for (Map.Entry<String, List<JsonNode>> copy : copies.entrySet()) {
+				DurableFiles.replace(new File(staging, getFilename(copy.getKey())),
+						os -> TableFormat.JSON.write(os, copy.getValue()));
+			}
+			Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			for (File f : staging.listFiles()) {
+				f.delete();
+			}
+			staging.delete();
+			throw e;
+		}
+		logger.info("snapshot(): Wrote {} tables of database={} to {}", copies.size(), dbName, target);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The snapshot's tables are read before any table is locked, then all replaced together.
+	 */
+	@Override
+	public void restore(File source) throws IOException {
+		String prefix = "DB_" + dbName + "_";
+		Map<String, List<JsonNode>> restored = new TreeMap<>();
+		String[] files = source.list();
+		if (files != null) {
+			for (String file : files) {
+				if (file.startsWith(prefix) && file.endsWith(".json")) {
+					List<JsonNode> rows = new ArrayList<>();
+					try (InputStream is = new FileInputStream(new File(source, file))) {
+						TableFormat.JSON.read(is, JsonNode.class).forEachRemaining(rows::add);
+					}
+					String table = file.substring(prefix.length(), file.length() - ".json".length());
+					intern(table, rows);
+					restored.put(table, rows);
+				}
+			}
+		}
+		if (restored.isEmpty()) {
+			throw new IllegalArgumentException("No tables of database " + dbName + " in " + source);
+		}
+		List<Table> restoredTables = new ArrayList<>();
+		for (String table : restored.keySet()) {
+			restoredTables.add(getTable(table));
+		}
+		int locked = 0;
+		try {
+			for (Table t : restoredTables) {
+				t.lock.writeLock().lock();
+				locked++;
+			}
+			int i = 0;
+			for (List<JsonNode> rows : restored.values()) {
+				restoredTables.get(i++).replaceRows(rows);
+			}
+		} finally {
+			for (int i = 0; i < locked; i++) {
+				restoredTables.get(i).lock.writeLock().unlock();
+			}
+		}
+		if (restored.containsKey(SimpleJsonDb.DB_METADATA_TABLE)) {
+			synchronized (this) {
+				nextId = null;
+			}
+		}
+		logger.info("restore(): Restored {} tables of database={} from {}", restored.size(), dbName, source);
+	}
+
+	private String getFilename(String table) {
+		return String.format("DB_%s_%s.json", dbName, table);
+	}
+
+	/**
+	 * Intern the declared fields (see internField) of a new row
+	 */
+	private void intern(String table, JsonNode row) {
+		Set<String> fields = declaredInterns.get(table);
+		if (fields != null && !offHeapRows) {
+			SimpleJsonDb.intern(internPool, fields, row);
+		}
+	}
+
+	private void intern(String table, List<JsonNode> rows) {
+		for (JsonNode row : rows) {
+			intern(table, row);
+		}
+	}
+
+	private Table getTable(String table) {
+		return tables.computeIfAbsent(table,
+				name -> new Table(newRowMap(), declaredIndexes.getOrDefault(table, Collections.emptySet()),
+						versions.newTable()));
+	}
+
+	/**
+	 * @return an empty map in which to keep the rows of a table
+	 */
+	private Map<Object, JsonNode> newRowMap() {
+		if (offHeapRows) {
+			return new OffHeapRowMap();
+		}
+		return packedRows ? new PackedRowMap() : new LinkedHashMap<>();
+	}
+
+	/** A table: its rows in insertion order, keyed by id */
+	private static class Table {
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		/**
+		 * Rows keyed by id, in insertion order. A row written by writeTable without a (unique) id
+		 * is kept under a key of its own, so that it can't be found by id.
+		 */
+		private final Map<Object, JsonNode> rows;
+		/** Ids of the rows which can be found by id, in order (see PrimaryKeyIndex.ID_ORDER) */
+		private final NavigableSet<String> orderedIds = new TreeSet<>(PrimaryKeyIndex.ID_ORDER);
+		/** Whether the table has been created (by initTable or a write) */
+		private boolean initialized;
+		private final SecondaryIndexes secondary = new SecondaryIndexes();
+		private final Versions.TableVersions rowVersions;
+
+		/**
+		 * @param rows          empty map in which to keep the rows
+		 * @param indexedFields fields on which secondary indexes have been declared
+		 */
+		Table(Map<Object, JsonNode> rows, Set<String> indexedFields, Versions.TableVersions rowVersions) {
+			this.rows = rows;
+			this.rowVersions = rowVersions;
+			for (String field : indexedFields) {
+				secondary.declare(field);
+			}
+		}
+
+		/**
+		 * Replace all the rows. Called with the write lock held.
+		 */
+		private void replaceRows(List<JsonNode> newRows) {
+			rows.clear();
+			orderedIds.clear();
+			for (JsonNode row : newRows) {
+				JsonNode id = row.get(SimpleJsonDb.ID_FIELD);
+				if (id == null || id.isNull() || rows.containsKey(id.asText())) {
+					rows.put(new Object(), row);
+				} else {
+					rows.put(id.asText(), row);
+					orderedIds.add(id.asText());
+				}
+			}
+			secondary.rebuild(newRows);
+			rowVersions.reset();
+			initialized = true;
+		}
+
+		/**
+		 * Check that a row (which must exist) has the version expected by the caller. Called with
+		 * the write lock held.
+		 */
+		private void checkVersion(String table, String id, String ifVersion) {
+			if (ifVersion != null && !ifVersion.equals(rowVersions.row(id))) {
+				throw new VersionConflictException(table, id, ifVersion, rowVersions.row(id));
+			}
+		}
+
+		private List<JsonNode> copyRows() {
+			lock.readLock().lock();
+			try {
+				return new ArrayList<>(rows.values());
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+}
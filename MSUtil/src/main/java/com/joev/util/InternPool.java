@@ -0,0 +1,95 @@
+package com.joev.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of canonical values, for sharing one copy of each value which occurs many times
+ * (e.g. an address shared by several customers) instead of holding a copy per occurrence.
+ * <p>
+ * Unlike String.intern, the pool never grows: it is a fixed array of slots, and each value has
+ * one slot (chosen by its hash code). A value whose slot holds an equal value is replaced by
+ * that one; otherwise it takes over the slot. So a value may occasionally be kept as a second
+ * copy after a collision, but the pool costs one reference per slot however many distinct
+ * values pass through it, and holds on to at most that many of them.
+ * <p>
+ * Each slot also holds the hash code of its value, so a value which collides with a different
+ * one costs a single memory access, without comparing the two.
+ * <p>
+ * Thread-safe, without locking: the slots are read and written racily, but a value is only
+ * returned after equals has confirmed it, and a racing intern at worst keeps a second copy.
+ * 
+ * @param <T> Type of the values; they must be immutable (e.g. Strings, or Jackson TextNodes),
+ *        and equal values must be interchangeable
+ */
+public class InternPool<T> {
+	private final Object[] values;
+	private final int[] hashes;
+	private final int mask;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param size number of slots (rounded up to a power of 2)
+	 */
+	public InternPool(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("InternPool size must be positive: " + size);
+		}
+		int capacity = (size == 1) ? 1 : Integer.highestOneBit(size - 1) << 1;
+		values = new Object[capacity];
+		hashes = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param value a value (not null)
+	 * @return an equal value from the pool, if there is one; otherwise the value itself, which
+	 *         becomes the pool's copy
+	 */
+	public T intern(T value) {
+		int h = value.hashCode();
+		int slot = (h ^ (h >>> 16)) & mask;
+		if (hashes[slot] == h) {
+			@SuppressWarnings("unchecked")
+			T canonical = (T) values[slot];
+			if (canonical != null && canonical.equals(value)) {
+				hits.increment();
+				return canonical;
+			}
+		}
+		values[slot] = value;
+		hashes[slot] = h;
+		misses.increment();
+		return value;
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * @return the number of values replaced by a copy from the pool
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of values which weren't in the pool
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Empty the pool (the counters are kept)
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		Arrays.fill(hashes, 0);
+	}
+}
@@ -0,0 +1,47 @@
+package com.joev.util;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * JSON merge patch (RFC 7386): a patch is a JSON document describing the changes to be made to a
+ * target document. A member of a patch object replaces the target's member of the same name (or
+ * is merged into it, if both are objects); a member whose value is null removes the target's
+ * member. A patch which isn't an object replaces the target entirely.
+ */
+public class JsonMergePatch {
+
+	private JsonMergePatch() {
+	}
+
+	/**
+	 * Apply a merge patch to a document. Neither the document nor the patch is modified.
+	 * 
+	 * @param target the document to be patched (may be null)
+	 * @param patch  the patch
+	 * @return the patched document
+	 */
+	public static JsonNode apply(JsonNode target, JsonNode patch) {
+		if (!patch.isObject()) {
+			return patch;
+		}
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+		if (target != null && target.isObject()) {
+			// A shallow copy is enough: members which are patched are replaced, not modified
+			result.putAll((ObjectNode) target);
+		}
+		for (Iterator<Map.Entry<String, JsonNode>> it = patch.getFields(); it.hasNext();) {
+			Map.Entry<String, JsonNode> member = it.next();
+			if (member.getValue().isNull()) {
+				result.remove(member.getKey());
+			} else {
+				result.put(member.getKey(), apply(result.get(member.getKey()), member.getValue()));
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,42 @@
+package com.joev.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Tables stored as a pretty-printed JSON array of objects
+ */
+class JsonTableFormat implements TableFormat {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Override
+	public String getExtension() {
+		return ".json";
+	}
+
+	@Override
+	public void write(OutputStream os, List<JsonNode> rows) throws IOException {
+		mapper.writerWithDefaultPrettyPrinter().writeValue(os, rows);
+	}
+
+	@Override
+	public <T> RowReader<T> read(InputStream is, Class<T> clazz) throws IOException {
+		return new TableReader<>(is, clazz);
+	}
+
+	@Override
+	public <T> RowReader<T> read(ByteBuffer buf, Class<T> clazz) throws IOException {
+		return new TableReader<>(new ByteBufferInputStream(buf), clazz);
+	}
+
+	@Override
+	public String toString() {
+		return "JSON";
+	}
+}
@@ -0,0 +1,233 @@
+package com.joev.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to int values, without boxing: the keys and values are kept in two
+ * parallel arrays, with open addressing (linear probing) rather than Entry objects. Each slot
+ * takes 12 bytes and the table is kept between 3/8 and 3/4 full, so an entry costs 16 to 32
+ * bytes, with no objects per entry for the garbage collector to trace. Removal shifts later
+ * entries back into the gap, so there are no tombstones and lookups don't slow down as entries
+ * come and go.
+ * <p>
+ * Not thread-safe: callers must synchronize access if the map is shared.
+ * <p>
+ * Used by PackedRowMap, to find rows by their numeric ids.
+ */
+public class LongIntHashMap {
+	/** Value returned by get, put and remove when the key isn't in the map */
+	public static final int NO_VALUE = -1;
+
+	/** Key which marks an empty slot. An entry with this key is kept outside the table. */
+	private static final long EMPTY = 0;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+	/** Largest size before the table must grow */
+	private int maxSize;
+	private boolean hasEmptyKey;
+	private int emptyKeyValue;
+
+	public LongIntHashMap() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * @param expectedSize number of entries for which to make room at the start
+	 */
+	public LongIntHashMap(int expectedSize) {
+		allocate(tableSize(expectedSize));
+	}
+
+	/**
+	 * @return the value for a key, or NO_VALUE if the key isn't in the map
+	 */
+	public int get(long key) {
+		if (key == EMPTY) {
+			return hasEmptyKey ? emptyKeyValue : NO_VALUE;
+		}
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask);; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+			if (keys[i] == EMPTY) {
+				return NO_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the key is in the map
+	 */
+	public boolean containsKey(long key) {
+		if (key == EMPTY) {
+			return hasEmptyKey;
+		}
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask);; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return true;
+			}
+			if (keys[i] == EMPTY) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Set the value for a key
+	 * 
+	 * @return the key's previous value, or NO_VALUE if the key wasn't in the map
+	 */
+	public int put(long key, int value) {
+		if (key == EMPTY) {
+			int old = hasEmptyKey ? emptyKeyValue : NO_VALUE;
+			if (!hasEmptyKey) {
+				hasEmptyKey = true;
+				size++;
+			}
+			emptyKeyValue = value;
+			return old;
+		}
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				int old = values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > maxSize) {
+			rehash(keys.length * 2);
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * Remove a key from the map
+	 * 
+	 * @return the key's value, or NO_VALUE if the key wasn't in the map
+	 */
+	public int remove(long key) {
+		if (key == EMPTY) {
+			if (!hasEmptyKey) {
+				return NO_VALUE;
+			}
+			hasEmptyKey = false;
+			size--;
+			return emptyKeyValue;
+		}
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; keys[i] != key; i = (i + 1) & mask) {
+			if (keys[i] == EMPTY) {
+				return NO_VALUE;
+			}
+		}
+		int old = values[i];
+		size--;
+		// Move back any later entry of the same run which may no longer be found past the gap:
+		// one whose home slot isn't (cyclically) between the gap and the entry
+		int gap = i;
+		for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = EMPTY;
+		return old;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all the entries, keeping the current capacity
+	 */
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		hasEmptyKey = false;
+	}
+
+	/**
+	 * Visit every entry, in no particular order. The map mustn't be changed during the visit.
+	 */
+	public void forEach(EntryVisitor visitor) {
+		if (hasEmptyKey) {
+			visitor.visit(EMPTY, emptyKeyValue);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				visitor.visit(keys[i], values[i]);
+			}
+		}
+	}
+
+	/** Receives the entries of a map (see forEach) */
+	@FunctionalInterface
+	public interface EntryVisitor {
+		void visit(long key, int value);
+	}
+
+	/**
+	 * @return the home slot of a key: where probing for it starts
+	 */
+	private static int slot(long key, int mask) {
+		// Murmur3's 64-bit finalizer, so that consecutive ids spread over the whole table
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+
+	/**
+	 * @return a table size (a power of 2) which can hold a number of entries without growing
+	 */
+	private static int tableSize(int entries) {
+		long needed = Math.max(MIN_CAPACITY, (long) entries * 4 / 3 + 1);
+		if (needed > 1 << 30) {
+			throw new IllegalArgumentException("Too many entries: " + entries);
+		}
+		return Integer.highestOneBit((int) needed - 1) << 1;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		maxSize = capacity / 4 * 3;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != EMPTY) {
+				int i = slot(oldKeys[j], mask);
+				while (keys[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
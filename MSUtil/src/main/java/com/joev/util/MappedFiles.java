@@ -0,0 +1,120 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps files memory-mapped for reading, so that repeated reads of a file don't need any system
+ * calls or copying into the heap.
+ * <p>
+ * Each mapping records the identity (file key, i.e. the inode where supported), length and
+ * modification time of the file it maps, and the file is remapped when any of them change. Table
+ * files are only ever replaced by renaming a complete new file over them (see DurableFiles), so an
+ * existing mapping continues to show the complete old file until it is remapped, and never a
+ * partly-written one.
+ */
+class MappedFiles {
+	private static final Logger logger = LogManager.getLogger(MappedFiles.class);
+
+	private final Map<File, Mapping> mappings = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the contents of a file, mapping (or remapping) it if necessary
+	 * 
+	 * @param file file to be read
+	 * @return a read-only buffer positioned at the start of the file, for the caller's exclusive
+	 *         use
+	 * @throws IOException if the file can't be read, or is too large to be mapped
+	 */
+	ByteBuffer map(File file) throws IOException {
+		Stamp stamp = Stamp.of(file);
+		Mapping mapping = mappings.get(file);
+		if (mapping == null || !mapping.stamp.equals(stamp)) {
+			if (stamp.length > Integer.MAX_VALUE) {
+				throw new IOException("File too large to be mapped: " + file);
+			}
+			try (FileChannel ch = open(file)) {
+				// Keep the stamp taken before opening the file. If the file was replaced in between,
+				// the mapping is of the new file under the old one's stamp, so the next call just
+				// maps it again; a stamp taken now could instead be that of a newer file than the
+				// one opened, and keep a stale mapping in use.
+				MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				mapping = new Mapping(stamp, buffer);
+			}
+			logger.debug("map(): Mapped {} ({} bytes)", file, mapping.buffer.capacity());
+			mappings.put(file, mapping);
+		}
+		// Each caller gets its own position and limit
+		return mapping.buffer.duplicate();
+	}
+
+	/**
+	 * Open a file to be mapped
+	 */
+	FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Forget the mapping of a file (e.g. because it has been replaced or deleted). The mapped
+	 * memory is released once no reader is still using it.
+	 */
+	void unmap(File file) {
+		mappings.remove(file);
+	}
+
+	/** A mapped file, and the stamp of the file when it was mapped */
+	private static class Mapping {
+		final Stamp stamp;
+		final ByteBuffer buffer;
+
+		Mapping(Stamp stamp, ByteBuffer buffer) {
+			this.stamp = stamp;
+			this.buffer = buffer.asReadOnlyBuffer();
+		}
+	}
+
+	/** Identity, length and modification time of a file */
+	private static class Stamp {
+		final Object fileKey;
+		final long length;
+		final long modified;
+
+		private Stamp(Object fileKey, long length, long modified) {
+			this.fileKey = fileKey;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		static Stamp of(File file) throws IOException {
+			BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			return new Stamp(attrs.fileKey(), attrs.size(), attrs.lastModifiedTime().toMillis());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Stamp)) {
+				return false;
+			}
+			Stamp other = (Stamp) o;
+			return Objects.equals(fileKey, other.fileKey) && length == other.length && modified == other.modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(fileKey, length, modified);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.joev.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Rows keyed by id, as in a LinkedHashMap, but with the rows themselves held outside the Java
+ * heap: each row is encoded (as UTF-8 JSON) into direct ByteBuffers ("slabs"), and only the keys
+ * and the location of each row are kept on the heap. A row is decoded into a new JsonNode each
+ * time it is read, so changing a JsonNode returned by get doesn't change the stored row.
+ * <p>
+ * Replacing or removing a row leaves its old bytes behind as garbage; when the garbage outweighs
+ * the live rows, the live rows are copied into new slabs and the old ones are released (direct
+ * buffers are freed when they are garbage collected).
+ * <p>
+ * Not thread-safe: InMemoryDb calls it under its table locks. Concurrent reads are safe.
+ */
+class OffHeapRowMap extends AbstractMap<Object, JsonNode> {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	static final int DEFAULT_SLAB_SIZE = 8 * 1024 * 1024;
+	/** Bytes stored before each row: its length */
+	private static final int HEADER_SIZE = 4;
+
+	private final int slabSize;
+	/** Location of each row (see location()), in insertion order */
+	private final LinkedHashMap<Object, Long> locations = new LinkedHashMap<>();
+	private final List<ByteBuffer> slabs = new ArrayList<>();
+	/** Slab into which new rows are written; its position is where the next row goes */
+	private ByteBuffer current;
+	private long liveBytes;
+	private long garbageBytes;
+
+	OffHeapRowMap() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * @param slabSize size of each direct buffer (a larger row gets a buffer of its own)
+	 */
+	OffHeapRowMap(int slabSize) {
+		this.slabSize = slabSize;
+	}
+
+	@Override
+	public int size() {
+		return locations.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return locations.containsKey(key);
+	}
+
+	@Override
+	public JsonNode get(Object key) {
+		Long location = locations.get(key);
+		return (location == null) ? null : decode(location);
+	}
+
+	/**
+	 * @return the row previously stored under the key, or null if there was none
+	 */
+	@Override
+	public JsonNode put(Object key, JsonNode row) {
+		byte[] bytes;
+		try {
+			bytes = mapper.writeValueAsBytes(row);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Long old = locations.put(key, append(bytes));
+		liveBytes += HEADER_SIZE + bytes.length;
+		if (old == null) {
+			return null;
+		}
+		JsonNode oldRow = decode(old);
+		discard(old);
+		return oldRow;
+	}
+
+	@Override
+	public JsonNode remove(Object key) {
+		Long old = locations.remove(key);
+		if (old == null) {
+			return null;
+		}
+		JsonNode oldRow = decode(old);
+		discard(old);
+		return oldRow;
+	}
+
+	@Override
+	public void clear() {
+		locations.clear();
+		slabs.clear();
+		current = null;
+		liveBytes = 0;
+		garbageBytes = 0;
+	}
+
+	/**
+	 * @return the number of bytes of direct memory held
+	 */
+	long offHeapBytes() {
+		long bytes = 0;
+		for (ByteBuffer slab : slabs) {
+			bytes += slab.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the keys, in insertion order, without decoding any rows
+	 */
+	@Override
+	public Set<Object> keySet() {
+		return Collections.unmodifiableSet(locations.keySet());
+	}
+
+	@Override
+	public Collection<JsonNode> values() {
+		return new AbstractCollection<JsonNode>() {
+			@Override
+			public Iterator<JsonNode> iterator() {
+				Iterator<Long> it = locations.values().iterator();
+				return new Iterator<JsonNode>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public JsonNode next() {
+						return decode(it.next());
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return locations.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<Object, JsonNode>> entrySet() {
+		return new AbstractSet<Map.Entry<Object, JsonNode>>() {
+			@Override
+			public Iterator<Map.Entry<Object, JsonNode>> iterator() {
+				Iterator<Map.Entry<Object, Long>> it = locations.entrySet().iterator();
+				return new Iterator<Map.Entry<Object, JsonNode>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Map.Entry<Object, JsonNode> next() {
+						Map.Entry<Object, Long> entry = it.next();
+						return new SimpleImmutableEntry<>(entry.getKey(), decode(entry.getValue()));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return locations.size();
+			}
+		};
+	}
+
+	/**
+	 * @return a location: the index of the slab in the high 32 bits, the offset in the low 32
+	 */
+	private static long location(int slab, int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	/**
+	 * Write a row's bytes after the last row
+	 * 
+	 * @return the row's location
+	 */
+	private long append(byte[] bytes) {
+		int needed = HEADER_SIZE + bytes.length;
+		if (current == null || current.remaining() < needed) {
+			current = ByteBuffer.allocateDirect(Math.max(slabSize, needed));
+			slabs.add(current);
+		}
+		long location = location(slabs.size() - 1, current.position());
+		current.putInt(bytes.length);
+		current.put(bytes);
+		return location;
+	}
+
+	private JsonNode decode(long location) {
+		// A duplicate of the slab, so that concurrent readers don't share a position
+		ByteBuffer buf = slabs.get((int) (location >>> 32)).duplicate();
+		buf.position((int) location);
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		try {
+			return mapper.readTree(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Account for a row's bytes becoming garbage, and compact the slabs if there is too much
+	 */
+	private void discard(long location) {
+		ByteBuffer slab = slabs.get((int) (location >>> 32));
+		int size = HEADER_SIZE + slab.getInt((int) location);
+		liveBytes -= size;
+		garbageBytes += size;
+		if (garbageBytes > liveBytes && garbageBytes > slabSize) {
+			compact();
+		}
+	}
+
+	/**
+	 * Copy the live rows into new slabs, in insertion order, and release the old slabs
+	 */
+	private void compact() {
+		List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+		slabs.clear();
+		current = null;
+		for (Map.Entry<Object, Long> entry : locations.entrySet()) {
+			long location = entry.getValue();
+			ByteBuffer buf = oldSlabs.get((int) (location >>> 32)).duplicate();
+			buf.position((int) location);
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			entry.setValue(append(bytes));
+		}
+		garbageBytes = 0;
+	}
+}
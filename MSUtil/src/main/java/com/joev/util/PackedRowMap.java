@@ -0,0 +1,401 @@
+package com.joev.util;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.node.TextNode;
+
+/**
+ * Rows keyed by id, as in a LinkedHashMap, but packed for a small heap footprint when the ids
+ * are numbers (as those handed out by nextId are) and the rows have the same fields. Such a row
+ * is kept as its id, a long, and a reference to the value of each of its other fields, each
+ * field in an array of its own, at the row's number; a LongIntHashMap maps the ids to row
+ * numbers. So there is no row object, id String or map Entry per row: only the field values,
+ * which are shared with other rows when interned (see InMemoryDb.internField). A row is built
+ * into a new JsonNode each time it is read, so changing a JsonNode returned by get doesn't change
+ * the stored row.
+ * <p>
+ * The fields are those of the first row stored with a numeric key, in the same order. Other
+ * rows (whose key isn't a number in canonical form, whose id field isn't that number as text,
+ * whose fields are different, or which hold objects or arrays) are kept whole, with their keys,
+ * in among the packed rows.
+ * <p>
+ * Removing a row leaves a hole; when the holes outnumber the rows, the rows are moved together,
+ * in insertion order.
+ * <p>
+ * Not thread-safe: InMemoryDb calls it under its table locks. Concurrent reads are safe.
+ */
+class PackedRowMap extends AbstractMap<Object, JsonNode> {
+	private static final int MIN_CAPACITY = 16;
+	/** Row number of a key which isn't in the map */
+	private static final int NO_ROW = LongIntHashMap.NO_VALUE;
+	/** Returned by parseKey for a key which isn't a number (ids are never negative) */
+	private static final long NOT_A_KEY = -1;
+	/** Id of a row which is kept whole (see others) */
+	private static final long OTHER = -2;
+	/** Id of a row which has been removed */
+	private static final long HOLE = -3;
+
+	/** Row numbers of the packed rows, by id */
+	private final LongIntHashMap packedRows = new LongIntHashMap();
+	/** Row numbers of the rows kept whole, by key */
+	private final Map<Object, Integer> otherRows = new HashMap<>();
+	/** Names of the fields of the packed rows, in order (null until a row is stored) */
+	private String[] fields;
+	/** Position of the id field in fields */
+	private int idField;
+	/** Id of each row (or OTHER, or HOLE) */
+	private long[] ids = new long[MIN_CAPACITY];
+	/** Values of each field of the packed rows (null for the id field), by row number */
+	private JsonNode[][] columns;
+	/** Key and row of each row kept whole, by row number */
+	private Object[] others = new Object[MIN_CAPACITY];
+	/** Number of rows, and of row numbers used (by rows or holes) */
+	private int size;
+	private int used;
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return rowOf(key) != NO_ROW;
+	}
+
+	@Override
+	public JsonNode get(Object key) {
+		int row = rowOf(key);
+		return (row == NO_ROW) ? null : build(row);
+	}
+
+	/**
+	 * @return the row previously stored under the key, or null if there was none
+	 */
+	@Override
+	public JsonNode put(Object key, JsonNode row) {
+		int number = rowOf(key);
+		if (number != NO_ROW) {
+			// Keep the row's place in the order
+			JsonNode old = build(number);
+			unset(number);
+			set(number, key, row);
+			return old;
+		}
+		if (used == ids.length) {
+			grow();
+		}
+		set(used++, key, row);
+		size++;
+		return null;
+	}
+
+	@Override
+	public JsonNode remove(Object key) {
+		int row = rowOf(key);
+		if (row == NO_ROW) {
+			return null;
+		}
+		JsonNode old = build(row);
+		unset(row);
+		size--;
+		if (used - size > size && used - size > MIN_CAPACITY) {
+			compact();
+		}
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		packedRows.clear();
+		otherRows.clear();
+		fields = null;
+		columns = null;
+		ids = new long[MIN_CAPACITY];
+		others = new Object[MIN_CAPACITY];
+		size = 0;
+		used = 0;
+	}
+
+	@Override
+	public Collection<JsonNode> values() {
+		return new AbstractCollection<JsonNode>() {
+			@Override
+			public Iterator<JsonNode> iterator() {
+				RowIterator rows = new RowIterator();
+				return new Iterator<JsonNode>() {
+					@Override
+					public boolean hasNext() {
+						return rows.hasNext();
+					}
+
+					@Override
+					public JsonNode next() {
+						return build(rows.next());
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<Object, JsonNode>> entrySet() {
+		return new AbstractSet<Map.Entry<Object, JsonNode>>() {
+			@Override
+			public Iterator<Map.Entry<Object, JsonNode>> iterator() {
+				RowIterator rows = new RowIterator();
+				return new Iterator<Map.Entry<Object, JsonNode>>() {
+					@Override
+					public boolean hasNext() {
+						return rows.hasNext();
+					}
+
+					@Override
+					public Map.Entry<Object, JsonNode> next() {
+						int row = rows.next();
+						return new SimpleImmutableEntry<>(key(row), build(row));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/** Visits the row numbers of the rows, in order, skipping the holes */
+	private class RowIterator implements Iterator<Integer> {
+		private int next = skipHoles(0);
+
+		@Override
+		public boolean hasNext() {
+			return next < used;
+		}
+
+		@Override
+		public Integer next() {
+			if (next >= used) {
+				throw new NoSuchElementException();
+			}
+			int row = next;
+			next = skipHoles(next + 1);
+			return row;
+		}
+
+		private int skipHoles(int row) {
+			while (row < used && ids[row] == HOLE) {
+				row++;
+			}
+			return row;
+		}
+	}
+
+	/**
+	 * @return the number of the row with a key, or NO_ROW if there is none
+	 */
+	private int rowOf(Object key) {
+		long id = (key instanceof String) ? parseKey((String) key) : NOT_A_KEY;
+		if (id != NOT_A_KEY) {
+			int row = packedRows.get(id);
+			if (row != NO_ROW) {
+				return row;
+			}
+		}
+		Integer row = otherRows.get(key);
+		return (row == null) ? NO_ROW : row;
+	}
+
+	/**
+	 * Store a row at a row number which is a hole (or hasn't been used yet)
+	 */
+	private void set(int number, Object key, JsonNode row) {
+		long id = (key instanceof String) ? parseKey((String) key) : NOT_A_KEY;
+		if (fields == null && id != NOT_A_KEY) {
+			setFields(row);
+		}
+		if (id != NOT_A_KEY && packable(id, row)) {
+			ids[number] = id;
+			for (int f = 0; f < fields.length; f++) {
+				if (f != idField) {
+					columns[f][number] = row.get(fields[f]);
+				}
+			}
+			packedRows.put(id, number);
+		} else {
+			ids[number] = OTHER;
+			others[number] = new SimpleImmutableEntry<>(key, row);
+			otherRows.put(key, number);
+		}
+	}
+
+	/**
+	 * Make a row number into a hole
+	 */
+	private void unset(int number) {
+		if (ids[number] == OTHER) {
+			otherRows.remove(key(number));
+			others[number] = null;
+		} else {
+			packedRows.remove(ids[number]);
+			for (int f = 0; f < fields.length; f++) {
+				if (f != idField) {
+					columns[f][number] = null;
+				}
+			}
+		}
+		ids[number] = HOLE;
+	}
+
+	/**
+	 * Take the fields of the packed rows from a row, if it has an id field
+	 */
+	private void setFields(JsonNode row) {
+		if (!row.isObject() || !row.has(SimpleJsonDb.ID_FIELD)) {
+			return;
+		}
+		fields = new String[row.size()];
+		columns = new JsonNode[fields.length][];
+		Iterator<String> names = row.getFieldNames();
+		for (int f = 0; f < fields.length; f++) {
+			fields[f] = names.next();
+			if (fields[f].equals(SimpleJsonDb.ID_FIELD)) {
+				idField = f;
+			} else {
+				columns[f] = new JsonNode[ids.length];
+			}
+		}
+	}
+
+	/**
+	 * @return whether a row can be packed: it has the fields of the packed rows, in the same
+	 *         order, with its id as text and no objects or arrays
+	 */
+	private boolean packable(long id, JsonNode row) {
+		if (fields == null || !row.isObject() || row.size() != fields.length) {
+			return false;
+		}
+		Iterator<Map.Entry<String, JsonNode>> it = row.getFields();
+		for (int f = 0; f < fields.length; f++) {
+			Map.Entry<String, JsonNode> field = it.next();
+			if (!field.getKey().equals(fields[f]) || !field.getValue().isValueNode()) {
+				return false;
+			}
+		}
+		// The id is rebuilt from the key, so it must be the same text
+		JsonNode idNode = row.get(SimpleJsonDb.ID_FIELD);
+		return idNode.isTextual() && idNode.getTextValue().equals(Long.toString(id));
+	}
+
+	private Object key(int row) {
+		return (ids[row] == OTHER) ? ((Map.Entry<?, ?>) others[row]).getKey() : Long.toString(ids[row]);
+	}
+
+	private JsonNode build(int row) {
+		if (ids[row] == OTHER) {
+			return (JsonNode) ((Map.Entry<?, ?>) others[row]).getValue();
+		}
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		for (int f = 0; f < fields.length; f++) {
+			node.put(fields[f], (f == idField) ? TextNode.valueOf(Long.toString(ids[row])) : columns[f][row]);
+		}
+		return node;
+	}
+
+	/**
+	 * @return the id of a key, or NOT_A_KEY if it isn't a number in canonical form (no sign, no
+	 *         leading zeros), which couldn't be turned back into the same key
+	 */
+	private static long parseKey(String key) {
+		if (key.isEmpty() || key.length() > 19 || (key.charAt(0) == '0' && key.length() > 1)) {
+			return NOT_A_KEY;
+		}
+		long id = 0;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				return NOT_A_KEY;
+			}
+			id = id * 10 + (c - '0');
+			if (id < 0) {
+				// Too large for a long
+				return NOT_A_KEY;
+			}
+		}
+		return id;
+	}
+
+	private void grow() {
+		resize(ids.length * 2);
+	}
+
+	private void resize(int capacity) {
+		ids = Arrays.copyOf(ids, capacity);
+		others = Arrays.copyOf(others, capacity);
+		if (columns != null) {
+			for (int f = 0; f < columns.length; f++) {
+				if (columns[f] != null) {
+					columns[f] = Arrays.copyOf(columns[f], capacity);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move the rows together, in order, over the holes
+	 */
+	private void compact() {
+		int to = 0;
+		for (int from = 0; from < used; from++) {
+			if (ids[from] == HOLE) {
+				continue;
+			}
+			if (to != from) {
+				ids[to] = ids[from];
+				others[to] = others[from];
+				if (ids[to] == OTHER) {
+					otherRows.put(key(to), to);
+				} else {
+					packedRows.put(ids[to], to);
+				}
+				if (columns != null) {
+					for (JsonNode[] column : columns) {
+						if (column != null) {
+							column[to] = column[from];
+						}
+					}
+				}
+			}
+			to++;
+		}
+		used = to;
+		Arrays.fill(ids, used, ids.length, HOLE);
+		Arrays.fill(others, used, others.length, null);
+		if (columns != null) {
+			for (JsonNode[] column : columns) {
+				if (column != null) {
+					Arrays.fill(column, used, column.length, null);
+				}
+			}
+		}
+		resize(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, used)) * 2));
+	}
+}
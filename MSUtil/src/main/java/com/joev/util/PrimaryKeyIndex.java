@@ -0,0 +1,119 @@
+package com.joev.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Maps the id of each row of a SimpleJsonDb table to the row's position in the table, so that
+ * single-row reads, updates and deletes don't have to scan the table. The ids are also kept in
+ * order (see ID_ORDER), for range scans.
+ * <p>
+ * The index is only kept in memory: it is built from the table's rows when the table is loaded,
+ * which costs little beside parsing the rows, and isn't saved. Rows without an id (e.g. in the
+ * Metadata table) aren't indexed.
+ */
+class PrimaryKeyIndex {
+	/**
+	 * Order of row ids: ids which are integers (strings of digits, without leading zeros) are
+	 * ordered numerically, so "99" comes before "100", and come before all other ids, which are
+	 * ordered as text.
+	 */
+	static final Comparator<String> ID_ORDER = (a, b) -> {
+		boolean aNumeric = isNumeric(a);
+		boolean bNumeric = isNumeric(b);
+		if (aNumeric && bNumeric) {
+			// A shorter string of digits is a smaller number
+			int c = Integer.compare(a.length(), b.length());
+			return (c != 0) ? c : a.compareTo(b);
+		}
+		if (aNumeric != bNumeric) {
+			return aNumeric ? -1 : 1;
+		}
+		return a.compareTo(b);
+	};
+
+	private final Map<String, Integer> positions = new HashMap<>();
+	private final NavigableSet<String> orderedIds = new TreeSet<>(ID_ORDER);
+
+	/**
+	 * @return position of the row with the specified id, or -1 if there is none
+	 */
+	int get(String id) {
+		Integer pos = positions.get(id);
+		return (pos == null) ? -1 : pos;
+	}
+
+	void put(String id, int pos) {
+		positions.put(id, pos);
+		orderedIds.add(id);
+	}
+
+	void remove(String id) {
+		positions.remove(id);
+		orderedIds.remove(id);
+	}
+
+	int size() {
+		return positions.size();
+	}
+
+	/**
+	 * @param afterId id after which to start (exclusive), or null to start at the beginning
+	 * @param limit   maximum number of ids to return
+	 * @return ids in order (see ID_ORDER)
+	 */
+	List<String> idsAfter(String afterId, int limit) {
+		List<String> ids = new ArrayList<>(Math.min(limit, orderedIds.size()));
+		for (String id : (afterId == null) ? orderedIds : orderedIds.tailSet(afterId, false)) {
+			if (ids.size() >= limit) {
+				break;
+			}
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	private static boolean isNumeric(String id) {
+		int n = id.length();
+		if (n == 0 || (n > 1 && id.charAt(0) == '0')) {
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rebuild the index from a table's rows. Null entries (deleted rows) and rows without an id
+	 * are skipped.
+	 */
+	void rebuild(List<JsonNode> rows) {
+		positions.clear();
+		orderedIds.clear();
+		for (int i = 0; i < rows.size(); i++) {
+			String id = id(rows.get(i));
+			if (id != null) {
+				put(id, i);
+			}
+		}
+	}
+
+	/**
+	 * @return the row's id, or null if it has none (or the row is null)
+	 */
+	private static String id(JsonNode row) {
+		JsonNode id = (row == null) ? null : row.get(SimpleJsonDb.ID_FIELD);
+		return (id == null) ? null : id.asText();
+	}
+}
@@ -0,0 +1,16 @@
+package com.joev.util;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Reads the rows of a table file one at a time. Closing the reader releases the file; a reader
+ * closes itself once its last row has been read.
+ * 
+ * @param <T> Type of the rows
+ */
+public interface RowReader<T> extends Iterator<T>, Closeable {
+
+	@Override
+	void close();
+}
@@ -8,6 +8,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,14 +22,21 @@ import org.apache.logging.log4j.Logger;
 public class SHClient {
 	private static final Logger logger = LogManager.getLogger(SHClient.class);
 	
-	/** Request methods */
-	public enum RM {POST, GET, PUT, DELETE}
+	/**
+	 * Request methods. HttpURLConnection doesn't support PATCH, so a PATCH is sent as a POST with
+	 * an X-HTTP-Method-Override header.
+	 */
+	public enum RM {POST, GET, PUT, DELETE, PATCH}
+	
+	private static final String METHOD_OVERRIDE_HEADER = "X-HTTP-Method-Override";
 	
 	/** Request properties */
 	public enum RP {
 		ACC_JSON("Accept", "application/json"),
 		ACC_TEXT("Accept", "text/*"),
 		CON_JSON("Content-Type", "application/json"),
+		ACC_NDJSON("Accept", "application/x-ndjson"),
+		CON_NDJSON("Content-Type", "application/x-ndjson"),
 		;
 		String attr;
 		String val;
@@ -41,22 +49,48 @@ public class SHClient {
 	/**
 	 * Utility routine to construct and drive an HTTP request, returning the HTTP response
 	 * @param url URL to be contacted
-	 * @param requestMethod POST, GET, PUT, or DELETE (see 'RM' enum)
+	 * @param requestMethod POST, GET, PUT, DELETE, or PATCH (see 'RM' enum)
 	 * @param body request body text (may be null)
 	 * @param requestProperties list of request properties (see 'RP' enum)
 	 * @return SHResp encapsulating the interesting elements from the HTTP response
 	 * @throws Exception
 	 */
 	public static SHResp doHttp(String url, RM requestMethod, String body, RP... requestProperties) throws IOException {
+		return doHttp(url, requestMethod, body, Collections.emptyMap(), requestProperties);
+	}
+	
+	/**
+	 * Utility routine to construct and drive an HTTP request with additional headers (e.g.
+	 * If-Match), returning the HTTP response
+	 * @param url URL to be contacted
+	 * @param requestMethod POST, GET, PUT, DELETE, or PATCH (see 'RM' enum)
+	 * @param body request body text (may be null)
+	 * @param headers additional request headers, by name
+	 * @param requestProperties list of request properties (see 'RP' enum)
+	 * @return SHResp encapsulating the interesting elements from the HTTP response
+	 * @throws Exception
+	 */
+	public static SHResp doHttp(String url, RM requestMethod, String body, Map<String, String> headers,
+			RP... requestProperties) throws IOException {
 		// Set up the HttpURLConnection
 		URL reqUrl = new URL(url);
 		HttpURLConnection con = (HttpURLConnection) reqUrl.openConnection();
-		con.setRequestMethod(requestMethod.toString());
 		HashMap<String, List<String>> rpLog = new HashMap<>();
+		if (requestMethod == RM.PATCH) {
+			con.setRequestMethod(RM.POST.toString());
+			rpLog.put(METHOD_OVERRIDE_HEADER, Arrays.asList(requestMethod.toString()));
+			con.setRequestProperty(METHOD_OVERRIDE_HEADER, requestMethod.toString());
+		} else {
+			con.setRequestMethod(requestMethod.toString());
+		}
 		for (RP rp : requestProperties) {
 			rpLog.put(rp.attr, Arrays.asList(rp.val));
 			con.setRequestProperty(rp.attr, rp.val);
 		}
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			rpLog.put(header.getKey(), Arrays.asList(header.getValue()));
+			con.setRequestProperty(header.getKey(), header.getValue());
+		}
 		if (body != null) {
 			con.setDoOutput(true);
 			try(OutputStream os = con.getOutputStream()) {
@@ -0,0 +1,129 @@
+package com.joev.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * The secondary indexes of a table: for each indexed field, a sorted map from the field's value
+ * (as text) to the ids of the rows having that value. Being sorted, an index supports prefix
+ * lookups as well as exact ones. Rows in which an indexed field is missing or null are not
+ * indexed on that field.
+ * <p>
+ * Not thread-safe: the owning table's lock must be held.
+ */
+class SecondaryIndexes {
+	private final Map<String, NavigableMap<String, Set<String>>> indexes = new HashMap<>();
+
+	/**
+	 * Declare an index on a field. A newly-declared index is empty until it is rebuilt.
+	 * 
+	 * @return true if the index is new, false if it was already declared
+	 */
+	boolean declare(String field) {
+		return indexes.putIfAbsent(field, new TreeMap<>()) == null;
+	}
+
+	boolean isIndexed(String field) {
+		return indexes.containsKey(field);
+	}
+
+	/**
+	 * Rebuild all the indexes from a table's rows. Null entries (deleted rows) are skipped.
+	 */
+	void rebuild(List<JsonNode> rows) {
+		for (String field : indexes.keySet()) {
+			rebuild(field, rows);
+		}
+	}
+
+	/**
+	 * Rebuild the index on one field from a table's rows
+	 */
+	void rebuild(String field, List<JsonNode> rows) {
+		NavigableMap<String, Set<String>> index = indexes.get(field);
+		index.clear();
+		for (JsonNode row : rows) {
+			if (row != null) {
+				add(index, field, row);
+			}
+		}
+	}
+
+	/**
+	 * Add a row to all the indexes
+	 */
+	void add(JsonNode row) {
+		for (Map.Entry<String, NavigableMap<String, Set<String>>> e : indexes.entrySet()) {
+			add(e.getValue(), e.getKey(), row);
+		}
+	}
+
+	/**
+	 * Remove a row from all the indexes
+	 */
+	void remove(JsonNode row) {
+		for (Map.Entry<String, NavigableMap<String, Set<String>>> e : indexes.entrySet()) {
+			String value = value(row, e.getKey());
+			if (value != null) {
+				Set<String> ids = e.getValue().get(value);
+				if (ids != null) {
+					ids.remove(id(row));
+					if (ids.isEmpty()) {
+						e.getValue().remove(value);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return ids of the rows whose (indexed) field has exactly the specified value
+	 */
+	List<String> find(String field, String value) {
+		Set<String> ids = indexes.get(field).get(value);
+		return (ids == null) ? new ArrayList<>() : new ArrayList<>(ids);
+	}
+
+	/**
+	 * @return ids of the rows whose (indexed) field starts with the specified prefix, in order of
+	 *         the field's value
+	 */
+	List<String> findPrefix(String field, String prefix) {
+		List<String> result = new ArrayList<>();
+		NavigableMap<String, Set<String>> index = indexes.get(field);
+		for (Map.Entry<String, Set<String>> e : index.tailMap(prefix, true).entrySet()) {
+			if (!e.getKey().startsWith(prefix)) {
+				break;
+			}
+			result.addAll(e.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * @return the value of a field of a row as text, or null if it is missing or null
+	 */
+	static String value(JsonNode row, String field) {
+		JsonNode value = row.get(field);
+		return (value == null || value.isNull()) ? null : value.asText();
+	}
+
+	private static void add(NavigableMap<String, Set<String>> index, String field, JsonNode row) {
+		String value = value(row, field);
+		if (value != null) {
+			index.computeIfAbsent(value, v -> new LinkedHashSet<>()).add(id(row));
+		}
+	}
+
+	private static String id(JsonNode row) {
+		return row.path(SimpleJsonDb.ID_FIELD).asText();
+	}
+}
@@ -4,29 +4,191 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.ObjectWriter;
-import org.codehaus.jackson.map.type.TypeFactory;
+import org.codehaus.jackson.node.ObjectNode;
 
-public class SimpleJsonDb {
+/**
+ * A very simple database which stores each table as a JSON file (a list of rows). This is the
+ * file-based StorageEngine; see also InMemoryDb.
+ * <p>
+ * Tables are loaded from disk the first time they are read and are then kept resident in memory.
+ * Writes update the in-memory copy and mark the table dirty; dirty tables are written back to disk
+ * by a background flusher every 'flushIntervalMs' milliseconds, by an explicit call to flush() or
+ * close(), and at JVM shutdown. A flush interval of 0 disables write-behind: every write goes
+ * straight to disk.
+ * <p>
+ * In the default SNAPSHOT storage mode, flushing a table rewrites its whole file. In JOURNAL mode,
+ * the row-level operations (insertRow, updateRow, deleteRow) are instead appended to a per-table
+ * journal file, so the cost of a flush depends on the number of changes rather than the size of
+ * the table. The journal is replayed on top of the table file when the table is loaded, and is
+ * folded into a new table file (and then discarded) whenever it grows past the compaction
+ * threshold, or the whole table is rewritten with writeTable.
+ * <p>
+ * Table files are replaced atomically (the new contents are written to a temporary file, forced to
+ * disk, then renamed over the table file), and journal records are forced to disk as they are
+ * appended, so a crash never leaves a partly-written table.
+ * <p>
+ * In group-commit mode (see withGroupCommit) a change does not return until it is on disk. Rather
+ * than each change paying for its own flush, the first change waits briefly for others to arrive,
+ * then one flush (and one fsync) makes all of them durable together.
+ * <p>
+ * Row-level operations identify rows by their 'id' field, using a primary-key index which is kept in
+ * memory, and built from the table's rows when the table is loaded.
+ * <p>
+ * SimpleJsonDb is thread-safe. Each table has its own read/write lock: any number of threads may
+ * read a table at once, changes to a table are made one at a time, and operations on different
+ * tables never wait for each other. Each row-level operation is atomic; updateRow(Class, String,
+ * String, UnaryOperator) provides an atomic read-modify-write of a single row. Tables are written
+ * to disk without holding the table's lock, so flushing doesn't hold up readers or writers.
+ * <p>
+ * Tables are stored as JSON by default. A database can instead use the compact BINARY table format
+ * (see withTableFormat), which is smaller and much faster to load and save; existing JSON tables
+ * are converted to it when they are initialized (see initTable and convertTable).
+ * <p>
+ * In MAPPED read mode (see withReadMode), table files are memory-mapped, and the mapping is kept
+ * and shared by all reads of the file until it is replaced. Repeated reads (e.g. streams of a table
+ * which isn't cached) then decode rows straight from the page cache, without copying the file into
+ * the heap first.
+ * <p>
+ * A database may split its tables (other than Metadata) into partitions by hash of the row id (see
+ * withPartitions). Each partition is stored in its own file (DB_<db>_<table>.p<n>.json, with its
+ * own journal and index) and has its own lock, so a row-level change only touches (and only
+ * waits for) the partition holding the row. Reading a whole table loads its partitions in
+ * parallel, and returns the rows partition by partition.
+ * <p>
+ * Secondary indexes may be declared on row fields (see createIndex). They are sorted, so they
+ * support prefix lookups (findRowsByPrefix) as well as exact ones (findRows), and are kept up to date
+ * as rows change. They are held in memory only, and are built when a table is loaded.
+ * <p>
+ * Fields whose values repeat across many rows (e.g. addresses) may be declared with internField:
+ * as rows are loaded or written, their values of those fields are replaced by a shared copy from
+ * a bounded InternPool, so the cached table holds one copy of each value rather than one per row.
+ * <p>
+ * A consistent copy of all the tables can be taken while the database is in use (see snapshot):
+ * writers only wait while the tables' row lists are copied, not while the copy is written out. It
+ * is restored by copying its files back into place (see restore).
+ * <p>
+ * Note that the cache belongs to this SimpleJsonDb instance, so all users of a given database
+ * should share a single instance.
+ */
+public class SimpleJsonDb implements StorageEngine {
 
 	private static final Logger logger = LogManager.getLogger(SimpleJsonDb.class);
 	private static final ObjectMapper mapper = new ObjectMapper();
 	private static final String DEFAULT_DB_DIR = "/tmp/db";
 	private static String dbDir = DEFAULT_DB_DIR;
 	public static final String DB_METADATA_TABLE = "Metadata";
+	/** Name of the field which uniquely identifies a row, for row-level operations */
+	public static final String ID_FIELD = "id";
+
+	/** How table changes are written to disk */
+	public enum StorageMode {
+		/** Rewrite the whole table file on each flush */
+		SNAPSHOT,
+		/** Append row-level changes to a journal file, periodically compacted into the table file */
+		JOURNAL
+	}
+
+	/** How table files are read */
+	public enum ReadMode {
+		/** Read table files through an input stream */
+		STREAM,
+		/** Memory-map table files, and decode rows straight from the mapped memory */
+		MAPPED
+	}
+
+	/** Name of a partition, as made by partitionName */
+	private static final Pattern PARTITION_NAME = Pattern.compile("(.+)\\.p(\\d+)");
+
+	private static final int DEFAULT_COMPACTION_THRESHOLD = 1000;
+	private static final int DEFAULT_ID_BLOCK_SIZE = 1000;
+	/** Number of times snapshot copies tables one at a time before copying them all under lock */
+	private static final int SNAPSHOT_ATTEMPTS = 3;
+
+	/** System property which overrides the default flush interval (in milliseconds) */
+	public static final String FLUSH_INTERVAL_PROPERTY = "simplejsondb.flushIntervalMs";
+	private static final long DEFAULT_FLUSH_INTERVAL_MS = Long.getLong(FLUSH_INTERVAL_PROPERTY, 1000);
+
+	/** System property which overrides the number of slots in each engine's pool of field values */
+	public static final String INTERN_POOL_SIZE_PROPERTY = "simplejsondb.internPoolSize";
+	static final int DEFAULT_INTERN_POOL_SIZE = Integer.getInteger(INTERN_POOL_SIZE_PROPERTY, 1 << 18);
+
+	/** Threads which load the partitions of a table in parallel */
+	private static final ForkJoinPool loader = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+	/** Single background thread which flushes dirty tables for all open databases */
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "SimpleJsonDb-flusher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Databases with (possibly) unflushed changes, to be flushed at JVM shutdown */
+	private static final Set<SimpleJsonDb> openDbs = ConcurrentHashMap.newKeySet();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			for (SimpleJsonDb db : openDbs) {
+				db.close();
+			}
+		}, "SimpleJsonDb-shutdown"));
+	}
 
 	protected final String dbName;
+	private final long flushIntervalMs;
+	private StorageMode storageMode = StorageMode.SNAPSHOT;
+	private TableFormat tableFormat = TableFormat.JSON;
+	private ReadMode readMode = ReadMode.STREAM;
+	private int partitions = 1;
+	private final MappedFiles mappedFiles = new MappedFiles();
+	private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	private long groupCommitWindowMs = -1;
+	private IdAllocator idAllocator = new IdAllocator(DEFAULT_ID_BLOCK_SIZE, this::reserveIdBlock);
+	private final Map<String, Table> tables = new ConcurrentHashMap<>();
+	private final Versions versions = new Versions();
+	/** Fields on which secondary indexes have been declared, by table */
+	private final Map<String, Set<String>> declaredIndexes = new ConcurrentHashMap<>();
+	/** Fields whose values are interned (see internField), by table */
+	private final Map<String, Set<String>> declaredInterns = new ConcurrentHashMap<>();
+	private final InternPool<JsonNode> internPool = new InternPool<>(DEFAULT_INTERN_POOL_SIZE);
+	private ScheduledFuture<?> flushTask;
 
 	/**
 	 * Create a test database parent directory and use it for this execution
@@ -60,7 +222,116 @@ public class SimpleJsonDb {
 	}
 
 	public SimpleJsonDb(String dbName) {
+		this(dbName, DEFAULT_FLUSH_INTERVAL_MS);
+	}
+
+	/**
+	 * @param dbName          database name
+	 * @param flushIntervalMs how often (in milliseconds) dirty tables are written back to disk; 0
+	 *                        means write every change to disk immediately
+	 */
+	public SimpleJsonDb(String dbName, long flushIntervalMs) {
+		if (flushIntervalMs < 0) {
+			throw new IllegalArgumentException("flushIntervalMs must not be negative: " + flushIntervalMs);
+		}
 		this.dbName = dbName;
+		this.flushIntervalMs = flushIntervalMs;
+	}
+
+	/**
+	 * Select how table changes are written to disk. This should be set before any tables are
+	 * used.
+	 * 
+	 * @param storageMode SNAPSHOT (the default) or JOURNAL
+	 * @return this database
+	 */
+	public SimpleJsonDb withStorageMode(StorageMode storageMode) {
+		this.storageMode = storageMode;
+		return this;
+	}
+
+	/**
+	 * Select the on-disk format of the table files. This should be set before any tables are
+	 * used.
+	 * 
+	 * @param tableFormat TableFormat.JSON (the default) or TableFormat.BINARY
+	 * @return this database
+	 */
+	public SimpleJsonDb withTableFormat(TableFormat tableFormat) {
+		this.tableFormat = tableFormat;
+		return this;
+	}
+
+	/**
+	 * Select how table files are read
+	 * 
+	 * @param readMode STREAM (the default) or MAPPED
+	 * @return this database
+	 */
+	public SimpleJsonDb withReadMode(ReadMode readMode) {
+		this.readMode = readMode;
+		return this;
+	}
+
+	/**
+	 * Split each table (other than Metadata) into partitions by hash of the row id. This should
+	 * be set before any tables are used, and must not change once a database has been
+	 * initialized with it; initTable splits an existing unpartitioned table.
+	 * 
+	 * @param partitions number of partitions per table (1, the default, means unpartitioned)
+	 * @return this database
+	 */
+	public SimpleJsonDb withPartitions(int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("partitions must be positive: " + partitions);
+		}
+		this.partitions = partitions;
+		return this;
+	}
+
+	/**
+	 * Set the number of journal records after which a table's journal is compacted into a new
+	 * table file (JOURNAL mode only)
+	 * 
+	 * @param compactionThreshold number of journal records
+	 * @return this database
+	 */
+	public SimpleJsonDb withCompactionThreshold(int compactionThreshold) {
+		if (compactionThreshold < 1) {
+			throw new IllegalArgumentException("compactionThreshold must be positive: " + compactionThreshold);
+		}
+		this.compactionThreshold = compactionThreshold;
+		return this;
+	}
+
+	/**
+	 * Enable group commit: each change returns only once it has been written (and forced) to
+	 * disk, and changes to a table which arrive within 'windowMs' milliseconds of each other are
+	 * written together by a single flush. This replaces background flushing. This should be set
+	 * before any tables are used.
+	 * 
+	 * @param windowMs how long the first change of a group waits for others to join it
+	 * @return this database
+	 */
+	public SimpleJsonDb withGroupCommit(long windowMs) {
+		if (windowMs < 0) {
+			throw new IllegalArgumentException("windowMs must not be negative: " + windowMs);
+		}
+		this.groupCommitWindowMs = windowMs;
+		return this;
+	}
+
+	/**
+	 * Set the number of ids reserved at a time by nextId(). Larger blocks mean fewer writes of the
+	 * Metadata table, but larger gaps in the id sequence after a restart. This should be set
+	 * before nextId() is first called.
+	 * 
+	 * @param idBlockSize number of ids per block
+	 * @return this database
+	 */
+	public SimpleJsonDb withIdBlockSize(int idBlockSize) {
+		this.idAllocator = new IdAllocator(idBlockSize, this::reserveIdBlock);
+		return this;
 	}
 
 	/**
@@ -68,7 +339,11 @@ public class SimpleJsonDb {
 	 * @return Filename in which the specified database table is stored
 	 */
 	String getDbFilename(String table) {
-		return String.format("/DB_%s_%s.json", dbName, table);
+		return getDbFilename(table, tableFormat);
+	}
+
+	private String getDbFilename(String table, TableFormat format) {
+		return String.format("/DB_%s_%s%s", dbName, table, format.getExtension());
 	}
 
 	/**
@@ -79,42 +354,411 @@ public class SimpleJsonDb {
 		return new File(dbDir, getDbFilename(table));
 	}
 
+	private File getDbFile(String table, TableFormat format) {
+		return new File(dbDir, getDbFilename(table, format));
+	}
+
+	/**
+	 * @param table table name
+	 * @return Journal in which changes to the specified database table are logged
+	 */
+	TableJournal getJournal(String table) {
+		return new TableJournal(new File(dbDir, String.format("/DB_%s_%s.journal", dbName, table)));
+	}
+
 	/**
 	 * Initialize a database table file: if it doesn't already exist, create it by
 	 * copying a sample from the program's resources directory to the directory
-	 * where it should be.
+	 * where it should be. If the table exists only as a JSON file but this database
+	 * uses another table format, the JSON file is converted.
 	 * 
 	 * @param table table name
 	 * @throws IOException
 	 */
+	@Override
 	public void initTable(String table) throws IOException {
+		if (isPartitioned(table)) {
+			initPartitions(table);
+		} else {
+			initFile(table);
+		}
+	}
+
+	/**
+	 * Initialize a single (unpartitioned) table file, as described for initTable
+	 */
+	private void initFile(String table) throws IOException {
 		File dbFile = getDbFile(table);
 		if (dbFile.exists()) {
-			logger.info("initTable: Database={} table={} already exists");
+			logger.info("initTable: Database={} table={} already exists", dbName, table);
+		} else if (tableFormat != TableFormat.JSON && getDbFile(table, TableFormat.JSON).exists()) {
+			convertTable(table, TableFormat.JSON);
 		} else {
-			InputStream is = getClass().getResourceAsStream(getDbFilename(table));
+			// Samples are always JSON
+			String resource = getDbFilename(table, TableFormat.JSON);
+			InputStream is = getClass().getResourceAsStream(resource);
 			// TODO: Handle the case where there is no sample in the resources (create
 			// empty)
 			Path target = Paths.get(dbFile.toURI());
 			logger.info("initTable: Creating database={} table={}:", dbName, table);
-			logger.info("  Source: resource {}", dbFile.getName());
+			logger.info("  Source: resource {}", resource);
 			logger.info("  Target: file {}", target);
-			Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+			if (tableFormat == TableFormat.JSON) {
+				Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				List<JsonNode> rows = new ArrayList<>();
+				TableFormat.JSON.read(is, JsonNode.class).forEachRemaining(rows::add);
+				DurableFiles.replace(dbFile, os -> tableFormat.write(os, rows));
+			}
+		}
+	}
+
+	/**
+	 * Initialize the partitions of a table: if they don't already exist, split the unpartitioned
+	 * table (including its journal), creating that from the sample first if necessary. The
+	 * unpartitioned table is removed once the partitions have been written.
+	 */
+	private void initPartitions(String table) throws IOException {
+		if (getDbFile(partitionName(table, 0)).exists()) {
+			logger.info("initTable: Database={} table={} already exists in {} partitions", dbName, table, partitions);
+			return;
+		}
+		initFile(table);
+		List<JsonNode> rows = getTable(table).copyRows();
+		tables.remove(table);
+		List<List<JsonNode>> split = split(rows);
+		logger.info("initTable: Splitting database={} table={} ({} rows) into {} partitions", dbName, table,
+				rows.size(), partitions);
+		// Partition 0 is written last: its existence shows that the table has been split
+		for (int p = partitions - 1; p >= 0; p--) {
+			String name = partitionName(table, p);
+			List<JsonNode> partRows = split.get(p);
+			DurableFiles.replace(getDbFile(name), os -> tableFormat.write(os, partRows));
+			getJournal(name).delete();
+		}
+		rmFile(table);
+	}
+
+	/**
+	 * Convert a table file from another format to this database's table format. The original
+	 * file is left in place (it is no longer used by this database). The table must not be in
+	 * use while it is converted.
+	 * 
+	 * @param table table name
+	 * @param from  format of the existing table file
+	 * @throws IOException if the existing table file is missing or can't be read, or the new one
+	 *                     can't be written
+	 */
+	public void convertTable(String table, TableFormat from) throws IOException {
+		if (from == tableFormat) {
+			return;
 		}
+		File source = getDbFile(table, from);
+		File target = getDbFile(table);
+		logger.info("convertTable: Converting database={} table={} from {} to {}", dbName, table, from, tableFormat);
+		List<JsonNode> rows = new ArrayList<>();
+		try (RowReader<JsonNode> reader = from.read(new FileInputStream(source), JsonNode.class)) {
+			reader.forEachRemaining(rows::add);
+		}
+		DurableFiles.replace(target, os -> tableFormat.write(os, rows));
+		mappedFiles.unmap(target);
 	}
 
 	/**
-	 * Delete a database table file
+	 * Delete a database table file, discarding any cached (and unflushed) contents
 	 * 
 	 * @param table table name
 	 * @throws IOException
 	 */
+	@Override
 	public void rmTable(String table) throws IOException {
-		File dbFile = getDbFile(table);
-		if (dbFile.exists()) {
-			logger.info("rmTable: Removing database={} table={}", dbName, table);
-			dbFile.delete();
+		if (isPartitioned(table)) {
+			for (int p = 0; p < partitions; p++) {
+				rmFile(partitionName(table, p));
+			}
+		}
+		rmFile(table);
+	}
+
+	/**
+	 * Delete a single table file (a table, or one partition of a table), as described for rmTable
+	 */
+	private void rmFile(String table) {
+		Table t = tables.remove(table);
+		if (t != null) {
+			// Wait for any flush in progress, so that it can't recreate the files deleted below
+			t.flushLock.lock();
+			t.lock.writeLock().lock();
+			try {
+				t.rows = null;
+				t.dirty = false;
+				t.pendingJournal.clear();
+			} finally {
+				t.lock.writeLock().unlock();
+			}
+		}
+		try {
+			getJournal(table).delete();
+			if (table.equals(DB_METADATA_TABLE)) {
+				// Any ids reserved from the old Metadata table are no longer recorded anywhere
+				idAllocator.reset();
+			}
+			File dbFile = getDbFile(table);
+			mappedFiles.unmap(dbFile);
+			if (dbFile.exists()) {
+				logger.info("rmTable: Removing database={} table={}", dbName, table);
+				dbFile.delete();
+			}
+		} finally {
+			if (t != null) {
+				t.flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The snapshot holds a file for each table (or partition), in the database's table format and
+	 * with the same name as in the database directory. Tables which aren't cached are loaded
+	 * first (replaying their journals). Then each table's list of rows is copied under its own
+	 * read lock, one table at a time, and all the tables are read-locked together only to check
+	 * (by their change sequence numbers) that none has changed since it was copied; those which
+	 * have are copied again, and after SNAPSHOT_ATTEMPTS tries, copied while all are locked. Rows
+	 * are never changed in place (a change replaces the row's JsonNode), so the copies remain a
+	 * consistent snapshot while they are written out without any lock held. The files are written
+	 * into a temporary directory which is renamed to the target once they are all on disk, so the
+	 * target never holds a partial snapshot.
+	 */
+	@Override
+	public void snapshot(File target) throws IOException {
+		if (target.exists()) {
+			throw new IllegalArgumentException("Snapshot target already exists: " + target);
+		}
+		Set<String> names = new HashSet<>(tableFileNames(new File(dbDir)));
+		tables.forEach((name, t) -> {
+			if (t.isLoaded()) {
+				names.add(name);
+			}
+		});
+		List<Table> snapshotTables = new ArrayList<>();
+		for (String name : sortedNames(names)) {
+			Table t = tables.computeIfAbsent(name, n -> new Table(n, tableOf(n)));
+			// Load the table now, rather than while holding the other tables' locks
+			t.lockForRead();
+			t.lock.readLock().unlock();
+			snapshotTables.add(t);
+		}
+
+		// Copy each table under its own read lock, one at a time, noting its change sequence number
+		Map<String, List<JsonNode>> copies = new LinkedHashMap<>();
+		long[] copiedSeqs = new long[snapshotTables.size()];
+		List<Integer> stale = new ArrayList<>();
+		for (int i = 0; i < snapshotTables.size(); i++) {
+			stale.add(i);
+		}
+		long lockedNanos = 0;
+		int attempt = 0;
+		while (!stale.isEmpty()) {
+			attempt++;
+			for (int i : stale) {
+				Table t = snapshotTables.get(i);
+				lockForSnapshot(t);
+				try {
+					copiedSeqs[i] = copyRows(t, copies);
+				} finally {
+					t.lock.readLock().unlock();
+				}
+			}
+			// Then read-lock all the tables together, just long enough to check that none has
+			// changed since it was copied: if so, the copies are all as of this moment. Locks are
+			// taken in the same order as by batch changes to partitioned tables.
+			int locked = 0;
+			long start = System.nanoTime();
+			try {
+				for (Table t : snapshotTables) {
+					lockForSnapshot(t);
+					locked++;
+				}
+				stale.clear();
+				for (int i = 0; i < snapshotTables.size(); i++) {
+					Table t = snapshotTables.get(i);
+					if (t.changeSeq != copiedSeqs[i] || isPresent(t) != copies.containsKey(t.name)) {
+						stale.add(i);
+					}
+				}
+				if (attempt >= SNAPSHOT_ATTEMPTS) {
+					// Tables which keep changing are copied while all the tables are locked
+					for (int i : stale) {
+						copyRows(snapshotTables.get(i), copies);
+					}
+					stale.clear();
+				}
+			} finally {
+				for (int i = 0; i < locked; i++) {
+					snapshotTables.get(i).lock.readLock().unlock();
+				}
+				lockedNanos += System.nanoTime() - start;
+			}
+		}
+
+		File parent = target.getAbsoluteFile().getParentFile();
+		File staging = Files.createTempDirectory(parent.toPath(), target.getName() + ".").toFile();
+		try {
+			for (Map.Entry<String, List<JsonNode>> copy : copies.entrySet()) {
+				List<JsonNode> rows = copy.getValue();
+				// Squeeze out the deleted rows
+				rows.removeIf(row -> row == null);
+				DurableFiles.replace(new File(staging, getDbFilename(copy.getKey())), os -> tableFormat.write(os, rows));
+			}
+			Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			for (File f : staging.listFiles()) {
+				f.delete();
+			}
+			staging.delete();
+			throw e;
+		}
+		logger.info("snapshot(): Wrote {} tables of database={} to {} ({} attempts, tables locked together for {} ms)",
+				copies.size(), dbName, target, attempt, lockedNanos / 1_000_000);
+	}
+
+	/**
+	 * Acquire a table's read lock for a snapshot, first loading it again if it has been restored
+	 * (rather than removed) since it was loaded
+	 */
+	private void lockForSnapshot(Table t) {
+		t.lock.readLock().lock();
+		if (t.rows == null && tables.get(t.name) == t) {
+			t.lock.readLock().unlock();
+			t.lockForRead();
+		}
+	}
+
+	/**
+	 * @return whether a table locked by lockForSnapshot is still in the database
+	 */
+	private boolean isPresent(Table t) {
+		return t.rows != null && tables.get(t.name) == t;
+	}
+
+	/**
+	 * Copy a table's list of rows for a snapshot (or leave it out, if it has been removed). The
+	 * caller holds the table's lock.
+	 * 
+	 * @return the table's change sequence number as of the copy
+	 */
+	private long copyRows(Table t, Map<String, List<JsonNode>> copies) {
+		if (isPresent(t)) {
+			copies.put(t.name, new ArrayList<>(t.rows));
+		} else {
+			copies.remove(t.name);
+		}
+		return t.changeSeq;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The database must use the same table format and partitions as the one which wrote the
+	 * snapshot. The snapshot's files are copied over the tables' files, and the tables' journals,
+	 * unflushed changes and cached rows are discarded; each table is loaded from its new file the
+	 * next time it is used. The tables being restored are locked (as for a
+	 * flush) while their files are replaced, so no reader sees some of them restored and others
+	 * not. All their rows get new versions.
+	 */
+	@Override
+	public void restore(File source) throws IOException {
+		List<String> names = sortedNames(tableFileNames(source));
+		if (names.isEmpty()) {
+			throw new IllegalArgumentException("No tables of database " + dbName + " in " + source);
+		}
+		List<Table> restored = new ArrayList<>();
+		for (String name : names) {
+			restored.add(tables.computeIfAbsent(name, n -> new Table(n, tableOf(n))));
+		}
+		// Wait for any flushes in progress, so that they can't overwrite the restored files
+		for (Table t : restored) {
+			t.flushLock.lock();
+		}
+		int locked = 0;
+		try {
+			for (Table t : restored) {
+				t.lock.writeLock().lock();
+				locked++;
+			}
+			for (Table t : restored) {
+				File dbFile = getDbFile(t.name);
+				File snapshotFile = new File(source, getDbFilename(t.name));
+				DurableFiles.replace(dbFile, os -> Files.copy(snapshotFile.toPath(), os));
+				mappedFiles.unmap(dbFile);
+				getJournal(t.name).delete();
+				t.rows = null;
+				t.deletedRows = 0;
+				t.dirty = false;
+				t.pendingJournal.clear();
+				t.journalRecords = 0;
+				t.rowVersions.reset();
+				t.changeSeq++;
+			}
+			if (names.contains(DB_METADATA_TABLE)) {
+				// Ids are reserved afresh from the restored Metadata table
+				idAllocator.reset();
+			}
+		} finally {
+			for (int i = 0; i < locked; i++) {
+				restored.get(i).lock.writeLock().unlock();
+			}
+			for (Table t : restored) {
+				t.flushLock.unlock();
+			}
+		}
+		logger.info("restore(): Restored {} tables of database={} from {}", names.size(), dbName, source);
+	}
+
+	/**
+	 * @return the names (as passed to getDbFile) of the tables and partitions of this database
+	 *         which have table files in a directory
+	 */
+	private List<String> tableFileNames(File dir) {
+		String prefix = "DB_" + dbName + "_";
+		String extension = tableFormat.getExtension();
+		List<String> names = new ArrayList<>();
+		String[] files = dir.list();
+		if (files != null) {
+			for (String file : files) {
+				if (file.startsWith(prefix) && file.endsWith(extension)) {
+					names.add(file.substring(prefix.length(), file.length() - extension.length()));
+				}
+			}
 		}
+		return names;
+	}
+
+	/**
+	 * @return names of tables and partitions in locking order: by table, then by partition
+	 */
+	private List<String> sortedNames(Collection<String> names) {
+		List<String> sorted = new ArrayList<>(names);
+		sorted.sort(Comparator.comparing(this::tableOf).thenComparingInt(SimpleJsonDb::partitionNumber));
+		return sorted;
+	}
+
+	/**
+	 * @return the table of which a name (see partitionName) is a partition, or the name itself if
+	 *         it isn't a partition's
+	 */
+	private String tableOf(String name) {
+		Matcher m = PARTITION_NAME.matcher(name);
+		return (partitions > 1 && m.matches()) ? m.group(1) : name;
+	}
+
+	/**
+	 * @return the number of the partition with the specified name, or -1 if it isn't a partition
+	 */
+	private static int partitionNumber(String name) {
+		Matcher m = PARTITION_NAME.matcher(name);
+		return m.matches() ? Integer.parseInt(m.group(2)) : -1;
 	}
 
 	/**
@@ -125,12 +769,13 @@ public class SimpleJsonDb {
 	 * @param table Name of the table
 	 * @return list of rows; each row is of type T
 	 */
+	@Override
 	public <T> List<T> readTable(Class<T> clazz, String table) {
-		File dbFile = getDbFile(table);
-		logger.info("readTable(): Reading from: " + dbFile.getAbsolutePath());
 		List<T> contents = new ArrayList<>();
-		try (FileInputStream is = new FileInputStream(dbFile)) {
-			contents = mapper.readValue(is, TypeFactory.defaultInstance().constructCollectionType(List.class, clazz));
+		try {
+			for (JsonNode row : copyRows(table)) {
+				contents.add(mapper.readValue(row, clazz));
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -139,35 +784,1293 @@ public class SimpleJsonDb {
 	}
 
 	/**
-	 * (Re)write a database table, with possibly updated contents
+	 * Stream the rows of a table, without building a list of them all. Rows are converted to
+	 * type T one at a time, as the stream is consumed, so a scan which stops early (e.g. with
+	 * findFirst() or limit()) only converts the rows it looks at.
+	 * <p>
+	 * If the table is already cached, the stream covers the rows as they were when this was
+	 * called. Otherwise the rows are read straight from the table file one at a time, without
+	 * loading the table into the cache; in that case the stream must be closed (e.g. with
+	 * try-with-resources) if it isn't consumed to the end.
 	 * 
+	 * @param <T>   Type defining the rows to be returned
+	 * @param clazz Class of the rows to be returned
 	 * @param table Name of the table
-	 * @param value the contents of the table (list of objects)
+	 * @return stream of rows; each row is of type T
 	 */
-	public void writeTable(String table, Object value) {
+	@Override
+	public <T> Stream<T> streamTable(Class<T> clazz, String table) {
+		if (isPartitioned(table)) {
+			return IntStream.range(0, partitions).boxed().flatMap(p -> streamFile(clazz, partitionName(table, p)));
+		}
+		return streamFile(clazz, table);
+	}
+
+	/**
+	 * Stream the rows of a single table file (a table, or one partition of a table), as described
+	 * for streamTable
+	 */
+	private <T> Stream<T> streamFile(Class<T> clazz, String table) {
+		Table t = getTable(table);
+		List<JsonNode> rows = t.copyRowsIfLoaded();
+		if (rows == null && getJournal(table).getFile().exists()) {
+			// The table file alone is out of date; load the table and replay its journal
+			rows = t.copyRows();
+		}
+		if (rows != null) {
+			return rows.stream().map(row -> fromRow(row, clazz, table));
+		}
 		File dbFile = getDbFile(table);
-		logger.info("writeTable(): Writing to: " + dbFile.getAbsolutePath());
-		ObjectWriter writer = mapper.writerWithDefaultPrettyPrinter();
+		if (!dbFile.exists()) {
+			return Stream.empty();
+		}
 		try {
-			writer.writeValue(dbFile, value);
+			RowReader<T> reader = openTable(dbFile, clazz);
+			return StreamSupport.stream(
+					Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL), false)
+					.onClose(reader::close);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Uses the ordered ids of the primary-key index, so once a table is cached a page costs
+	 * O(log n + limit) rather than a scan of the table.
+	 */
+	@Override
+	public <T> List<T> scanRows(Class<T> clazz, String table, String afterId, int limit) {
+		List<JsonNode> found = new ArrayList<>();
+		for (Table t : getTables(table)) {
+			found.addAll(t.scan(afterId, limit));
+		}
+		if (isPartitioned(table)) {
+			// Each partition's rows are in order of id, but the partitions' aren't
+			found.sort(Comparator.comparing(row -> row.path(ID_FIELD).asText(), PrimaryKeyIndex.ID_ORDER));
+			if (found.size() > limit) {
+				found = found.subList(0, limit);
+			}
 		}
+		List<T> result = new ArrayList<>(found.size());
+		for (JsonNode row : found) {
+			result.add(fromRow(row, clazz, table));
+		}
+		return result;
 	}
 
 	/**
-	 * Get the next unique id to be assigned to a newly-created database item, and
-	 * increment the 'nextId' counter so that the next call will get the next value.
+	 * (Re)write a database table, with possibly updated contents. The new contents
+	 * replace the cached copy immediately, and are written to disk by the next
+	 * flush.
 	 * 
-	 * @return a unique Id value to assign to a newly-created item
+	 * @param table Name of the table
+	 * @param value the contents of the table (list of objects)
 	 */
-	public int nextId() {
-		List<DbMetadata> dbMetadata = readTable(DbMetadata.class, DB_METADATA_TABLE);
-		int nextId = dbMetadata.get(0).nextId;
-		dbMetadata.get(0).nextId++;
-		writeTable(DB_METADATA_TABLE, dbMetadata);
-		return nextId;
+	@Override
+	public void writeTable(String table, Object value) {
+		List<JsonNode> rows = toRows(value);
+		if (isPartitioned(table)) {
+			writePartitions(table, rows);
+			return;
+		}
+		Table t = getTable(table);
+		long seq;
+		t.lock.writeLock().lock();
+		try {
+			seq = t.replaceRows(rows);
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+		changed(t, seq);
+	}
+
+	/**
+	 * Read a single row
+	 * 
+	 * @param <T>   Type defining the row to be returned
+	 * @param clazz Class of the row to be returned
+	 * @param table Name of the table
+	 * @param id    id of the row
+	 * @return the row, or null if the table has no row with that id
+	 */
+	@Override
+	public <T> T readRow(Class<T> clazz, String table, String id) {
+		JsonNode row;
+		Table t = getTable(table, id);
+		t.lockForRead();
+		try {
+			int pos = t.find(id);
+			row = (pos < 0) ? null : t.rows.get(pos);
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		return (row == null) ? null : fromRow(row, clazz, table);
+	}
+
+	@Override
+	public <T> VersionedRow<T> readVersionedRow(Class<T> clazz, String table, String id) {
+		JsonNode row;
+		String version;
+		Table t = getTable(table, id);
+		t.lockForRead();
+		try {
+			int pos = t.find(id);
+			if (pos < 0) {
+				return null;
+			}
+			row = t.rows.get(pos);
+			version = t.rowVersions.row(id);
+		} finally {
+			t.lock.readLock().unlock();
+		}
+		return new VersionedRow<>(fromRow(row, clazz, table), version);
+	}
+
+	@Override
+	public String rowVersion(String table, String id) {
+		Table t = getTable(table, id);
+		t.lockForRead();
+		try {
+			return (t.find(id) < 0) ? null : t.rowVersions.row(id);
+		} finally {
+			t.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * For a partitioned table, this is the version of the most recently changed partition.
+	 */
+	@Override
+	public String tableVersion(String table) {
+		// Each table's versions may only be read under its lock
+		long latest = 0;
+		for (Table t : getTables(table)) {
+			t.lockForRead();
+			try {
+				latest = Math.max(latest, t.rowVersions.tableNumber());
+			} finally {
+				t.lock.readLock().unlock();
+			}
+		}
+		return versions.format(latest);
+	}
+
+	@Override
+	public <T> List<T> readRows(Class<T> clazz, String table, List<String> ids) {
+		// Group the ids by the table (or partition) in which their rows belong
+		Map<Table, List<Integer>> byTable = new LinkedHashMap<>();
+		for (int i = 0; i < ids.size(); i++) {
+			byTable.computeIfAbsent(getTable(table, ids.get(i)), k -> new ArrayList<>()).add(i);
+		}
+		JsonNode[] found = new JsonNode[ids.size()];
+		for (Map.Entry<Table, List<Integer>> e : byTable.entrySet()) {
+			Table t = e.getKey();
+			t.lockForRead();
+			try {
+				for (int i : e.getValue()) {
+					int pos = t.index.get(ids.get(i));
+					found[i] = (pos < 0) ? null : t.rows.get(pos);
+				}
+			} finally {
+				t.lock.readLock().unlock();
+			}
+		}
+		List<T> result = new ArrayList<>(found.length);
+		for (JsonNode row : found) {
+			result.add((row == null) ? null : fromRow(row, clazz, table));
+		}
+		return result;
+	}
+
+	/**
+	 * Add a new row to the end of a table
+	 * 
+	 * @param table Name of the table
+	 * @param row   the new row; its 'id' field must not match any existing row
+	 * @throws IllegalArgumentException if the row has no id, or its id is already in use
+	 */
+	@Override
+	public void insertRow(String table, Object row) {
+		JsonNode node = toRow(row);
+		String id = node.get(ID_FIELD).asText();
+		Table t = getTable(table, id);
+		long seq;
+		t.lock.writeLock().lock();
+		try {
+			if (t.find(id) >= 0) {
+				throw new IllegalArgumentException("Table " + table + " already contains a row with id " + id);
+			}
+			seq = t.apply(TableJournal.record(TableJournal.OP_INSERT, id, node));
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+		changed(t, seq);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * In JOURNAL mode the batch's records go to the journal in one append (and one fsync).
+	 */
+	@Override
+	public boolean[] insertRows(String table, List<?> rows) {
+		List<JsonNode> nodes = toRows(rows);
+		// Group the rows by the table (or partition) in which they belong
+		Map<Table, List<Integer>> byTable = new LinkedHashMap<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			JsonNode id = nodes.get(i).get(ID_FIELD);
+			if (id == null || id.isNull()) {
+				throw new IllegalArgumentException("Row " + i + " of batch for table " + table + " has no id");
+			}
+			byTable.computeIfAbsent(getTable(table, id.asText()), k -> new ArrayList<>()).add(i);
+		}
+		boolean[] inserted = new boolean[nodes.size()];
+		for (Map.Entry<Table, List<Integer>> e : byTable.entrySet()) {
+			Table t = e.getKey();
+			long seq = -1;
+			t.lock.writeLock().lock();
+			try {
+				for (int i : e.getValue()) {
+					JsonNode node = nodes.get(i);
+					String id = node.get(ID_FIELD).asText();
+					if (t.find(id) < 0) {
+						seq = t.apply(TableJournal.record(TableJournal.OP_INSERT, id, node));
+						inserted[i] = true;
+					}
+				}
+			} finally {
+				t.lock.writeLock().unlock();
+			}
+			if (seq >= 0) {
+				changed(t, seq);
+			}
+		}
+		return inserted;
+	}
+
+	/**
+	 * Replace an existing row
+	 * 
+	 * @param table Name of the table
+	 * @param row   the new contents of the row; its 'id' field identifies the row to be replaced
+	 * @return true if the row was replaced, false if the table has no row with that id
+	 */
+	@Override
+	public boolean updateRow(String table, Object row) {
+		return updateRow(table, row, null);
+	}
+
+	@Override
+	public boolean updateRow(String table, Object row, String ifVersion) {
+		JsonNode node = toRow(row);
+		String id = node.get(ID_FIELD).asText();
+		Table t = getTable(table, id);
+		long seq;
+		t.lock.writeLock().lock();
+		try {
+			if (t.find(id) < 0) {
+				return false;
+			}
+			t.checkVersion(table, id, ifVersion);
+			seq = t.apply(TableJournal.record(TableJournal.OP_UPDATE, id, node));
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+		changed(t, seq);
+		return true;
+	}
+
+	/**
+	 * Atomically read, modify and replace an existing row: no other change to the table can
+	 * happen between the read and the replacement.
+	 * 
+	 * @param <T>      Type defining the row
+	 * @param clazz    Class of the row
+	 * @param table    Name of the table
+	 * @param id       id of the row
+	 * @param modifier given the current contents of the row, returns its new contents (which
+	 *                 must have the same id)
+	 * @return true if the row was replaced, false if the table has no row with that id
+	 */
+	@Override
+	public <T> boolean updateRow(Class<T> clazz, String table, String id, UnaryOperator<T> modifier) {
+		Table t = getTable(table, id);
+		long seq;
+		t.lock.writeLock().lock();
+		try {
+			int pos = t.find(id);
+			if (pos < 0) {
+				return false;
+			}
+			T newRow = modifier.apply(mapper.readValue(t.rows.get(pos), clazz));
+			JsonNode node = toRow(newRow);
+			if (!node.get(ID_FIELD).asText().equals(id)) {
+				throw new IllegalArgumentException("Cannot change the id of row " + id + " of table " + table);
+			}
+			seq = t.apply(TableJournal.record(TableJournal.OP_UPDATE, id, node));
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to convert row " + id + " of table " + table, e);
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+		changed(t, seq);
+		return true;
+	}
+
+	/**
+	 * Delete a row
+	 * 
+	 * @param table Name of the table
+	 * @param id    id of the row to be deleted
+	 * @return true if the row was deleted, false if the table has no row with that id
+	 */
+	@Override
+	public boolean deleteRow(String table, String id) {
+		return deleteRow(table, id, null);
+	}
+
+	@Override
+	public boolean deleteRow(String table, String id, String ifVersion) {
+		Table t = getTable(table, id);
+		long seq;
+		t.lock.writeLock().lock();
+		try {
+			if (t.find(id) < 0) {
+				return false;
+			}
+			t.checkVersion(table, id, ifVersion);
+			seq = t.apply(TableJournal.record(TableJournal.OP_DELETE, id, null));
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+		changed(t, seq);
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each table (or partition) records its part of the batch as a single journal record, so
+	 * that a crash can't leave only part of it on disk. (The parts in different partitions are
+	 * written separately, though.)
+	 */
+	@Override
+	public List<String> updateRows(String table, List<?> rows) {
+		List<JsonNode> nodes = toRows(rows);
+		List<String> ids = new ArrayList<>(nodes.size());
+		for (int i = 0; i < nodes.size(); i++) {
+			JsonNode id = nodes.get(i).get(ID_FIELD);
+			if (id == null || id.isNull()) {
+				throw new IllegalArgumentException("Row " + i + " of batch for table " + table + " has no id");
+			}
+			ids.add(id.asText());
+		}
+		return applyBatch(table, ids, nodes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Crash safety is as for updateRows.
+	 */
+	@Override
+	public List<String> deleteRows(String table, List<String> ids) {
+		return applyBatch(table, ids, null);
+	}
+
+	/**
+	 * Update or delete a batch of existing rows, all together or not at all
+	 * 
+	 * @param ids  ids of the rows
+	 * @param rows new contents of the rows, or null to delete them
+	 * @return ids of the rows which don't exist (in which case nothing was changed)
+	 */
+	private List<String> applyBatch(String table, List<String> ids, List<JsonNode> rows) {
+		// Group the changes by the table (or partition) in which they belong
+		Map<Table, List<JsonNode>> byTable = new HashMap<>();
+		for (int i = 0; i < ids.size(); i++) {
+			String id = ids.get(i);
+			JsonNode record = (rows == null) ? TableJournal.record(TableJournal.OP_DELETE, id, null)
+					: TableJournal.record(TableJournal.OP_UPDATE, id, rows.get(i));
+			byTable.computeIfAbsent(getTable(table, id), k -> new ArrayList<>()).add(record);
+		}
+		// Always lock the tables in the same order
+		List<Table> parts = new ArrayList<>(getTables(table));
+		parts.retainAll(byTable.keySet());
+		long[] seqs = new long[parts.size()];
+		List<String> missing = new ArrayList<>();
+		int locked = 0;
+		try {
+			for (Table t : parts) {
+				t.lock.writeLock().lock();
+				locked++;
+			}
+			for (Table t : parts) {
+				for (JsonNode record : byTable.get(t)) {
+					if (t.find(TableJournal.id(record)) < 0) {
+						missing.add(TableJournal.id(record));
+					}
+				}
+			}
+			if (!missing.isEmpty()) {
+				return missing;
+			}
+			for (int p = 0; p < parts.size(); p++) {
+				seqs[p] = parts.get(p).apply(TableJournal.batch(byTable.get(parts.get(p))));
+			}
+		} finally {
+			for (int p = 0; p < locked; p++) {
+				parts.get(p).lock.writeLock().unlock();
+			}
+		}
+		for (int p = 0; p < parts.size(); p++) {
+			changed(parts.get(p), seqs[p]);
+		}
+		return missing;
+	}
+
+	@Override
+	public void createIndex(String table, String field) {
+		declaredIndexes.computeIfAbsent(table, k -> ConcurrentHashMap.newKeySet()).add(field);
+		for (Table t : getTables(table)) {
+			t.lock.writeLock().lock();
+			try {
+				if (t.secondary.declare(field) && t.rows != null) {
+					t.secondary.rebuild(field, t.rows);
+				}
+			} finally {
+				t.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	@Override
+	public void internField(String table, String field) {
+		declaredInterns.computeIfAbsent(table, k -> ConcurrentHashMap.newKeySet()).add(field);
+	}
+
+	/**
+	 * @return the number of field values which have been replaced by a shared copy (see
+	 *         internField) since the engine was created
+	 */
+	public long internedValues() {
+		return internPool.hits();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Uses the field's secondary index if there is one; otherwise scans the table.
+	 */
+	@Override
+	public <T> List<T> findRows(Class<T> clazz, String table, String field, String value) {
+		return findRows(clazz, table, field, value, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Uses the field's secondary index if there is one; otherwise scans the table.
+	 */
+	@Override
+	public <T> List<T> findRowsByPrefix(Class<T> clazz, String table, String field, String prefix) {
+		return findRows(clazz, table, field, prefix, true);
+	}
+
+	private <T> List<T> findRows(Class<T> clazz, String table, String field, String key, boolean prefix) {
+		List<JsonNode> found = new ArrayList<>();
+		for (Table t : getTables(table)) {
+			found.addAll(t.lookup(field, key, prefix));
+		}
+		if (prefix && isPartitioned(table)) {
+			// Each partition's rows are in order of the field's value, but the partitions' aren't
+			found.sort(Comparator.comparing(row -> SecondaryIndexes.value(row, field)));
+		}
+		List<T> result = new ArrayList<>(found.size());
+		for (JsonNode row : found) {
+			result.add(fromRow(row, clazz, table));
+		}
+		return result;
+	}
+
+	/**
+	 * Write all dirty tables to disk
+	 */
+	@Override
+	public void flush() {
+		for (Table t : tables.values()) {
+			flushTable(t);
+		}
+	}
+
+	/**
+	 * Flush all dirty tables and stop background flushing. The database may still be
+	 * used afterwards; a later write will restart background flushing.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (flushTask != null) {
+				flushTask.cancel(false);
+				flushTask = null;
+			}
+		}
+		flush();
+		openDbs.remove(this);
+	}
+
+	/**
+	 * Get the next unique id to be assigned to a newly-created database item. Ids are
+	 * reserved in blocks (see withIdBlockSize): the 'nextId' counter in the Metadata table
+	 * is advanced, and written to disk, once per block rather than once per id. This
+	 * method is thread-safe.
+	 * 
+	 * @return a unique Id value to assign to a newly-created item
+	 */
+	@Override
+	public int nextId() {
+		return Math.toIntExact(idAllocator.nextId());
+	}
+
+	/**
+	 * Reserve a block of ids by advancing the 'nextId' counter in the Metadata table, and
+	 * write the Metadata table to disk before any of the ids can be handed out
+	 * 
+	 * @param blockSize number of ids to reserve
+	 * @return first id of the reserved block
+	 */
+	private long reserveIdBlock(int blockSize) {
+		Table t = getTable(DB_METADATA_TABLE);
+		int start;
+		long seq;
+		t.lock.writeLock().lock();
+		try {
+			List<DbMetadata> dbMetadata = readTable(DbMetadata.class, DB_METADATA_TABLE);
+			start = dbMetadata.get(0).nextId;
+			dbMetadata.get(0).nextId = Math.addExact(start, blockSize);
+			seq = t.replaceRows(toRows(dbMetadata));
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+		// Flush outside the write lock: flushTable takes the flush lock before the write lock
+		if (flushTable(t) < seq) {
+			throw new UncheckedIOException(new IOException("Unable to reserve ids for database=" + dbName));
+		}
+		logger.info("nextId(): Reserved ids {}-{} for database={}", start, start + blockSize - 1, dbName);
+		return start;
+	}
+
+	/**
+	 * @return the cache entry for a table, creating it (empty/unloaded) if necessary
+	 */
+	private Table getTable(String table) {
+		return tables.computeIfAbsent(table, name -> new Table(name, table));
+	}
+
+	/**
+	 * @return the cache entry for a partition of a table, creating it if necessary
+	 */
+	private Table getPartition(String table, int partition) {
+		return tables.computeIfAbsent(partitionName(table, partition), name -> new Table(name, table));
+	}
+
+	/**
+	 * @return the cache entries holding a table: its partitions in order, or just the table if it
+	 *         isn't partitioned
+	 */
+	private List<Table> getTables(String table) {
+		if (!isPartitioned(table)) {
+			return Collections.singletonList(getTable(table));
+		}
+		List<Table> parts = new ArrayList<>(partitions);
+		for (int p = 0; p < partitions; p++) {
+			parts.add(getPartition(table, p));
+		}
+		return parts;
+	}
+
+	/**
+	 * @return the cache entry for the table (or partition of a table) which holds the row with
+	 *         the specified id
+	 */
+	private Table getTable(String table, String id) {
+		return isPartitioned(table) ? getPartition(table, partitionOf(id)) : getTable(table);
+	}
+
+	/**
+	 * @return whether a table is split into partitions (the Metadata table never is)
+	 */
+	private boolean isPartitioned(String table) {
+		return partitions > 1 && !table.equals(DB_METADATA_TABLE);
+	}
+
+	/**
+	 * @return the name under which a partition of a table is stored, as if it were a table
+	 */
+	static String partitionName(String table, int partition) {
+		return table + ".p" + partition;
+	}
+
+	/**
+	 * @return the partition holding the row with the specified id
+	 */
+	private int partitionOf(String id) {
+		// String.hashCode() is specified, so rows stay in the same partition across runs
+		return Math.floorMod(id.hashCode(), partitions);
+	}
+
+	/**
+	 * Split rows by partition. Rows without an id go to partition 0.
+	 */
+	private List<List<JsonNode>> split(List<JsonNode> rows) {
+		List<List<JsonNode>> split = new ArrayList<>(partitions);
+		for (int p = 0; p < partitions; p++) {
+			split.add(new ArrayList<>());
+		}
+		for (JsonNode row : rows) {
+			split.get(partitionOf(row.path(ID_FIELD).asText())).add(row);
+		}
+		return split;
+	}
+
+	/**
+	 * @return a copy of all the rows of a table. The partitions of a partitioned table are
+	 *         loaded in parallel.
+	 */
+	private List<JsonNode> copyRows(String table) {
+		if (!isPartitioned(table)) {
+			return getTable(table).copyRows();
+		}
+		List<Table> parts = getTables(table);
+		List<List<JsonNode>> copies = loader
+				.submit(() -> parts.parallelStream().map(Table::copyRows).collect(Collectors.toList())).join();
+		List<JsonNode> rows = new ArrayList<>();
+		for (List<JsonNode> copy : copies) {
+			rows.addAll(copy);
+		}
+		return rows;
+	}
+
+	/**
+	 * Replace the contents of all the partitions of a table. Readers see either the old or the
+	 * new contents of each partition.
+	 */
+	private void writePartitions(String table, List<JsonNode> rows) {
+		List<List<JsonNode>> split = split(rows);
+		List<Table> parts = getTables(table);
+		long[] seqs = new long[partitions];
+		// Always lock the partitions in the same order
+		int locked = 0;
+		try {
+			for (Table t : parts) {
+				t.lock.writeLock().lock();
+				locked++;
+			}
+			for (int p = 0; p < partitions; p++) {
+				seqs[p] = parts.get(p).replaceRows(split.get(p));
+			}
+		} finally {
+			for (int p = 0; p < locked; p++) {
+				parts.get(p).lock.writeLock().unlock();
+			}
+		}
+		for (int p = 0; p < partitions; p++) {
+			changed(parts.get(p), seqs[p]);
+		}
+	}
+
+	/**
+	 * Convert a row from JSON
+	 */
+	static <T> T fromRow(JsonNode row, Class<T> clazz, String table) {
+		try {
+			return mapper.readValue(row, clazz);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to convert row " + row.path(ID_FIELD).asText()
+					+ " of table " + table, e);
+		}
+	}
+
+	/**
+	 * Convert a list of row objects to JSON
+	 */
+	static List<JsonNode> toRows(Object value) {
+		JsonNode tree = mapper.valueToTree(value);
+		List<JsonNode> rows = new ArrayList<>(tree.size());
+		for (JsonNode row : tree) {
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Replace the text values of some fields of a row by the pool's copies of them. The row is
+	 * changed in place, so it mustn't be shared yet (e.g. in a table).
+	 * 
+	 * @return the number of values replaced
+	 */
+	static int intern(InternPool<JsonNode> pool, Set<String> fields, JsonNode row) {
+		int replaced = 0;
+		if (row instanceof ObjectNode) {
+			for (String field : fields) {
+				JsonNode value = row.get(field);
+				if (value != null && value.isTextual()) {
+					JsonNode canonical = pool.intern(value);
+					if (canonical != value) {
+						((ObjectNode) row).put(field, canonical);
+						replaced++;
+					}
+				}
+			}
+		}
+		return replaced;
+	}
+
+	/**
+	 * Convert a row object to JSON, checking that it has an id
+	 */
+	static JsonNode toRow(Object row) {
+		JsonNode node = mapper.valueToTree(row);
+		if (!(node instanceof ObjectNode) || node.get(ID_FIELD) == null || node.get(ID_FIELD).isNull()) {
+			throw new IllegalArgumentException("Row has no '" + ID_FIELD + "' field: " + node);
+		}
+		return node;
+	}
+
+	/**
+	 * Arrange for a changed table to be written to disk: now, as part of a group commit, or by
+	 * the background flusher
+	 * 
+	 * @param t   the table
+	 * @param seq change sequence number of the change
+	 * @throws UncheckedIOException if the change must be made durable now, but can't be
+	 */
+	private void changed(Table t, long seq) {
+		if (groupCommitWindowMs >= 0) {
+			groupCommit(t, seq);
+		} else if (flushIntervalMs == 0) {
+			flushTable(t);
+		} else {
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Wait until a change is durable. If no flush of the table is under way, this thread becomes
+	 * the group's leader: it waits for the group commit window to let other changes arrive, then
+	 * flushes them all; otherwise it waits for the leader's flush to finish.
+	 * 
+	 * @param t   the table
+	 * @param seq change sequence number of the change
+	 * @throws UncheckedIOException if the flush fails
+	 */
+	private void groupCommit(Table t, long seq) {
+		synchronized (t.commitMonitor) {
+			while (t.durableSeq < seq) {
+				if (!t.committing) {
+					t.committing = true;
+					break;
+				}
+				try {
+					t.commitMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted waiting for commit of table " + t.name, e);
+				}
+			}
+			if (t.durableSeq >= seq) {
+				return;
+			}
+		}
+		// This thread is the leader of a new group
+		long flushedSeq = -1;
+		try {
+			if (groupCommitWindowMs > 0) {
+				Thread.sleep(groupCommitWindowMs);
+			}
+			flushedSeq = flushTable(t);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted during commit of table " + t.name, e);
+		} finally {
+			synchronized (t.commitMonitor) {
+				t.durableSeq = Math.max(t.durableSeq, flushedSeq);
+				t.committing = false;
+				t.commitMonitor.notifyAll();
+			}
+		}
+		if (flushedSeq < seq) {
+			throw new UncheckedIOException(new IOException("Unable to write database=" + dbName + " table=" + t.name));
+		}
+	}
+
+	/**
+	 * Write a table's unflushed changes to disk: the whole table if it is dirty (or its journal
+	 * has reached the compaction threshold), otherwise just its pending journal records.
+	 * <p>
+	 * The changes to be written are collected under the table's write lock, but are written
+	 * without it; the table's flush lock keeps flushes of the same table in order. Since a flush
+	 * can't start until the previous one has finished, when this returns every change up to the
+	 * returned sequence number is on disk.
+	 * 
+	 * @return change sequence number up to which the table is on disk, or -1 if the write failed
+	 */
+	private long flushTable(Table t) {
+		t.flushLock.lock();
+		try {
+			while (true) {
+				List<JsonNode> records = null;
+				List<JsonNode> snapshot = null;
+				long seq;
+				t.lock.writeLock().lock();
+				try {
+					seq = t.changeSeq;
+					if (t.rows == null) {
+						// Never loaded (so never changed), or removed
+						return seq;
+					}
+					if (t.dirty) {
+						t.compact();
+						snapshot = new ArrayList<>(t.rows);
+						t.dirty = false;
+					} else if (!t.pendingJournal.isEmpty()) {
+						records = new ArrayList<>(t.pendingJournal);
+					} else {
+						return seq;
+					}
+					t.pendingJournal.clear();
+				} finally {
+					t.lock.writeLock().unlock();
+				}
+				if (snapshot != null) {
+					return writeSnapshot(t, snapshot) ? seq : -1;
+				}
+				TableJournal journal = getJournal(t.name);
+				try {
+					journal.append(records);
+					t.journalRecords += records.size();
+					if (t.journalRecords < compactionThreshold) {
+						return seq;
+					}
+					logger.info("flush(): Compacting {} journal records into database={} table={}",
+							t.journalRecords, dbName, t.name);
+				} catch (IOException e) {
+					// Fall back to rewriting the whole table, which also covers the lost records
+					logger.error("flush(): Unable to append to {}", journal.getFile(), e);
+				}
+				markDirty(t);
+			}
+		} finally {
+			t.flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Start reading a table file, according to the read mode
+	 */
+	private <T> RowReader<T> openTable(File dbFile, Class<T> clazz) throws IOException {
+		if (readMode == ReadMode.MAPPED) {
+			return tableFormat.read(mappedFiles.map(dbFile), clazz);
+		}
+		return tableFormat.read(new FileInputStream(dbFile), clazz);
+	}
+
+	/**
+	 * Write a complete table file, replacing the table's journal. Called with
+	 * the table's flush lock held.
+	 * 
+	 * @return true if successful
+	 */
+	private boolean writeSnapshot(Table t, List<JsonNode> rows) {
+		File dbFile = getDbFile(t.name);
+		logger.info("writeTable(): Writing to: " + dbFile.getAbsolutePath());
+		try {
+			DurableFiles.replace(dbFile, os -> tableFormat.write(os, rows));
+			mappedFiles.unmap(dbFile);
+			// The new table file includes every journaled change, so the journal can go
+			getJournal(t.name).delete();
+			t.journalRecords = 0;
+			return true;
+		} catch (IOException e) {
+			// Leave the table dirty so that the next flush retries it
+			logger.error("writeTable(): Unable to write database={} table={}", dbName, t.name, e);
+			markDirty(t);
+			return false;
+		}
+	}
+
+	/**
+	 * Mark a table as needing to be rewritten in full
+	 */
+	private void markDirty(Table t) {
+		t.lock.writeLock().lock();
+		try {
+			if (t.rows != null) {
+				t.dirty = true;
+				t.pendingJournal.clear();
+			}
+		} finally {
+			t.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Make sure the background flusher is running for this database
+	 */
+	private synchronized void scheduleFlush() {
+		if (flushTask == null) {
+			openDbs.add(this);
+			flushTask = flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * A cached table: its rows (null until loaded from disk), their primary-key index, and its
+	 * unflushed changes. 'dirty' means that the whole table must be rewritten; otherwise
+	 * 'pendingJournal' holds the records still to be appended to the journal.
+	 * <p>
+	 * Deleting a row leaves a null in its place, so that the positions of the following rows (and
+	 * hence their index entries) don't change; the nulls are squeezed out when the table is
+	 * written, or when they make up half of the table.
+	 * <p>
+	 * The rows, index and pending changes are guarded by 'lock'. Rows are never modified in
+	 * place (a change replaces the row's JsonNode), so a copy of the row list taken under the lock
+	 * remains a consistent snapshot after the lock is released. 'flushLock' serializes writes of
+	 * the table's files, and guards 'journalRecords'.
+	 * <p>
+	 * Every change is numbered ('changeSeq', guarded by 'lock'); for group commit, 'durableSeq'
+	 * is the number of the last change known to be on disk, and 'committing' is set while a
+	 * group's leader is flushing. Both are guarded by 'commitMonitor'.
+	 */
+	private class Table {
+		final String name;
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		final ReentrantLock flushLock = new ReentrantLock();
+		List<JsonNode> rows;
+		final PrimaryKeyIndex index = new PrimaryKeyIndex();
+		int deletedRows;
+		boolean dirty;
+		final List<JsonNode> pendingJournal = new ArrayList<>();
+		int journalRecords;
+		long changeSeq;
+		final Object commitMonitor = new Object();
+		long durableSeq;
+		boolean committing;
+		final SecondaryIndexes secondary = new SecondaryIndexes();
+		final Versions.TableVersions rowVersions = versions.newTable();
+		/** Fields whose values are interned; shared with declaredInterns, so later declarations apply */
+		final Set<String> internedFields;
+
+		/**
+		 * @param name  name under which the table (or partition) is stored
+		 * @param table name of the table, for its declared secondary indexes and interned fields
+		 */
+		Table(String name, String table) {
+			this.name = name;
+			for (String field : declaredIndexes.getOrDefault(table, Collections.emptySet())) {
+				secondary.declare(field);
+			}
+			internedFields = declaredInterns.computeIfAbsent(table, k -> ConcurrentHashMap.newKeySet());
+		}
+
+		/**
+		 * Intern the values of the interned fields of a row which isn't in the table yet
+		 * 
+		 * @return the number of values replaced
+		 */
+		int intern(JsonNode row) {
+			return SimpleJsonDb.intern(internPool, internedFields, row);
+		}
+
+		/**
+		 * Acquire the read lock, first loading the table (under the write lock) if necessary
+		 */
+		void lockForRead() {
+			lock.readLock().lock();
+			if (rows == null) {
+				lock.readLock().unlock();
+				lock.writeLock().lock();
+				try {
+					load();
+					// Downgrade to the read lock
+					lock.readLock().lock();
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		}
+
+		/**
+		 * @return whether the table's rows are cached
+		 */
+		boolean isLoaded() {
+			lock.readLock().lock();
+			try {
+				return rows != null;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		List<JsonNode> copyRows() {
+			lockForRead();
+			try {
+				return copyLoadedRows();
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * @return a copy of the rows, or null if the table isn't loaded
+		 */
+		List<JsonNode> copyRowsIfLoaded() {
+			lock.readLock().lock();
+			try {
+				return (rows == null) ? null : copyLoadedRows();
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		private List<JsonNode> copyLoadedRows() {
+			List<JsonNode> copy = new ArrayList<>(rows.size() - deletedRows);
+			for (JsonNode row : rows) {
+				if (row != null) {
+					copy.add(row);
+				}
+			}
+			return copy;
+		}
+
+		/**
+		 * @return position of the row with the specified id, or -1 if there is none
+		 */
+		int find(String id) {
+			load();
+			return index.get(id);
+		}
+
+		/**
+		 * Find the rows in which a field has a value, or starts with a prefix, using the field's
+		 * secondary index if there is one
+		 * 
+		 * @return the matching rows; for a prefix, in order of the field's value
+		 */
+		List<JsonNode> lookup(String field, String key, boolean prefix) {
+			lockForRead();
+			try {
+				List<JsonNode> found = new ArrayList<>();
+				if (secondary.isIndexed(field)) {
+					for (String id : prefix ? secondary.findPrefix(field, key) : secondary.find(field, key)) {
+						int pos = index.get(id);
+						if (pos >= 0) {
+							found.add(rows.get(pos));
+						}
+					}
+					return found;
+				}
+				for (JsonNode row : rows) {
+					String value = (row == null) ? null : SecondaryIndexes.value(row, field);
+					if (value != null && (prefix ? value.startsWith(key) : value.equals(key))) {
+						found.add(row);
+					}
+				}
+				if (prefix) {
+					found.sort(Comparator.comparing(row -> SecondaryIndexes.value(row, field)));
+				}
+				return found;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * @return up to 'limit' rows, in order of id, starting after the specified id (or at the
+		 *         beginning, if it is null)
+		 */
+		List<JsonNode> scan(String afterId, int limit) {
+			lockForRead();
+			try {
+				List<String> ids = index.idsAfter(afterId, limit);
+				List<JsonNode> found = new ArrayList<>(ids.size());
+				for (String id : ids) {
+					found.add(rows.get(index.get(id)));
+				}
+				return found;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Check that a row (which must exist) has the version expected by the caller
+		 * 
+		 * @param ifVersion the expected version, or null if any version will do
+		 * @throws VersionConflictException if it doesn't
+		 */
+		void checkVersion(String table, String id, String ifVersion) {
+			if (ifVersion != null && !ifVersion.equals(rowVersions.row(id))) {
+				throw new VersionConflictException(table, id, ifVersion, rowVersions.row(id));
+			}
+		}
+
+		/**
+		 * Replace the entire contents of the table
+		 * 
+		 * @return change sequence number of the change
+		 */
+		long replaceRows(List<JsonNode> newRows) {
+			if (!internedFields.isEmpty()) {
+				for (JsonNode row : newRows) {
+					intern(row);
+				}
+			}
+			rows = newRows;
+			index.rebuild(rows);
+			secondary.rebuild(rows);
+			rowVersions.reset();
+			deletedRows = 0;
+			dirty = true;
+			pendingJournal.clear();
+			return ++changeSeq;
+		}
+
+		/**
+		 * Squeeze the deleted rows out of the table, and re-index it
+		 */
+		void compact() {
+			if (deletedRows > 0) {
+				rows = copyLoadedRows();
+				index.rebuild(rows);
+				deletedRows = 0;
+			}
+		}
+
+		/**
+		 * Apply a row-level change to the cached rows, and record it for the journal (or mark the
+		 * table dirty, in SNAPSHOT mode)
+		 * 
+		 * @return change sequence number of the change
+		 */
+		long apply(JsonNode record) {
+			replay(record);
+			List<String> changedIds = new ArrayList<>();
+			List<String> deletedIds = new ArrayList<>();
+			boolean batch = TableJournal.OP_BATCH.equals(TableJournal.op(record));
+			for (JsonNode r : batch ? TableJournal.records(record) : Collections.singletonList(record)) {
+				(TableJournal.OP_DELETE.equals(TableJournal.op(r)) ? deletedIds : changedIds).add(TableJournal.id(r));
+			}
+			rowVersions.changed(changedIds, deletedIds);
+			if (storageMode == StorageMode.JOURNAL && !dirty) {
+				pendingJournal.add(record);
+			} else {
+				dirty = true;
+			}
+			return ++changeSeq;
+		}
+
+		/**
+		 * Apply a row-level change to the cached rows. This is idempotent (an insert of an existing
+		 * row replaces it; an update of a missing row inserts it; a delete of a missing row does
+		 * nothing), so a journal can safely be replayed over a table file which already includes
+		 * some or all of its changes.
+		 */
+		private void replay(JsonNode record) {
+			if (TableJournal.OP_BATCH.equals(TableJournal.op(record))) {
+				for (JsonNode r : TableJournal.records(record)) {
+					replay(r);
+				}
+				return;
+			}
+			String id = TableJournal.id(record);
+			int pos = find(id);
+			if (TableJournal.OP_DELETE.equals(TableJournal.op(record))) {
+				if (pos >= 0) {
+					secondary.remove(rows.get(pos));
+					rows.set(pos, null);
+					index.remove(id);
+					if (++deletedRows > rows.size() / 2) {
+						compact();
+					}
+				}
+			} else {
+				JsonNode row = TableJournal.row(record);
+				intern(row);
+				if (pos >= 0) {
+					secondary.remove(rows.get(pos));
+					rows.set(pos, row);
+				} else {
+					index.put(id, rows.size());
+					rows.add(row);
+				}
+				secondary.add(row);
+			}
+		}
+
+		/**
+		 * Load the table from its file, then replay its journal (if any). Called with the write
+		 * lock held.
+		 * 
+		 * @throws UncheckedIOException if the table file or its journal can't be read, in which
+		 *                              case the table is left unloaded, so that a partial copy of
+		 *                              it is never written back over the file
+		 */
+		private void load() {
+			if (rows != null) {
+				return;
+			}
+			File dbFile = getDbFile(name);
+			logger.info("readTable(): Reading from: " + dbFile.getAbsolutePath());
+			List<JsonNode> loaded = new ArrayList<>();
+			int interned = 0;
+			if (dbFile.exists()) {
+				try (RowReader<JsonNode> reader = openTable(dbFile, JsonNode.class)) {
+					while (reader.hasNext()) {
+						JsonNode row = reader.next();
+						interned += intern(row);
+						loaded.add(row);
+					}
+				} catch (IOException | UncheckedIOException e) {
+					logger.error("readTable(): Unable to read database={} table={}", dbName, name, e);
+					throw (e instanceof UncheckedIOException) ? (UncheckedIOException) e
+							: new UncheckedIOException((IOException) e);
+				}
+			}
+			rows = loaded;
+			if (interned > 0) {
+				logger.info("readTable(): Shared {} repeated values of {} in database={} table={}", interned,
+						internedFields, dbName, name);
+			}
+			index.rebuild(rows);
+			secondary.rebuild(rows);
+			try {
+				TableJournal journal = getJournal(name);
+				journalRecords = 0;
+				long length = journal.replay(record -> {
+					replay(record);
+					journalRecords++;
+				});
+				// Cut off a torn last record, so that the next append doesn't run on from it
+				journal.truncate(length);
+				if (journalRecords > 0) {
+					logger.info("readTable(): Replayed {} journal records for database={} table={}",
+							journalRecords, dbName, name);
+				}
+			} catch (IOException | UncheckedIOException e) {
+				logger.error("readTable(): Unable to replay journal for database={} table={}", dbName, name, e);
+				// Leave the table unloaded, as for an unreadable table file: otherwise the next
+				// flush would write the partly replayed rows over the file and discard the journal
+				rows = null;
+				throw (e instanceof UncheckedIOException) ? (UncheckedIOException) e
+						: new UncheckedIOException((IOException) e);
+			}
+		}
 	}
 
 	// TODO: Consider generalizing this by making it a simple Map<String, Object>?
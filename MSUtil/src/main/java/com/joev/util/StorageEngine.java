@@ -0,0 +1,316 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * A store of named tables of JSON rows, identified by their 'id' field (see SimpleJsonDb.ID_FIELD).
+ * Rows are passed in and out as objects which Jackson can convert to and from JSON objects.
+ * <p>
+ * Implementations: SimpleJsonDb (tables stored in files) and InMemoryDb (tables held only in
+ * memory). All implementations are thread-safe.
+ */
+public interface StorageEngine {
+
+	/**
+	 * Initialize a table: if it doesn't already exist, create it from the sample in the program's
+	 * resources (DB_&lt;db&gt;_&lt;table&gt;.json)
+	 * 
+	 * @param table table name
+	 * @throws IOException
+	 */
+	void initTable(String table) throws IOException;
+
+	/**
+	 * Delete a table and its contents
+	 * 
+	 * @param table table name
+	 * @throws IOException
+	 */
+	void rmTable(String table) throws IOException;
+
+	/**
+	 * Read a table
+	 * 
+	 * @param <T>   Type defining the rows to be returned
+	 * @param clazz Class of the rows to be returned
+	 * @param table Name of the table
+	 * @return list of rows; each row is of type T
+	 */
+	<T> List<T> readTable(Class<T> clazz, String table);
+
+	/**
+	 * Stream the rows of a table, without building a list of them all. The stream should be
+	 * closed (e.g. with try-with-resources) if it isn't consumed to the end.
+	 * 
+	 * @param <T>   Type defining the rows to be returned
+	 * @param clazz Class of the rows to be returned
+	 * @param table Name of the table
+	 * @return stream of rows; each row is of type T
+	 */
+	<T> Stream<T> streamTable(Class<T> clazz, String table);
+
+	/**
+	 * Read a range of rows in order of id: ids which are integers are ordered numerically (and
+	 * come before any other ids, which are ordered as text). Reading successive pages, each
+	 * starting after the last id of the one before, visits every row once, even if rows are
+	 * inserted or deleted in between.
+	 * 
+	 * @param <T>     Type defining the rows to be returned
+	 * @param clazz   Class of the rows to be returned
+	 * @param table   Name of the table
+	 * @param afterId id after which to start (exclusive), or null to start at the beginning
+	 * @param limit   maximum number of rows to return
+	 * @return rows in order of id; fewer than 'limit' only at the end of the table
+	 */
+	<T> List<T> scanRows(Class<T> clazz, String table, String afterId, int limit);
+
+	/**
+	 * Replace the contents of a table
+	 * 
+	 * @param table Name of the table
+	 * @param value the contents of the table (list of objects)
+	 */
+	void writeTable(String table, Object value);
+
+	/**
+	 * Read a single row
+	 * 
+	 * @param <T>   Type defining the row to be returned
+	 * @param clazz Class of the row to be returned
+	 * @param table Name of the table
+	 * @param id    id of the row
+	 * @return the row, or null if the table has no row with that id
+	 */
+	<T> T readRow(Class<T> clazz, String table, String id);
+
+	/**
+	 * Read many rows by id, in a single pass: each table (or partition) is locked and looked up
+	 * once for the whole set of ids
+	 * 
+	 * @param <T>   Type defining the rows to be returned
+	 * @param clazz Class of the rows to be returned
+	 * @param table Name of the table
+	 * @param ids   ids of the rows
+	 * @return for each id, the row, or null if the table has no row with that id
+	 */
+	<T> List<T> readRows(Class<T> clazz, String table, List<String> ids);
+
+	/**
+	 * Read a single row, together with its version. The version changes whenever the row
+	 * changes, and is never reused for other contents (even after the row is deleted and
+	 * inserted again), so it can be used for optimistic concurrency (see the conditional
+	 * updateRow and deleteRow) and for caching.
+	 * 
+	 * @param <T>   Type defining the row to be returned
+	 * @param clazz Class of the row to be returned
+	 * @param table Name of the table
+	 * @param id    id of the row
+	 * @return the row and its version, or null if the table has no row with that id
+	 */
+	<T> VersionedRow<T> readVersionedRow(Class<T> clazz, String table, String id);
+
+	/**
+	 * Get the version of a row, without reading the row
+	 * 
+	 * @param table Name of the table
+	 * @param id    id of the row
+	 * @return the row's version (see readVersionedRow), or null if the table has no row with
+	 *         that id
+	 */
+	String rowVersion(String table, String id);
+
+	/**
+	 * Get the version of a table. The version changes whenever the contents of the table change.
+	 * 
+	 * @param table Name of the table
+	 * @return the table's version, as an opaque string
+	 */
+	String tableVersion(String table);
+
+	/**
+	 * Add a new row to the end of a table
+	 * 
+	 * @param table Name of the table
+	 * @param row   the new row; its 'id' field must not match any existing row
+	 * @throws IllegalArgumentException if the row has no id, or its id is already in use
+	 */
+	void insertRow(String table, Object row);
+
+	/**
+	 * Add a batch of new rows to the end of a table. This costs about the same as a single
+	 * insertRow: the whole batch is applied at once, and made durable (or scheduled to be) with
+	 * a single write.
+	 * 
+	 * @param table Name of the table
+	 * @param rows  the new rows; each must have an 'id' field
+	 * @return for each row, whether it was inserted (false if its id was already in use, either
+	 *         in the table or earlier in the batch)
+	 * @throws IllegalArgumentException if a row has no id, in which case nothing is inserted
+	 */
+	boolean[] insertRows(String table, List<?> rows);
+
+	/**
+	 * Replace an existing row
+	 * 
+	 * @param table Name of the table
+	 * @param row   the new contents of the row; its 'id' field identifies the row to be replaced
+	 * @return true if the row was replaced, false if the table has no row with that id
+	 */
+	boolean updateRow(String table, Object row);
+
+	/**
+	 * Replace an existing row, provided that it hasn't changed since the caller read it
+	 * 
+	 * @param table     Name of the table
+	 * @param row       the new contents of the row; its 'id' field identifies the row to be
+	 *                  replaced
+	 * @param ifVersion the version of the row (see readVersionedRow) which the caller expects it
+	 *                  to have, or null to replace it regardless
+	 * @return true if the row was replaced, false if the table has no row with that id
+	 * @throws VersionConflictException if the row doesn't have the expected version
+	 */
+	boolean updateRow(String table, Object row, String ifVersion);
+
+	/**
+	 * Atomically read, modify and replace an existing row
+	 * 
+	 * @param <T>      Type defining the row
+	 * @param clazz    Class of the row
+	 * @param table    Name of the table
+	 * @param id       id of the row
+	 * @param modifier given the current contents of the row, returns its new contents (which
+	 *                 must have the same id)
+	 * @return true if the row was replaced, false if the table has no row with that id
+	 */
+	<T> boolean updateRow(Class<T> clazz, String table, String id, UnaryOperator<T> modifier);
+
+	/**
+	 * Delete a row
+	 * 
+	 * @param table Name of the table
+	 * @param id    id of the row to be deleted
+	 * @return true if the row was deleted, false if the table has no row with that id
+	 */
+	boolean deleteRow(String table, String id);
+
+	/**
+	 * Delete a row, provided that it hasn't changed since the caller read it
+	 * 
+	 * @param table     Name of the table
+	 * @param id        id of the row to be deleted
+	 * @param ifVersion the version of the row (see readVersionedRow) which the caller expects it
+	 *                  to have, or null to delete it regardless
+	 * @return true if the row was deleted, false if the table has no row with that id
+	 * @throws VersionConflictException if the row doesn't have the expected version
+	 */
+	boolean deleteRow(String table, String id, String ifVersion);
+
+	/**
+	 * Replace a batch of existing rows, all together or not at all: if any of the rows doesn't
+	 * exist, none of them is replaced. No other change to the table can happen in the middle of
+	 * the batch.
+	 * 
+	 * @param table Name of the table
+	 * @param rows  the new contents of the rows; their 'id' fields identify the rows to be
+	 *              replaced
+	 * @return ids of the rows which don't exist (an empty list if the rows were replaced)
+	 * @throws IllegalArgumentException if a row has no id, in which case nothing is replaced
+	 */
+	List<String> updateRows(String table, List<?> rows);
+
+	/**
+	 * Delete a batch of rows, all together or not at all: if any of the rows doesn't exist, none
+	 * of them is deleted. No other change to the table can happen in the middle of the batch.
+	 * 
+	 * @param table Name of the table
+	 * @param ids   ids of the rows to be deleted
+	 * @return ids of the rows which don't exist (an empty list if the rows were deleted)
+	 */
+	List<String> deleteRows(String table, List<String> ids);
+
+	/**
+	 * Declare a secondary index on a field of a table's rows, so that findRows and
+	 * findRowsByPrefix on that field don't have to scan the table. The index is kept up to date
+	 * as the table changes. Declaring an index which already exists does nothing.
+	 * 
+	 * @param table Name of the table
+	 * @param field Name of the field to be indexed
+	 */
+	void createIndex(String table, String field);
+
+	/**
+	 * Declare that many rows of a table share the same values of a field (e.g. customers at the
+	 * same address), so that the engine should keep one copy of each value in memory rather than
+	 * one per row. Applies to the rows loaded or written after the declaration; it doesn't change
+	 * what is read or stored.
+	 * 
+	 * @param table Name of the table
+	 * @param field Name of the field whose values are to be shared
+	 */
+	void internField(String table, String field);
+
+	/**
+	 * Find the rows in which a field has a specified value. Values are compared as text.
+	 * 
+	 * @param <T>   Type defining the rows to be returned
+	 * @param clazz Class of the rows to be returned
+	 * @param table Name of the table
+	 * @param field Name of the field
+	 * @param value Value to look for
+	 * @return matching rows (an empty list if there are none)
+	 */
+	<T> List<T> findRows(Class<T> clazz, String table, String field, String value);
+
+	/**
+	 * Find the rows in which a field starts with a specified prefix. Values are compared as
+	 * text.
+	 * 
+	 * @param <T>    Type defining the rows to be returned
+	 * @param clazz  Class of the rows to be returned
+	 * @param table  Name of the table
+	 * @param field  Name of the field
+	 * @param prefix Prefix to look for
+	 * @return matching rows, in order of the field's value (an empty list if there are none)
+	 */
+	<T> List<T> findRowsByPrefix(Class<T> clazz, String table, String field, String prefix);
+
+	/**
+	 * @return a unique Id value to assign to a newly-created item
+	 */
+	int nextId();
+
+	/**
+	 * Make all changes so far durable (if the engine has durable storage)
+	 */
+	void flush();
+
+	/**
+	 * Write a copy of all the tables of the database, consistent as of a single moment, into a
+	 * new directory (e.g. for a backup), without holding up writers while it is written
+	 * 
+	 * @param target directory to be created
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the target already exists
+	 */
+	void snapshot(File target) throws IOException;
+
+	/**
+	 * Replace the tables of the database by those in a snapshot (see snapshot), all at once.
+	 * Tables which aren't in the snapshot are left as they are.
+	 * 
+	 * @param source directory written by snapshot
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the directory holds no tables of this database
+	 */
+	void restore(File source) throws IOException;
+
+	/**
+	 * Flush all changes and release any background resources. The engine may still be used
+	 * afterwards.
+	 */
+	void close();
+}
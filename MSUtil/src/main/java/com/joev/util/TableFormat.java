@@ -0,0 +1,58 @@
+package com.joev.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * An on-disk format for SimpleJsonDb table files
+ */
+public interface TableFormat {
+
+	/** A JSON array of objects, pretty-printed (the original format) */
+	TableFormat JSON = new JsonTableFormat();
+
+	/** Compact binary rows, each prefixed by its length, after a header describing the columns */
+	TableFormat BINARY = new BinaryTableFormat();
+
+	/**
+	 * @return file name extension (including the '.') for tables in this format
+	 */
+	String getExtension();
+
+	/**
+	 * Write a complete table
+	 * 
+	 * @param os   stream to write the table to
+	 * @param rows the rows of the table
+	 * @throws IOException
+	 */
+	void write(OutputStream os, List<JsonNode> rows) throws IOException;
+
+	/**
+	 * Start reading a table
+	 * 
+	 * @param <T>   Type of the rows to be returned
+	 * @param is    stream containing the table; it is closed when the reader is closed
+	 * @param clazz Class of the rows to be returned
+	 * @return reader which returns the rows one at a time
+	 * @throws IOException
+	 */
+	<T> RowReader<T> read(InputStream is, Class<T> clazz) throws IOException;
+
+	/**
+	 * Start reading a table held in memory (e.g. a memory-mapped table file)
+	 * 
+	 * @param <T>   Type of the rows to be returned
+	 * @param buf   buffer containing the table, from its position to its limit; the reader
+	 *              advances its position
+	 * @param clazz Class of the rows to be returned
+	 * @return reader which returns the rows one at a time
+	 * @throws IOException
+	 */
+	<T> RowReader<T> read(ByteBuffer buf, Class<T> clazz) throws IOException;
+}
@@ -0,0 +1,198 @@
+package com.joev.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * An append-only log of row-level changes to a SimpleJsonDb table. Each change is one line of
+ * JSON of the form {"op":"insert|update|delete","id":"...","row":{...}}, and a batch of changes
+ * which must be applied together is one line of the form {"op":"batch","records":[...]}.
+ */
+class TableJournal {
+	private static final Logger logger = LogManager.getLogger(TableJournal.class);
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	static final String OP_INSERT = "insert";
+	static final String OP_UPDATE = "update";
+	static final String OP_DELETE = "delete";
+	/** A batch of changes which must be applied all together or not at all */
+	static final String OP_BATCH = "batch";
+
+	private static final String FIELD_OP = "op";
+	private static final String FIELD_ID = "id";
+	private static final String FIELD_ROW = "row";
+	private static final String FIELD_RECORDS = "records";
+
+	private final File file;
+
+	TableJournal(File file) {
+		this.file = file;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Build a journal record
+	 * 
+	 * @param op  one of OP_INSERT, OP_UPDATE, OP_DELETE
+	 * @param id  id of the affected row
+	 * @param row new contents of the row (null for OP_DELETE)
+	 * @return the record
+	 */
+	static JsonNode record(String op, String id, JsonNode row) {
+		ObjectNode record = mapper.createObjectNode();
+		record.put(FIELD_OP, op);
+		record.put(FIELD_ID, id);
+		if (row != null) {
+			record.put(FIELD_ROW, row);
+		}
+		return record;
+	}
+
+	/**
+	 * Build a batch record. Being a single line of the journal, it is written (and replayed)
+	 * completely or not at all.
+	 * 
+	 * @param records the records of the batch
+	 * @return the record
+	 */
+	static JsonNode batch(List<JsonNode> records) {
+		ObjectNode record = mapper.createObjectNode();
+		record.put(FIELD_OP, OP_BATCH);
+		record.putArray(FIELD_RECORDS).addAll(records);
+		return record;
+	}
+
+	/**
+	 * @return the records of a batch record
+	 */
+	static JsonNode records(JsonNode record) {
+		return record.path(FIELD_RECORDS);
+	}
+
+	static String op(JsonNode record) {
+		return record.path(FIELD_OP).asText();
+	}
+
+	static String id(JsonNode record) {
+		return record.path(FIELD_ID).asText();
+	}
+
+	static JsonNode row(JsonNode record) {
+		return record.get(FIELD_ROW);
+	}
+
+	/**
+	 * Append records to the end of the journal, and force them to disk
+	 * 
+	 * @param records records to be appended
+	 * @throws IOException
+	 */
+	void append(List<JsonNode> records) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (JsonNode record : records) {
+			sb.append(mapper.writeValueAsString(record)).append('\n');
+		}
+		DurableFiles.append(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Read the journal from the beginning, passing each record to 'consumer'. A trailing partial
+	 * record (e.g. from a crash in the middle of an append) is logged and ignored, and so is
+	 * anything after an unreadable record; the journal should then be truncated (see truncate)
+	 * before anything more is appended to it, or the appended records would be unreadable too.
+	 * 
+	 * @param consumer receives each record, in the order written
+	 * @return the length of the readable part of the journal: the offset just after the last
+	 *         record passed to 'consumer' (0 if there is no journal)
+	 * @throws IOException
+	 */
+	long replay(Consumer<JsonNode> consumer) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		long good = 0;
+		long offset = 0;
+		int n = 0;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream is = new FileInputStream(file)) {
+			int len;
+			while ((len = is.read(buffer)) > 0) {
+				int start = 0;
+				for (int i = 0; i < len; i++) {
+					if (buffer[i] != '\n') {
+						continue;
+					}
+					line.write(buffer, start, i - start);
+					start = i + 1;
+					if (line.size() > 0) {
+						JsonNode record;
+						try {
+							record = mapper.readTree(line.toByteArray());
+						} catch (IOException e) {
+							logger.warn("replay(): Ignoring unreadable record #{} in {}, and everything after it: {}",
+									n + 1, file, line.toString("UTF-8"));
+							return good;
+						}
+						consumer.accept(record);
+						n++;
+						line.reset();
+					}
+					good = offset + start;
+				}
+				line.write(buffer, start, len - start);
+				offset += len;
+			}
+		}
+		if (line.size() > 0) {
+			// No newline, so the append which wrote it didn't finish (and wasn't acknowledged)
+			logger.warn("replay(): Ignoring partial record #{} at the end of {}: {}", n + 1, file,
+					line.toString("UTF-8"));
+		}
+		return good;
+	}
+
+	/**
+	 * Cut off anything after the readable part of the journal (see replay), and force the change
+	 * to disk, so that later appends follow the last good record
+	 * 
+	 * @param length length of the readable part of the journal
+	 * @throws IOException
+	 */
+	void truncate(long length) throws IOException {
+		if (!file.exists() || file.length() <= length) {
+			return;
+		}
+		logger.warn("truncate(): Discarding {} unreadable bytes at the end of {}", file.length() - length, file);
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			ch.truncate(length);
+			ch.force(true);
+		}
+	}
+
+	/**
+	 * Discard the journal (after its contents have been folded into a new snapshot)
+	 */
+	void delete() {
+		if (file.exists()) {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.joev.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Reads the rows of a JSON table file (a JSON array of objects) one at a time, using Jackson's
+ * incremental parser, so that only the current row is held in memory. The underlying stream is
+ * closed when the last row has been read, or by close().
+ * 
+ * @param <T> Type of the rows
+ */
+class TableReader<T> implements RowReader<T> {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final Class<T> clazz;
+	private final JsonParser parser;
+	/** Token at the start of the next row, or null if there are no more rows */
+	private JsonToken nextToken;
+
+	/**
+	 * @param is    stream containing the table
+	 * @param clazz Class of the rows
+	 * @throws IOException if the stream can't be read, or doesn't start with a JSON array
+	 */
+	TableReader(InputStream is, Class<T> clazz) throws IOException {
+		this.clazz = clazz;
+		this.parser = mapper.getJsonFactory().createJsonParser(is);
+		JsonToken first = parser.nextToken();
+		if (first == null) {
+			// Empty file: no rows
+			close();
+			return;
+		}
+		if (first != JsonToken.START_ARRAY) {
+			close();
+			throw new IOException("Table does not start with a JSON array: " + parser.getCurrentLocation());
+		}
+		advance();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextToken != null;
+	}
+
+	@Override
+	public T next() {
+		if (nextToken == null) {
+			throw new NoSuchElementException();
+		}
+		try {
+			T row = mapper.readValue(parser, clazz);
+			advance();
+			return row;
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		nextToken = null;
+		try {
+			parser.close();
+		} catch (IOException e) {
+			// Nothing useful to do
+		}
+	}
+
+	/**
+	 * Move to the start of the next row, closing the parser after the last one
+	 */
+	private void advance() throws IOException {
+		nextToken = parser.nextToken();
+		if (nextToken == JsonToken.END_ARRAY || nextToken == null) {
+			close();
+		}
+	}
+}
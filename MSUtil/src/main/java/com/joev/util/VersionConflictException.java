@@ -0,0 +1,24 @@
+package com.joev.util;
+
+/**
+ * Thrown when a conditional change to a row is refused because the row's current version isn't
+ * the one the caller expected (i.e. someone else has changed it since the caller read it)
+ */
+public class VersionConflictException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final String currentVersion;
+
+	public VersionConflictException(String table, String id, String expectedVersion, String currentVersion) {
+		super(String.format("Row %s of table %s has version %s, not %s", id, table, currentVersion,
+				expectedVersion));
+		this.currentVersion = currentVersion;
+	}
+
+	/**
+	 * @return the row's current version
+	 */
+	public String getCurrentVersion() {
+		return currentVersion;
+	}
+}
@@ -0,0 +1,16 @@
+package com.joev.util;
+
+/**
+ * A row, together with its version (see StorageEngine.readVersionedRow)
+ * 
+ * @param <T> Type defining the row
+ */
+public class VersionedRow<T> {
+	public final T row;
+	public final String version;
+
+	public VersionedRow(T row, String version) {
+		this.row = row;
+		this.version = version;
+	}
+}
@@ -0,0 +1,107 @@
+package com.joev.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version numbers for the tables and rows of a storage engine, for optimistic concurrency (e.g.
+ * HTTP If-Match) and caching (e.g. HTTP ETags).
+ * <p>
+ * Every change gets a new version number from a single counter, so a version is never reused
+ * within an engine, even by a table which is removed and created again. Versions are given to
+ * callers as opaque strings which also identify the engine instance, so versions handed out
+ * before a restart never match those handed out after it.
+ */
+class Versions {
+	/** Identifies this engine instance */
+	private final String epoch = Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36);
+	private final AtomicLong last = new AtomicLong();
+
+	/**
+	 * @return a new version number, greater than any handed out before
+	 */
+	long next() {
+		return last.incrementAndGet();
+	}
+
+	/**
+	 * @return a version number as an opaque string
+	 */
+	String format(long version) {
+		return epoch + "-" + Long.toString(version, 36);
+	}
+
+	/**
+	 * @return versions for a new table
+	 */
+	TableVersions newTable() {
+		return new TableVersions();
+	}
+
+	/**
+	 * The versions of a table and its rows. A row which hasn't changed since the table was
+	 * created, loaded or replaced has the table's base version; only rows changed since then are
+	 * recorded individually.
+	 * <p>
+	 * Not thread-safe: the owning table's lock must be held.
+	 */
+	class TableVersions {
+		/** Version of the table as a whole: that of its last change */
+		private long tableVersion;
+		/** Version of the rows which haven't changed since the table was (re)created */
+		private long baseVersion;
+		private final Map<String, Long> rowVersions = new HashMap<>();
+
+		private TableVersions() {
+			reset();
+		}
+
+		/**
+		 * Record that the whole table has been replaced
+		 */
+		void reset() {
+			baseVersion = tableVersion = next();
+			rowVersions.clear();
+		}
+
+		/**
+		 * Record a change to some rows (all with the same new version)
+		 * 
+		 * @param changedIds ids of the rows inserted or updated
+		 * @param deletedIds ids of the rows deleted
+		 */
+		void changed(Iterable<String> changedIds, Iterable<String> deletedIds) {
+			tableVersion = next();
+			for (String id : changedIds) {
+				rowVersions.put(id, tableVersion);
+			}
+			for (String id : deletedIds) {
+				rowVersions.remove(id);
+			}
+		}
+
+		/**
+		 * @return the version number of the table (see format); a table changed more recently
+		 *         has a greater one
+		 */
+		long tableNumber() {
+			return tableVersion;
+		}
+
+		/**
+		 * @return the version of the table, as an opaque string
+		 */
+		String table() {
+			return format(tableVersion);
+		}
+
+		/**
+		 * @return the version of a row (which must exist), as an opaque string
+		 */
+		String row(String id) {
+			return format(rowVersions.getOrDefault(id, baseVersion));
+		}
+	}
+}
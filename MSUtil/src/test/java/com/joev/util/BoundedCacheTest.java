@@ -0,0 +1,87 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class BoundedCacheTest {
+	private static final Logger logger = LogManager.getLogger(BoundedCacheTest.class);
+
+	@Rule public TestName testName = new TestName();
+
+	private BoundedCache<String, byte[]> cache;
+
+	@Before
+	public void before() {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+		cache = new BoundedCache<>(100, value -> value.length);
+	}
+
+	/** Test that the least recently used entries are evicted to keep within the bound */
+	@Test
+	public void testEviction() {
+		cache.put("a", new byte[40]);
+		cache.put("b", new byte[40]);
+		assertWithMessage("Hit").that(cache.get("a")).isNotNull();
+		cache.put("c", new byte[40]);
+		assertWithMessage("Least recently used entry").that(cache.get("b")).isNull();
+		assertWithMessage("Recently used entry").that(cache.get("a")).isNotNull();
+		assertWithMessage("New entry").that(cache.get("c")).isNotNull();
+		assertThat(cache.weight()).isEqualTo(80);
+		logger.info("Stats: {}", cache.stats());
+		assertWithMessage("Hits").that(cache.stats().get("hits")).isEqualTo(3);
+		assertWithMessage("Misses").that(cache.stats().get("misses")).isEqualTo(1);
+		assertWithMessage("Evictions").that(cache.stats().get("evictions")).isEqualTo(1);
+	}
+
+	/** Test that a scan of keys used once flushes out the frequently used entries of an LRU cache, but not of a TINY_LFU cache */
+	@Test
+	public void testScanResistance() {
+		for (BoundedCache.Policy policy : BoundedCache.Policy.values()) {
+			BoundedCache<Integer, String> cache = new BoundedCache<>(100, value -> 1, policy);
+			for (int key = 0; key < 50; key++) {
+				cache.put(key, "hot");
+			}
+			for (int i = 0; i < 10; i++) {
+				for (int key = 0; key < 50; key++) {
+					cache.get(key);
+				}
+			}
+			for (int key = 1000; key < 1200; key++) {
+				cache.put(key, "scan");
+			}
+			int hotLeft = 0;
+			for (int key = 0; key < 50; key++) {
+				if (cache.get(key) != null) {
+					hotLeft++;
+				}
+			}
+			logger.info("{}: {} hot entries left; stats: {}", policy, hotLeft, cache.stats());
+			assertWithMessage("%s cache size", policy).that(cache.size()).isAtMost(100);
+			assertWithMessage("%s hot entries left", policy).that(hotLeft)
+				.isEqualTo(policy == BoundedCache.Policy.LRU ? 0 : 50);
+		}
+	}
+
+	/** Test replacing and removing entries, and an entry too heavy to be cached */
+	@Test
+	public void testReplaceAndRemove() {
+		cache.put("a", new byte[40]);
+		cache.put("a", new byte[60]);
+		assertThat(cache.weight()).isEqualTo(60);
+		cache.put("huge", new byte[101]);
+		assertWithMessage("Entry heavier than the bound").that(cache.get("huge")).isNull();
+		assertWithMessage("Other entries kept").that(cache.get("a")).isNotNull();
+		cache.remove("a");
+		assertThat(cache.size()).isEqualTo(0);
+		assertThat(cache.weight()).isEqualTo(0);
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class IdAllocatorTest {
+	private static final Logger logger = LogManager.getLogger(IdAllocatorTest.class);
+
+	@Rule public TestName testName = new TestName();
+
+	/** First id of the persistent high-water mark */
+	private static final long FIRST_ID = 1000;
+
+	private final AtomicLong highWaterMark = new AtomicLong(FIRST_ID);
+
+	@Before
+	public void before() {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+	}
+
+	/** Test that ids come from successive blocks, and that reset moves on to a new block */
+	@Test
+	public void testNextId() {
+		IdAllocator allocator = new IdAllocator(3, highWaterMark::getAndAdd);
+		List<Long> ids = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			ids.add(allocator.nextId());
+		}
+		allocator.reset();
+		ids.add(allocator.nextId());
+		assertThat(ids).containsExactly(1000L, 1001L, 1002L, 1003L, 1006L).inOrder();
+	}
+
+	/**
+	 * Test that ids handed out while another thread resets the allocator are unique and all come
+	 * from reserved blocks
+	 */
+	@Test
+	public void testReset_Concurrent() throws Exception {
+		IdAllocator allocator = new IdAllocator(5, highWaterMark::getAndAdd);
+		Set<Long> ids = ConcurrentHashMap.newKeySet();
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong duplicates = new AtomicLong();
+		int nThreads = 4;
+		int idsPerThread = 50_000;
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			threads.add(new Thread(() -> {
+				for (int n = 0; n < idsPerThread; n++) {
+					if (!ids.add(allocator.nextId())) {
+						duplicates.incrementAndGet();
+					}
+				}
+			}));
+		}
+		Thread resetter = new Thread(() -> {
+			while (!stop.get()) {
+				allocator.reset();
+			}
+		});
+		resetter.start();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		stop.set(true);
+		resetter.join();
+		logger.info("{} ids handed out, high-water mark {}", ids.size(), highWaterMark.get());
+		assertWithMessage("Duplicate ids").that(duplicates.get()).isEqualTo(0);
+		assertWithMessage("Lowest id").that(ids.stream().mapToLong(Long::longValue).min().getAsLong())
+			.isAtLeast(FIRST_ID);
+		assertWithMessage("Highest id").that(ids.stream().mapToLong(Long::longValue).max().getAsLong())
+			.isLessThan(highWaterMark.get());
+	}
+}
@@ -0,0 +1,13 @@
+package com.joev.util;
+
+/**
+ * Runs the tests of InMemoryDb with its rows kept off the heap
+ */
+public class InMemoryDbOffHeapTest extends InMemoryDbTest {
+	
+	@Override
+	protected StorageEngine newDb() {
+		return new InMemoryDb(DB).withOffHeapRows();
+	}
+	
+}
@@ -0,0 +1,13 @@
+package com.joev.util;
+
+/**
+ * Runs the tests of InMemoryDb with its rows kept packed by numeric id
+ */
+public class InMemoryDbPackedTest extends InMemoryDbTest {
+	
+	@Override
+	protected StorageEngine newDb() {
+		return new InMemoryDb(DB).withPackedRows();
+	}
+	
+}
@@ -0,0 +1,223 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class InMemoryDbTest {
+	private static final Logger logger = LogManager.getLogger(InMemoryDbTest.class);
+	
+	@Rule public TestName testName = new TestName();
+	
+	protected static final String DB = "SimpleJsonDbSample";
+	private static final String TABLE = "MyTable";
+	private static final int EXPECTED_NROWS_BEFORE = 2;
+	private static final int EXPECTED_NEXT_ID = 104; // 'nextId' in the sample Metadata table
+	
+	public StorageEngine db;
+	
+	@Before
+	public void before() throws IOException {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+		db = newDb();
+		db.initTable(SimpleJsonDb.DB_METADATA_TABLE);
+		db.initTable(TABLE);
+	}
+	
+	/**
+	 * @return the engine to be tested
+	 */
+	protected StorageEngine newDb() {
+		return new InMemoryDb(DB);
+	}
+	
+	@After
+	public void after() throws Exception {
+		db.rmTable(SimpleJsonDb.DB_METADATA_TABLE);
+		db.rmTable(TABLE);
+	}
+	
+	/** Test reading a table initialized from the sample in the resources */
+	@Test
+	public void testReadTable() {
+		List<MyTableRow> rows = db.readTable(MyTableRow.class, TABLE);
+		assertThat(rows.size()).isEqualTo(EXPECTED_NROWS_BEFORE);
+		try (Stream<MyTableRow> stream = db.streamTable(MyTableRow.class, TABLE)) {
+			assertWithMessage("Streamed ids").that(stream.map(row -> row.id).collect(Collectors.toList()))
+				.containsExactly(rows.get(0).id, rows.get(1).id).inOrder();
+		}
+	}
+	
+	/** Test replacing the contents of a table, and removing it */
+	@Test
+	public void testWriteTable() throws IOException {
+		List<MyTableRow> rows = db.readTable(MyTableRow.class, TABLE);
+		rows.get(0).s1 = "Updated value of Row 1 S1";
+		rows.add(newRow("1001"));
+		db.writeTable(TABLE, rows);
+		assertWithMessage("Updated row s1").that(db.readRow(MyTableRow.class, TABLE, rows.get(0).id).s1)
+			.isEqualTo(rows.get(0).s1);
+		assertWithMessage("Added row").that(db.readRow(MyTableRow.class, TABLE, "1001")).isNotNull();
+		// A table which is initialized again keeps its contents
+		db.initTable(TABLE);
+		assertThat(db.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE + 1);
+		db.rmTable(TABLE);
+		assertThat(db.readTable(MyTableRow.class, TABLE)).isEmpty();
+	}
+	
+	/** Test the row-level operations: insert, read, update, and delete a single row */
+	@Test
+	public void testRowOperations() {
+		MyTableRow newRow = newRow(String.valueOf(db.nextId()));
+		db.insertRow(TABLE, newRow);
+		assertWithMessage("Inserted row s1").that(db.readRow(MyTableRow.class, TABLE, newRow.id).s1)
+			.isEqualTo(newRow.s1);
+
+		newRow.s2 = "Updated ROW!!! S2";
+		assertWithMessage("updateRow() result").that(db.updateRow(TABLE, newRow)).isTrue();
+		assertWithMessage("Updated row s2")
+			.that(db.readRow(MyTableRow.class, TABLE, newRow.id).s2).isEqualTo(newRow.s2);
+		assertWithMessage("Atomic updateRow() result").that(db.updateRow(MyTableRow.class, TABLE, newRow.id, row -> {
+			row.s1 = "Modified ROW!!! S1";
+			return row;
+		})).isTrue();
+		assertWithMessage("Modified row s1")
+			.that(db.readRow(MyTableRow.class, TABLE, newRow.id).s1).isEqualTo("Modified ROW!!! S1");
+
+		assertWithMessage("deleteRow() result").that(db.deleteRow(TABLE, newRow.id)).isTrue();
+		assertWithMessage("Deleted row").that(db.readRow(MyTableRow.class, TABLE, newRow.id)).isNull();
+		assertThat(db.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE);
+
+		// Operations on a nonexistent row
+		assertWithMessage("updateRow() of missing row").that(db.updateRow(TABLE, newRow)).isFalse();
+		assertWithMessage("deleteRow() of missing row").that(db.deleteRow(TABLE, newRow.id)).isFalse();
+	}
+	
+	/** Test reading many rows by id at once */
+	@Test
+	public void testReadRows() {
+		List<MyTableRow> rows = db.readRows(MyTableRow.class, TABLE, Arrays.asList("101", "missing", "100"));
+		assertThat(rows).hasSize(3);
+		assertWithMessage("Row 101").that(rows.get(0).id).isEqualTo("101");
+		assertWithMessage("Missing row").that(rows.get(1)).isNull();
+		assertWithMessage("Row 100").that(rows.get(2).id).isEqualTo("100");
+	}
+	
+	/** Test inserting a row whose id is already in use */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInsertRow_DuplicateId() {
+		db.insertRow(TABLE, db.readTable(MyTableRow.class, TABLE).get(0));
+	}
+	
+	/** Test inserting a batch of rows, some of whose ids are already in use */
+	@Test
+	public void testInsertRows() {
+		List<MyTableRow> batch = Arrays.asList(newRow("1001"), newRow("100"), newRow("1002"), newRow("1001"));
+		assertWithMessage("Inserted").that(db.insertRows(TABLE, batch))
+			.isEqualTo(new boolean[] { true, false, true, false });
+		assertThat(db.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE + 2);
+	}
+	
+	/** Test updating and deleting batches of rows, all together or not at all */
+	@Test
+	public void testBatchUpdateDelete() {
+		MyTableRow row = newRow("100");
+		row.s1 = "Updated ROW!!! S1";
+		assertWithMessage("Missing rows").that(db.updateRows(TABLE, Arrays.asList(row, newRow("999"))))
+			.containsExactly("999");
+		assertWithMessage("Missing rows").that(db.deleteRows(TABLE, Arrays.asList("101", "999")))
+			.containsExactly("999");
+		assertThat(db.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE);
+		assertWithMessage("Missing rows").that(db.updateRows(TABLE, Arrays.asList(row))).isEmpty();
+		assertWithMessage("Updated row s1").that(db.readRow(MyTableRow.class, TABLE, "100").s1).isEqualTo(row.s1);
+		assertWithMessage("Missing rows").that(db.deleteRows(TABLE, Arrays.asList("100", "101"))).isEmpty();
+		assertThat(db.readTable(MyTableRow.class, TABLE)).isEmpty();
+	}
+	
+	/** Test that ids start from the Metadata table's counter, and are unique */
+	@Test
+	public void testNextId() {
+		for (int n = 0; n < 5; n++) {
+			assertWithMessage("Id of new item #" + n).that(db.nextId()).isEqualTo(EXPECTED_NEXT_ID + n);
+		}
+	}
+	
+	/** Test exact and prefix lookups with a secondary index, as rows are inserted, updated and deleted */
+	@Test
+	public void testSecondaryIndex() {
+		db.createIndex(TABLE, "s1");
+		for (int n = 4; n >= 0; n--) {
+			MyTableRow row = newRow(String.valueOf(1000 + n));
+			row.s1 = "Prefixed " + n;
+			db.insertRow(TABLE, row);
+		}
+		MyTableRow row = db.readRow(MyTableRow.class, TABLE, "1002");
+		row.s1 = "Renamed";
+		db.updateRow(TABLE, row);
+		db.deleteRow(TABLE, "1003");
+		assertWithMessage("Prefix match").that(db.findRowsByPrefix(MyTableRow.class, TABLE, "s1", "Prefixed ")
+			.stream().map(r -> r.id).collect(Collectors.toList())).containsExactly("1000", "1001", "1004").inOrder();
+		assertWithMessage("Exact match").that(db.findRows(MyTableRow.class, TABLE, "s1", "Renamed")).hasSize(1);
+		assertWithMessage("Unindexed match").that(db.findRows(MyTableRow.class, TABLE, "s2", "New ROW!!! S2"))
+			.hasSize(4);
+	}
+	
+	/** Test reading a table page by page, in order of id */
+	@Test
+	public void testScanRows() {
+		for (String id : new String[] { "1000", "abc", "99" }) {
+			db.insertRow(TABLE, newRow(id));
+		}
+		assertWithMessage("First page").that(db.scanRows(MyTableRow.class, TABLE, null, 3).stream()
+			.map(row -> row.id).collect(Collectors.toList())).containsExactly("99", "100", "101").inOrder();
+		assertWithMessage("Last page").that(db.scanRows(MyTableRow.class, TABLE, "101", 3).stream()
+			.map(row -> row.id).collect(Collectors.toList())).containsExactly("1000", "abc").inOrder();
+	}
+	
+	/** Test row and table versions, and conditional updates and deletes */
+	@Test
+	public void testVersions() {
+		SimpleJsonDbTest.checkVersions(db);
+	}
+	
+	/** Test taking a snapshot of the tables and restoring it */
+	@Test
+	public void testSnapshot() throws IOException {
+		SimpleJsonDbTest.checkSnapshot(db);
+	}
+	
+	// Utility routines below
+	
+	private static MyTableRow newRow(String id) {
+		MyTableRow row = new MyTableRow();
+		row.id = id;
+		row.s1 = "New ROW!!! S1";
+		row.s2 = "New ROW!!! S2";
+		return row;
+	}
+	
+	private static class MyTableRow {
+		@JsonProperty("id") public String id;
+		@JsonProperty("s1") public String s1;
+		@JsonProperty("s2") public String s2;
+		public String toString() {
+			return String.format("id='%s' s1='%s' s2='%s'", id, s1, s2);
+		}
+	}
+
+}
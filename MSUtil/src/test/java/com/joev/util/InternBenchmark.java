@@ -0,0 +1,122 @@
+package com.joev.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Measures the heap used by a loaded table of customers with and without interning its name and
+ * address fields (see SimpleJsonDb.internField), for several mixes of shared addresses. Each
+ * table is written to a test database, then loaded by a fresh SimpleJsonDb, and the heap it holds
+ * afterwards is reported, with the time taken to load it and the number of values shared. This is
+ * not a unit test; run it by hand, e.g.:
+ * 
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -Xmx2g -cp target/classes:target/test-classes:$(cat cp.txt) com.joev.util.InternBenchmark [nRows...]
+ * </pre>
+ * 
+ * The default table size is 1,000,000 rows. Names are drawn from 500 first names and 5,000 last
+ * names, favouring the common ones. The pool size can be set with -Dsimplejsondb.internPoolSize.
+ */
+public class InternBenchmark {
+	private static final String DB = "InternBenchmark";
+	private static final String TABLE = "Customers";
+	private static final String[] FIELDS = { "name", "address" };
+
+	/** Average number of customers per address, for each data set */
+	private static final double[] CUSTOMERS_PER_ADDRESS = { 1, 2.5, 20 };
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = { 1_000_000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		SimpleJsonDb.mkTestDbDir();
+		try {
+			System.out.printf("%10s %10s %-9s %14s %10s %10s %10s%n", "rows", "per addr", "interned", "heap bytes",
+					"heap/row", "shared", "load ms");
+			for (int nRows : sizes) {
+				for (double perAddress : CUSTOMERS_PER_ADDRESS) {
+					SimpleJsonDb writer = new SimpleJsonDb(DB, 0);
+					writer.writeTable(TABLE, makeRows(nRows, perAddress));
+					writer.flush();
+					writer = null;
+					for (boolean interned : new boolean[] { false, true }) {
+						long base = usedHeap();
+						long start = System.nanoTime();
+						SimpleJsonDb db = new SimpleJsonDb(DB, 0);
+						if (interned) {
+							for (String field : FIELDS) {
+								db.internField(TABLE, field);
+							}
+						}
+						// Load the table
+						db.readRow(JsonNode.class, TABLE, "0");
+						long loadNanos = System.nanoTime() - start;
+						long bytes = usedHeap() - base;
+						System.out.printf("%10d %10.1f %-9s %14d %10.1f %10d %10.1f%n", nRows, perAddress, interned,
+								bytes, (double) bytes / nRows, db.internedValues(), loadNanos / 1e6);
+						db = null;
+					}
+					new SimpleJsonDb(DB, 0).rmTable(TABLE);
+				}
+			}
+		} finally {
+			SimpleJsonDb.rmTestDbDir();
+		}
+	}
+
+	/**
+	 * @return rows resembling a table of customers, with the given average number of customers
+	 *         at each address
+	 */
+	private static List<JsonNode> makeRows(int nRows, double perAddress) {
+		Random random = new Random(42);
+		int nAddresses = Math.max(1, (int) (nRows / perAddress));
+		List<JsonNode> rows = new ArrayList<>(nRows);
+		for (int i = 0; i < nRows; i++) {
+			ObjectNode row = JsonNodeFactory.instance.objectNode();
+			row.put("id", Integer.toString(1000 + i));
+			row.put("name", "First" + skewed(random, 500) + " Last" + skewed(random, 5000));
+			int address = (perAddress == 1) ? i : random.nextInt(nAddresses);
+			row.put("address", (address % 9973) + " Street" + (address / 9973) + " Anytown USA");
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * @return a random number below n, with small numbers more likely than large ones
+	 */
+	private static int skewed(Random random, int n) {
+		double r = random.nextDouble();
+		return (int) (r * r * r * n);
+	}
+
+	/**
+	 * @return the number of bytes of heap in use, after collecting as much garbage as possible
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// Repeat until a collection frees nothing more
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			long now = runtime.totalMemory() - runtime.freeMemory();
+			if (now >= used) {
+				break;
+			}
+			used = now;
+		}
+		return used;
+	}
+}
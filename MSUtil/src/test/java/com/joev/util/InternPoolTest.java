@@ -0,0 +1,52 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class InternPoolTest {
+	private static final Logger logger = LogManager.getLogger(InternPoolTest.class);
+
+	@Rule public TestName testName = new TestName();
+
+	@Before
+	public void before() {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+	}
+
+	/** Test that equal values are replaced by the first copy, and the counters */
+	@Test
+	public void testIntern() {
+		InternPool<String> pool = new InternPool<>(100);
+		assertThat(pool.size()).isEqualTo(128);
+		String first = new String("148 PotOGold Street Anytown USA");
+		String second = new String(first);
+		assertThat(pool.intern(first)).isSameInstanceAs(first);
+		assertThat(pool.intern(second)).isSameInstanceAs(first);
+		assertThat(pool.intern("Elsewhere")).isEqualTo("Elsewhere");
+		assertThat(pool.hits()).isEqualTo(1);
+		assertThat(pool.misses()).isEqualTo(2);
+		pool.clear();
+		assertWithMessage("After clear").that(pool.intern(second)).isSameInstanceAs(second);
+	}
+
+	/** Test that the pool stays bounded: a colliding value takes over the slot */
+	@Test
+	public void testBounded() {
+		InternPool<String> pool = new InternPool<>(1);
+		String a = new String("a");
+		String b = new String("b");
+		assertThat(pool.intern(a)).isSameInstanceAs(a);
+		assertThat(pool.intern(b)).isSameInstanceAs(b);
+		String a2 = new String("a");
+		assertWithMessage("Evicted value").that(pool.intern(a2)).isSameInstanceAs(a2);
+		assertWithMessage("New copy").that(pool.intern(new String("a"))).isSameInstanceAs(a2);
+	}
+}
@@ -0,0 +1,62 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class JsonMergePatchTest {
+	private static final Logger logger = LogManager.getLogger(JsonMergePatchTest.class);
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Rule public TestName testName = new TestName();
+
+	@Before
+	public void before() {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+	}
+
+	/** Test the examples from RFC 7386, with single quotes for readability */
+	@Test
+	public void testApply() throws IOException {
+		String[][] examples = {
+			// target, patch, expected result
+			{ "{'a':'b'}", "{'a':'c'}", "{'a':'c'}" },
+			{ "{'a':'b'}", "{'b':'c'}", "{'a':'b','b':'c'}" },
+			{ "{'a':'b'}", "{'a':null}", "{}" },
+			{ "{'a':'b','b':'c'}", "{'a':null}", "{'b':'c'}" },
+			{ "{'a':['b']}", "{'a':'c'}", "{'a':'c'}" },
+			{ "{'a':'c'}", "{'a':['b']}", "{'a':['b']}" },
+			{ "{'a':{'b':'c'}}", "{'a':{'b':'d','c':null}}", "{'a':{'b':'d'}}" },
+			{ "{'a':[{'b':'c'}]}", "{'a':[1]}", "{'a':[1]}" },
+			{ "['a','b']", "['c','d']", "['c','d']" },
+			{ "{'a':'b'}", "['c']", "['c']" },
+			{ "{'a':'foo'}", "null", "null" },
+			{ "{'a':'foo'}", "'bar'", "'bar'" },
+			{ "{'e':null}", "{'a':1}", "{'e':null,'a':1}" },
+			{ "[1,2]", "{'a':'b','c':null}", "{'a':'b'}" },
+			{ "{}", "{'a':{'bb':{'ccc':null}}}", "{'a':{'bb':{}}}" },
+		};
+		for (String[] example : examples) {
+			JsonNode target = json(example[0]);
+			String targetBefore = target.toString();
+			JsonNode result = JsonMergePatch.apply(target, json(example[1]));
+			assertWithMessage("Patch %s of %s", example[1], example[0]).that(result).isEqualTo(json(example[2]));
+			assertWithMessage("Target after patch %s", example[1]).that(target.toString()).isEqualTo(targetBefore);
+		}
+	}
+
+	private static JsonNode json(String s) throws IOException {
+		return mapper.readTree(s.replace('\'', '"'));
+	}
+
+}
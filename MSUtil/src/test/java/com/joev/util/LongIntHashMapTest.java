@@ -0,0 +1,81 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class LongIntHashMapTest {
+	private static final Logger logger = LogManager.getLogger(LongIntHashMapTest.class);
+
+	@Rule public TestName testName = new TestName();
+
+	@Before
+	public void before() {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+	}
+
+	/** Test basic operations, including on the key which marks empty slots */
+	@Test
+	public void testBasics() {
+		LongIntHashMap map = new LongIntHashMap();
+		assertThat(map.get(100)).isEqualTo(LongIntHashMap.NO_VALUE);
+		assertThat(map.put(100, 1)).isEqualTo(LongIntHashMap.NO_VALUE);
+		assertThat(map.put(0, 2)).isEqualTo(LongIntHashMap.NO_VALUE);
+		assertThat(map.put(-5, 3)).isEqualTo(LongIntHashMap.NO_VALUE);
+		assertThat(map.put(100, 4)).isEqualTo(1);
+		assertThat(map.size()).isEqualTo(3);
+		assertThat(map.get(100)).isEqualTo(4);
+		assertThat(map.get(0)).isEqualTo(2);
+		assertThat(map.containsKey(-5)).isTrue();
+		assertThat(map.remove(0)).isEqualTo(2);
+		assertThat(map.containsKey(0)).isFalse();
+		assertThat(map.remove(0)).isEqualTo(LongIntHashMap.NO_VALUE);
+		assertThat(map.size()).isEqualTo(2);
+		map.clear();
+		assertThat(map.size()).isEqualTo(0);
+		assertThat(map.get(100)).isEqualTo(LongIntHashMap.NO_VALUE);
+	}
+
+	/** Test a random mix of operations, with growth and many removals, against a HashMap */
+	@Test
+	public void testAgainstHashMap() {
+		Random random = new Random(42);
+		LongIntHashMap map = new LongIntHashMap();
+		Map<Long, Integer> expected = new HashMap<>();
+		for (int op = 0; op < 200_000; op++) {
+			// A small range of keys, so that the same keys are put and removed many times
+			long key = random.nextInt(5000) - 100;
+			int value = random.nextInt(1000);
+			if (random.nextInt(3) == 0) {
+				Integer old = expected.remove(key);
+				assertWithMessage("remove(%s)", key).that(map.remove(key))
+					.isEqualTo(old == null ? LongIntHashMap.NO_VALUE : old);
+			} else {
+				Integer old = expected.put(key, value);
+				assertWithMessage("put(%s)", key).that(map.put(key, value))
+					.isEqualTo(old == null ? LongIntHashMap.NO_VALUE : old);
+			}
+		}
+		assertThat(map.size()).isEqualTo(expected.size());
+		for (long key = -100; key < 4900; key++) {
+			Integer value = expected.get(key);
+			assertWithMessage("get(%s)", key).that(map.get(key))
+				.isEqualTo(value == null ? LongIntHashMap.NO_VALUE : value);
+		}
+		Map<Long, Integer> visited = new HashMap<>();
+		map.forEach((key, value) -> visited.put(key, value));
+		assertThat(visited).isEqualTo(expected);
+	}
+
+}
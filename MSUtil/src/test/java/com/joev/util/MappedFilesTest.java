@@ -0,0 +1,96 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class MappedFilesTest {
+	private static final Logger logger = LogManager.getLogger(MappedFilesTest.class);
+
+	@Rule public TestName testName = new TestName();
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void before() throws IOException {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+		dir = Files.createTempDirectory("mapped").toFile();
+		file = new File(dir, "table");
+	}
+
+	@After
+	public void after() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/** Test that a file is mapped again once it has been replaced, and not before */
+	@Test
+	public void testMap() throws IOException {
+		MappedFiles mappedFiles = new MappedFiles();
+		replace("Old contents");
+		ByteBuffer first = mappedFiles.map(file);
+		assertWithMessage("Contents").that(contents(first)).isEqualTo("Old contents");
+		assertWithMessage("Same mapping").that(contents(mappedFiles.map(file))).isEqualTo("Old contents");
+		replace("New contents!");
+		assertWithMessage("Contents after replace").that(contents(mappedFiles.map(file))).isEqualTo("New contents!");
+		assertWithMessage("Earlier buffer").that(contents(first)).isEqualTo("Old contents");
+	}
+
+	/**
+	 * Test a file which is replaced after it is opened to be mapped: the mapping of the old file
+	 * mustn't be taken for one of the new file
+	 */
+	@Test
+	public void testMap_ReplacedWhileOpening() throws IOException {
+		MappedFiles mappedFiles = new MappedFiles() {
+			boolean replaced;
+
+			@Override
+			FileChannel open(File f) throws IOException {
+				FileChannel ch = super.open(f);
+				if (!replaced) {
+					replaced = true;
+					replace("New contents!");
+				}
+				return ch;
+			}
+		};
+		replace("Old contents");
+		assertWithMessage("Contents as opened").that(contents(mappedFiles.map(file))).isEqualTo("Old contents");
+		assertWithMessage("Contents afterwards").that(contents(mappedFiles.map(file))).isEqualTo("New contents!");
+	}
+
+	// Utility routines below
+
+	/** Replace the file by renaming a new one over it, as DurableFiles does */
+	private void replace(String contents) throws IOException {
+		File tmp = new File(dir, "table.tmp");
+		Files.write(tmp.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String contents(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,84 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class OffHeapRowMapTest {
+	private static final Logger logger = LogManager.getLogger(OffHeapRowMapTest.class);
+	
+	@Rule public TestName testName = new TestName();
+	
+	@Before
+	public void before() {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+	}
+	
+	/** Test storing, replacing and removing rows, in insertion order */
+	@Test
+	public void testPutGetRemove() {
+		OffHeapRowMap rows = new OffHeapRowMap();
+		assertThat(rows.put("1", row("1", "a"))).isNull();
+		assertThat(rows.put("2", row("2", "b"))).isNull();
+		assertWithMessage("Replaced row").that(rows.put("1", row("1", "c"))).isEqualTo(row("1", "a"));
+		assertThat(rows.get("1")).isEqualTo(row("1", "c"));
+		assertThat(rows.get("3")).isNull();
+		assertWithMessage("Order").that(new ArrayList<>(rows.values())).containsExactly(row("1", "c"), row("2", "b"))
+			.inOrder();
+		// Rows are decoded afresh: changing one that was read doesn't change the stored row
+		((ObjectNode) rows.get("2")).put("name", "changed");
+		assertThat(rows.get("2")).isEqualTo(row("2", "b"));
+		assertWithMessage("Removed row").that(rows.remove("2")).isEqualTo(row("2", "b"));
+		assertThat(rows.containsKey("2")).isFalse();
+		assertThat(rows.size()).isEqualTo(1);
+		rows.clear();
+		assertThat(rows.isEmpty()).isTrue();
+		assertThat(rows.offHeapBytes()).isEqualTo(0);
+	}
+	
+	/** Test that the space of replaced rows is reclaimed, without losing or reordering rows */
+	@Test
+	public void testCompaction() {
+		int slabSize = 1024;
+		OffHeapRowMap rows = new OffHeapRowMap(slabSize);
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			ids.add(Integer.toString(i));
+			rows.put(ids.get(i), row(ids.get(i), "first"));
+		}
+		long initialBytes = rows.offHeapBytes();
+		for (int round = 0; round < 20; round++) {
+			for (String id : ids) {
+				rows.put(id, row(id, "round " + round));
+			}
+		}
+		logger.info("Off-heap bytes: {} initially, {} after updates", initialBytes, rows.offHeapBytes());
+		assertWithMessage("Off-heap bytes after updates").that(rows.offHeapBytes()).isAtMost(3 * initialBytes + slabSize);
+		List<JsonNode> expected = new ArrayList<>();
+		for (String id : ids) {
+			expected.add(row(id, "round 19"));
+		}
+		assertThat(new ArrayList<>(rows.values())).containsExactlyElementsIn(expected).inOrder();
+	}
+	
+	private static JsonNode row(String id, String name) {
+		ObjectNode row = JsonNodeFactory.instance.objectNode();
+		row.put("id", id);
+		row.put("name", name);
+		return row;
+	}
+	
+}
@@ -0,0 +1,127 @@
+package com.joev.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+public class PackedRowMapTest {
+	private static final Logger logger = LogManager.getLogger(PackedRowMapTest.class);
+	
+	@Rule public TestName testName = new TestName();
+	
+	@Before
+	public void before() {
+		logger.info("================================================================================");
+		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
+	}
+	
+	/** Test storing, replacing and removing rows, in insertion order */
+	@Test
+	public void testPutGetRemove() {
+		PackedRowMap rows = new PackedRowMap();
+		assertThat(rows.put("1", row("1", "a"))).isNull();
+		assertThat(rows.put("2", row("2", "b"))).isNull();
+		assertWithMessage("Replaced row").that(rows.put("1", row("1", "c"))).isEqualTo(row("1", "a"));
+		assertThat(rows.get("1")).isEqualTo(row("1", "c"));
+		assertThat(rows.get("3")).isNull();
+		assertWithMessage("Order").that(new ArrayList<>(rows.values())).containsExactly(row("1", "c"), row("2", "b"))
+			.inOrder();
+		// Rows are built afresh: changing one that was read doesn't change the stored row
+		((ObjectNode) rows.get("2")).put("name", "changed");
+		assertThat(rows.get("2")).isEqualTo(row("2", "b"));
+		assertWithMessage("Removed row").that(rows.remove("2")).isEqualTo(row("2", "b"));
+		assertThat(rows.containsKey("2")).isFalse();
+		assertThat(rows.size()).isEqualTo(1);
+		rows.clear();
+		assertThat(rows.isEmpty()).isTrue();
+	}
+	
+	/** Test rows which can't be packed, kept in order among those which can */
+	@Test
+	public void testUnpackedRows() {
+		PackedRowMap rows = new PackedRowMap();
+		Object noId = new Object();
+		ObjectNode extraField = row("4", "d");
+		extraField.put("phone", "555-1212");
+		ObjectNode nested = row("5", "e");
+		nested.put("name", row("6", "f"));
+		ObjectNode numericId = row("7", "g");
+		numericId.put("id", 7);
+		rows.put("1", row("1", "a"));
+		rows.put("abc", row("abc", "b"));
+		rows.put("007", row("007", "c"));
+		rows.put(noId, row(null, "no id"));
+		rows.put("4", extraField);
+		rows.put("5", nested);
+		rows.put("7", numericId);
+		rows.put("99999999999999999999", row("99999999999999999999", "h"));
+		assertWithMessage("Non-numeric id").that(rows.get("abc")).isEqualTo(row("abc", "b"));
+		assertWithMessage("Leading zero").that(rows.get("007")).isEqualTo(row("007", "c"));
+		assertWithMessage("Numeric id").that(rows.get("7")).isEqualTo(numericId);
+		assertWithMessage("No id").that(rows.get(noId)).isEqualTo(row(null, "no id"));
+		assertWithMessage("Extra field").that(rows.get("4")).isEqualTo(extraField);
+		assertWithMessage("Nested").that(rows.get("5")).isEqualTo(nested);
+		assertWithMessage("Too large").that(rows.get("99999999999999999999")).isEqualTo(row("99999999999999999999", "h"));
+		assertThat(rows.keySet()).containsExactly("1", "abc", "007", noId, "4", "5", "7", "99999999999999999999")
+			.inOrder();
+		
+		// A row can change from packed to whole and back, keeping its place
+		rows.put("1", extraField);
+		assertThat(rows.get("1")).isEqualTo(extraField);
+		rows.put("1", row("1", "a"));
+		assertThat(rows.get("1")).isEqualTo(row("1", "a"));
+		assertThat(rows.keySet()).containsExactly("1", "abc", "007", noId, "4", "5", "7", "99999999999999999999")
+			.inOrder();
+	}
+	
+	/** Test a random mix of operations, with many removals, against a LinkedHashMap */
+	@Test
+	public void testAgainstLinkedHashMap() {
+		Random random = new Random(42);
+		PackedRowMap rows = new PackedRowMap();
+		Map<Object, JsonNode> expected = new LinkedHashMap<>();
+		for (int op = 0; op < 50_000; op++) {
+			// Mostly numeric ids, from a small range so that the same ids come and go many times
+			int n = random.nextInt(2000);
+			String id = (n % 10 == 0) ? "id" + n : Integer.toString(n);
+			if (random.nextInt(3) == 0) {
+				assertWithMessage("remove(%s)", id).that(rows.remove(id)).isEqualTo(expected.remove(id));
+			} else {
+				JsonNode row = row(id, "name " + op);
+				assertWithMessage("put(%s)", id).that(rows.put(id, row)).isEqualTo(expected.put(id, row));
+			}
+		}
+		assertThat(rows.size()).isEqualTo(expected.size());
+		List<Map.Entry<Object, JsonNode>> entries = new ArrayList<>(rows.entrySet());
+		assertWithMessage("Entries, in order").that(entries).containsExactlyElementsIn(expected.entrySet()).inOrder();
+		for (int n = 0; n < 2000; n++) {
+			String id = Integer.toString(n);
+			assertWithMessage("get(%s)", id).that(rows.get(id)).isEqualTo(expected.get(id));
+		}
+	}
+	
+	private static ObjectNode row(String id, String name) {
+		ObjectNode row = JsonNodeFactory.instance.objectNode();
+		if (id != null) {
+			row.put("id", id);
+		}
+		row.put("name", name);
+		return row;
+	}
+	
+}
@@ -2,13 +2,33 @@ package com.joev.util;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -27,6 +47,8 @@ public class SimpleJsonDbTest {
 	private static final int EXPECTED_NROWS_BEFORE = 2;
 	
 	public SimpleJsonDb db;
+	/** Every database instance opened by the test, to be closed after it */
+	private final List<SimpleJsonDb> openDbs = new ArrayList<>();
 	
 	@BeforeClass
 	public static void beforeClass() throws IOException {
@@ -44,18 +66,42 @@ public class SimpleJsonDbTest {
 	public void before() throws IOException {
 		logger.info("================================================================================");
 		logger.info("Starting test {}.{}", this.getClass().getSimpleName(), testName.getMethodName());
-		db = new SimpleJsonDb(DB);
+		db = openDb();
 		db.initTable(SimpleJsonDb.DB_METADATA_TABLE);
 		db.initTable(TABLE);
 	}
 	
 	@After
 	public void after() throws Exception {
+		// Stop the instances' write-behind flushing before their files are removed
+		for (SimpleJsonDb openDb : openDbs) {
+			openDb.close();
+		}
 		// Clean up tables created for this test
 		db.rmTable(SimpleJsonDb.DB_METADATA_TABLE);
 		db.rmTable(TABLE);
 	}
 	
+	/**
+	 * @return a new instance of the test database (with the default flush interval), which is
+	 *         closed after the test
+	 */
+	private SimpleJsonDb openDb() {
+		SimpleJsonDb openDb = new SimpleJsonDb(DB);
+		openDbs.add(openDb);
+		return openDb;
+	}
+	
+	/**
+	 * @return a new instance of the test database, with the given flush interval, which is closed
+	 *         after the test
+	 */
+	private SimpleJsonDb openDb(long flushIntervalMs) {
+		SimpleJsonDb openDb = new SimpleJsonDb(DB, flushIntervalMs);
+		openDbs.add(openDb);
+		return openDb;
+	}
+	
 	/** Test reading a table */
 	@Test
 	public void testReadTable() {
@@ -94,6 +140,33 @@ public class SimpleJsonDbTest {
 		}
 	}
 	
+	/** Test that ids handed out concurrently by db.nextId() are all unique */
+	@Test
+	public void testNextId_Concurrent() throws Exception {
+		SimpleJsonDb idDb = openDb().withIdBlockSize(50);
+		int nThreads = 8;
+		int idsPerThread = 500;
+		Set<Integer> ids = ConcurrentHashMap.newKeySet();
+		runConcurrently(nThreads, () -> {
+			for (int n = 0; n < idsPerThread; n++) {
+				ids.add(idDb.nextId());
+			}
+		});
+		assertWithMessage("Number of unique ids").that(ids).hasSize(nThreads * idsPerThread);
+	}
+	
+	/** Test that ids reserved before a "restart" are not handed out again afterwards */
+	@Test
+	public void testNextId_Restart() {
+		SimpleJsonDb idDb = openDb().withIdBlockSize(10);
+		int firstId = idDb.nextId();
+		int secondId = idDb.nextId();
+		// A new instance reads the Metadata table from disk, as it would after a restart
+		int idAfterRestart = openDb().withIdBlockSize(10).nextId();
+		logger.info("Ids before restart: {}, {}; after restart: {}", firstId, secondId, idAfterRestart);
+		assertWithMessage("Id after restart").that(idAfterRestart).isAtLeast(firstId + 10);
+	}
+	
 	/** Test creating a new item in the database, including assigning it a unique id */
 	@Test
 	public void testNewItem() {
@@ -116,8 +189,895 @@ public class SimpleJsonDbTest {
 		assertWithMessage("Id of new item").that(rows.get(rows.size() - 1).id).isEqualTo(nextId);
 	}
 	
+	/**
+	 * Test that writes are held in memory until the table is flushed, and are then visible to a
+	 * separate database instance reading the table from disk
+	 */
+	@Test
+	public void testWriteBehind() {
+		SimpleJsonDb cachedDb = openDb(60 * 60 * 1000);
+		List<MyTableRow> rows = cachedDb.readTable(MyTableRow.class, TABLE);
+		String newValue = "Write-behind value of Row 1 S1";
+		rows.get(0).s1 = newValue;
+		cachedDb.writeTable(TABLE, rows);
+		// The change is visible through the caching instance, but has not reached the disk yet
+		assertWithMessage("Cached row 1 s1")
+			.that(cachedDb.readTable(MyTableRow.class, TABLE).get(0).s1).isEqualTo(newValue);
+		assertWithMessage("On-disk row 1 s1 before flush")
+			.that(openDb().readTable(MyTableRow.class, TABLE).get(0).s1).isNotEqualTo(newValue);
+		// After a flush, a fresh instance (which must read the file) sees the change
+		cachedDb.close();
+		assertWithMessage("On-disk row 1 s1 after flush")
+			.that(openDb().readTable(MyTableRow.class, TABLE).get(0).s1).isEqualTo(newValue);
+	}
+	
+	/** Test that a flush interval of 0 writes each change straight to disk */
+	@Test
+	public void testWriteThrough() {
+		SimpleJsonDb writeThroughDb = openDb(0);
+		List<MyTableRow> rows = writeThroughDb.readTable(MyTableRow.class, TABLE);
+		String newValue = "Write-through value of Row 1 S1";
+		rows.get(0).s1 = newValue;
+		writeThroughDb.writeTable(TABLE, rows);
+		assertWithMessage("On-disk row 1 s1")
+			.that(openDb().readTable(MyTableRow.class, TABLE).get(0).s1).isEqualTo(newValue);
+	}
+	
+	/** Test the row-level operations: insert, read, update, and delete a single row */
+	@Test
+	public void testRowOperations() {
+		MyTableRow newRow = newRow(String.valueOf(db.nextId()));
+		db.insertRow(TABLE, newRow);
+		MyTableRow readRow = db.readRow(MyTableRow.class, TABLE, newRow.id);
+		assertWithMessage("Inserted row").that(readRow).isNotNull();
+		assertWithMessage("Inserted row s1").that(readRow.s1).isEqualTo(newRow.s1);
+
+		newRow.s2 = "Updated ROW!!! S2";
+		assertWithMessage("updateRow() result").that(db.updateRow(TABLE, newRow)).isTrue();
+		assertWithMessage("Updated row s2")
+			.that(db.readRow(MyTableRow.class, TABLE, newRow.id).s2).isEqualTo(newRow.s2);
+
+		assertWithMessage("deleteRow() result").that(db.deleteRow(TABLE, newRow.id)).isTrue();
+		assertWithMessage("Deleted row").that(db.readRow(MyTableRow.class, TABLE, newRow.id)).isNull();
+		assertThat(db.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE);
+
+		// Operations on a nonexistent row
+		assertWithMessage("updateRow() of missing row").that(db.updateRow(TABLE, newRow)).isFalse();
+		assertWithMessage("deleteRow() of missing row").that(db.deleteRow(TABLE, newRow.id)).isFalse();
+	}
+	
+	/** Test reading many rows by id at once, from a plain and a partitioned table */
+	@Test
+	public void testReadRows() throws IOException {
+		for (int nPartitions : new int[] { 1, 4 }) {
+			SimpleJsonDb readDb = openDb(0).withPartitions(nPartitions);
+			try {
+				readDb.initTable(TABLE);
+				for (String id : new String[] { "1000", "1001", "1002" }) {
+					readDb.insertRow(TABLE, newRow(id));
+				}
+				List<MyTableRow> rows = readDb.readRows(MyTableRow.class, TABLE,
+					Arrays.asList("1002", "missing", "100", "1000"));
+				assertWithMessage(nPartitions + " partitions: Rows read").that(rows).hasSize(4);
+				assertWithMessage("Missing row").that(rows.get(1)).isNull();
+				rows.remove(1);
+				assertWithMessage("Ids read, in order requested").that(ids(rows))
+					.containsExactly("1002", "100", "1000").inOrder();
+			} finally {
+				readDb.rmTable(TABLE);
+			}
+		}
+	}
+	
+	/** Test inserting a row whose id is already in use */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInsertRow_DuplicateId() {
+		MyTableRow row = db.readTable(MyTableRow.class, TABLE).get(0);
+		db.insertRow(TABLE, row);
+	}
+	
+	/**
+	 * Test JOURNAL mode: row-level changes are appended to the journal without rewriting the table
+	 * file, and are replayed when the table is loaded by another database instance
+	 */
+	@Test
+	public void testJournal() throws IOException {
+		SimpleJsonDb journalDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		File tableFile = journalDb.getDbFile(TABLE);
+		byte[] tableBefore = Files.readAllBytes(tableFile.toPath());
+
+		MyTableRow row1 = newRow("1001");
+		MyTableRow row2 = newRow("1002");
+		journalDb.insertRow(TABLE, row1);
+		journalDb.insertRow(TABLE, row2);
+		row1.s1 = "Updated ROW!!! S1";
+		journalDb.updateRow(TABLE, row1);
+		journalDb.deleteRow(TABLE, row2.id);
+
+		assertWithMessage("Table file unchanged")
+			.that(Files.readAllBytes(tableFile.toPath())).isEqualTo(tableBefore);
+		assertWithMessage("Journal lines")
+			.that(Files.readAllLines(journalDb.getJournal(TABLE).getFile().toPath())).hasSize(4);
+
+		SimpleJsonDb replayDb = openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		List<MyTableRow> rows = replayDb.readTable(MyTableRow.class, TABLE);
+		showMyTable("REPLAYED", rows);
+		assertThat(rows.size()).isEqualTo(EXPECTED_NROWS_BEFORE + 1);
+		assertWithMessage("Replayed row s1")
+			.that(replayDb.readRow(MyTableRow.class, TABLE, row1.id).s1).isEqualTo(row1.s1);
+		assertWithMessage("Replayed deleted row").that(replayDb.readRow(MyTableRow.class, TABLE, row2.id)).isNull();
+	}
+	
+	/**
+	 * Test inserting a batch of rows: rows whose ids are already in use (in the table or earlier in
+	 * the batch) are skipped, and the rest go to the journal in one append
+	 */
+	@Test
+	public void testInsertRows() throws IOException {
+		SimpleJsonDb journalDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		List<MyTableRow> batch = Arrays.asList(newRow("1001"), newRow("100"), newRow("1002"), newRow("1001"));
+		assertWithMessage("Inserted").that(journalDb.insertRows(TABLE, batch))
+			.isEqualTo(new boolean[] { true, false, true, false });
+		assertWithMessage("Journal lines")
+			.that(Files.readAllLines(journalDb.getJournal(TABLE).getFile().toPath())).hasSize(2);
+
+		SimpleJsonDb replayDb = openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		assertThat(replayDb.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE + 2);
+		assertWithMessage("Replayed row").that(replayDb.readRow(MyTableRow.class, TABLE, "1002")).isNotNull();
+	}
+	
+	/**
+	 * Test updating and deleting batches of rows: a batch including a missing row changes nothing,
+	 * and a complete batch is a single journal record
+	 */
+	@Test
+	public void testBatchUpdateDelete() throws IOException {
+		SimpleJsonDb journalDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		journalDb.insertRows(TABLE, Arrays.asList(newRow("1001"), newRow("1002")));
+		MyTableRow row1 = newRow("1001");
+		row1.s1 = "Updated ROW!!! S1";
+		MyTableRow row2 = newRow("1002");
+		row2.s1 = "Updated ROW!!! S1";
+
+		assertWithMessage("Missing rows").that(journalDb.updateRows(TABLE, Arrays.asList(row1, newRow("1003"))))
+			.containsExactly("1003");
+		assertWithMessage("Row of failed batch").that(journalDb.readRow(MyTableRow.class, TABLE, "1001").s1)
+			.isEqualTo("New ROW!!! S1");
+		assertWithMessage("Missing rows").that(journalDb.deleteRows(TABLE, Arrays.asList("1002", "1003")))
+			.containsExactly("1003");
+		assertWithMessage("Row of failed batch").that(journalDb.readRow(MyTableRow.class, TABLE, "1002")).isNotNull();
+
+		assertWithMessage("Missing rows").that(journalDb.updateRows(TABLE, Arrays.asList(row1, row2))).isEmpty();
+		assertWithMessage("Missing rows").that(journalDb.deleteRows(TABLE, Arrays.asList("100", "1002"))).isEmpty();
+		assertWithMessage("Journal lines (2 inserts + 2 batches)")
+			.that(Files.readAllLines(journalDb.getJournal(TABLE).getFile().toPath())).hasSize(2 + 2);
+
+		SimpleJsonDb replayDb = openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		List<MyTableRow> rows = replayDb.readTable(MyTableRow.class, TABLE);
+		showMyTable("REPLAYED", rows);
+		assertWithMessage("Replayed ids").that(ids(rows)).containsExactly("101", "1001");
+		assertWithMessage("Replayed row s1").that(rows.get(1).s1).isEqualTo(row1.s1);
+	}
+	
+	/** Test that the journal is folded into the table file once it reaches the compaction threshold */
+	@Test
+	public void testJournalCompaction() throws IOException {
+		SimpleJsonDb journalDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+			.withCompactionThreshold(3);
+		File journalFile = journalDb.getJournal(TABLE).getFile();
+		journalDb.insertRow(TABLE, newRow("1001"));
+		journalDb.insertRow(TABLE, newRow("1002"));
+		assertWithMessage("Journal exists before compaction").that(journalFile.exists()).isTrue();
+		journalDb.insertRow(TABLE, newRow("1003"));
+		assertWithMessage("Journal exists after compaction").that(journalFile.exists()).isFalse();
+
+		List<MyTableRow> rows = openDb().readTable(MyTableRow.class, TABLE);
+		showMyTable("COMPACTED", rows);
+		assertThat(rows.size()).isEqualTo(EXPECTED_NROWS_BEFORE + 3);
+	}
+
+	/**
+	 * Test that a table file which can't be read fails the operations on the table, rather than
+	 * leaving the rows read so far to be written back over the file
+	 */
+	@Test
+	public void testLoad_Unreadable() throws IOException {
+		File tableFile = db.getDbFile(TABLE);
+		byte[] damaged = "[ { \"id\" : \"100\", \"s1\" : \"Row 1 S1\" }, { \"id\" : \"1".getBytes();
+		Files.write(tableFile.toPath(), damaged);
+		SimpleJsonDb damagedDb = openDb(0);
+		try {
+			damagedDb.readRow(MyTableRow.class, TABLE, "100");
+			fail("Read of unreadable table");
+		} catch (UncheckedIOException e) {
+			logger.info("Read failed as expected: {}", e.toString());
+		}
+		try {
+			damagedDb.insertRow(TABLE, newRow("1001"));
+			fail("Insert into unreadable table");
+		} catch (UncheckedIOException e) {
+			logger.info("Insert failed as expected: {}", e.toString());
+		}
+		damagedDb.flush();
+		assertWithMessage("Table file").that(Files.readAllBytes(tableFile.toPath())).isEqualTo(damaged);
+	}
+
+	/**
+	 * Test loading a table whose journal can't be read: the load fails, rather than leaving the
+	 * table with only some of its changes (which the next flush would make permanent)
+	 */
+	@Test
+	public void testLoad_UnreadableJournal() throws IOException {
+		SimpleJsonDb journalDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		journalDb.insertRow(TABLE, newRow("1001"));
+		journalDb.close();
+		File journalFile = journalDb.getJournal(TABLE).getFile();
+		byte[] journal = Files.readAllBytes(journalFile.toPath());
+		// A directory in place of the journal makes reading it fail
+		journalFile.delete();
+		journalFile.mkdir();
+
+		SimpleJsonDb damagedDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		try {
+			damagedDb.readRow(MyTableRow.class, TABLE, "100");
+			fail("Read of table with unreadable journal");
+		} catch (UncheckedIOException e) {
+			logger.info("Read failed as expected: {}", e.toString());
+		}
+		damagedDb.flush();
+		journalFile.delete();
+		Files.write(journalFile.toPath(), journal);
+		assertWithMessage("Row from the journal, once it can be read")
+			.that(damagedDb.readRow(MyTableRow.class, TABLE, "1001")).isNotNull();
+	}
+
+	/**
+	 * Test recovery from a crash in the middle of an append: the partial record at the end of the
+	 * journal is cut off when the table is loaded, so records appended afterwards survive the next
+	 * restart
+	 */
+	@Test
+	public void testJournal_TornRecord() throws IOException {
+		SimpleJsonDb journalDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		journalDb.insertRow(TABLE, newRow("1001"));
+		journalDb.close();
+		File journalFile = journalDb.getJournal(TABLE).getFile();
+		Files.write(journalFile.toPath(), "{\"op\":\"insert\",\"id\":\"1002\",\"ro".getBytes(),
+			StandardOpenOption.APPEND);
+
+		SimpleJsonDb restartedDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		assertWithMessage("Row before the torn record").that(restartedDb.readRow(MyTableRow.class, TABLE, "1001"))
+			.isNotNull();
+		assertWithMessage("Row of the torn record").that(restartedDb.readRow(MyTableRow.class, TABLE, "1002"))
+			.isNull();
+		restartedDb.insertRow(TABLE, newRow("1003"));
+		restartedDb.close();
+
+		SimpleJsonDb replayDb = openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		assertWithMessage("Replayed ids").that(ids(replayDb.readTable(MyTableRow.class, TABLE)))
+			.containsExactly("100", "101", "1001", "1003");
+	}
+
+	/** Test that row lookups stay correct as rows are deleted and inserted */
+	@Test
+	public void testPrimaryKeyIndex() {
+		SimpleJsonDb indexDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		List<MyTableRow> rows = indexDb.readTable(MyTableRow.class, TABLE);
+		String firstId = rows.get(0).id;
+		String secondId = rows.get(1).id;
+		indexDb.deleteRow(TABLE, firstId);
+		indexDb.insertRow(TABLE, newRow("1001"));
+		assertWithMessage("Deleted row").that(indexDb.readRow(MyTableRow.class, TABLE, firstId)).isNull();
+		assertWithMessage("Row after deleted row")
+			.that(indexDb.readRow(MyTableRow.class, TABLE, secondId).id).isEqualTo(secondId);
+		assertWithMessage("Inserted row").that(indexDb.readRow(MyTableRow.class, TABLE, "1001").id).isEqualTo("1001");
+		// Re-inserting a deleted id is allowed
+		indexDb.insertRow(TABLE, newRow(firstId));
+		assertWithMessage("Re-inserted row")
+			.that(indexDb.readRow(MyTableRow.class, TABLE, firstId).id).isEqualTo(firstId);
+		assertThat(indexDb.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE + 1);
+	}
+	
+	/**
+	 * Test that the primary-key index is built again when the table is loaded by a fresh instance,
+	 * after rows have been deleted and inserted and the table file rewritten
+	 */
+	@Test
+	public void testPrimaryKeyIndex_Restart() throws IOException {
+		List<MyTableRow> rows = db.readTable(MyTableRow.class, TABLE);
+		db.deleteRow(TABLE, rows.get(0).id);
+		db.insertRow(TABLE, newRow("1001"));
+		db.flush();
+		SimpleJsonDb freshDb = openDb();
+		assertWithMessage("Deleted row").that(freshDb.readRow(MyTableRow.class, TABLE, rows.get(0).id)).isNull();
+		assertWithMessage("Row " + rows.get(1).id).that(freshDb.readRow(MyTableRow.class, TABLE, rows.get(1).id).s1)
+			.isEqualTo(rows.get(1).s1);
+		assertWithMessage("Inserted row").that(freshDb.readRow(MyTableRow.class, TABLE, "1001")).isNotNull();
+	}
+	
+	/**
+	 * Stress test: many threads concurrently doing read-modify-write of the same row. No update may
+	 * be lost.
+	 */
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		String id = db.readTable(MyTableRow.class, TABLE).get(0).id;
+		db.updateRow(MyTableRow.class, TABLE, id, row -> {
+			row.s2 = "0";
+			return row;
+		});
+		int nThreads = 8;
+		int updatesPerThread = 250;
+		runConcurrently(nThreads, () -> {
+			for (int n = 0; n < updatesPerThread; n++) {
+				db.updateRow(MyTableRow.class, TABLE, id, row -> {
+					row.s2 = String.valueOf(Integer.parseInt(row.s2) + 1);
+					return row;
+				});
+			}
+		});
+		assertWithMessage("Counter after concurrent updates")
+			.that(db.readRow(MyTableRow.class, TABLE, id).s2).isEqualTo(String.valueOf(nThreads * updatesPerThread));
+	}
+	
+	/**
+	 * Stress test: many threads concurrently inserting rows, while others read the table. No insert
+	 * may be lost, either in memory or on disk.
+	 */
+	@Test
+	public void testConcurrentInserts() throws Exception {
+		SimpleJsonDb journalDb = openDb(10).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+			.withCompactionThreshold(500);
+		int nThreads = 8;
+		int insertsPerThread = 250;
+		runConcurrently(nThreads, () -> {
+			for (int n = 0; n < insertsPerThread; n++) {
+				journalDb.insertRow(TABLE, newRow(String.valueOf(journalDb.nextId())));
+				if (n % 50 == 0) {
+					assertThat(journalDb.readTable(MyTableRow.class, TABLE).size()).isAtLeast(EXPECTED_NROWS_BEFORE);
+				}
+			}
+		});
+		int expectedRows = EXPECTED_NROWS_BEFORE + nThreads * insertsPerThread;
+		assertWithMessage("Rows in memory").that(journalDb.readTable(MyTableRow.class, TABLE)).hasSize(expectedRows);
+		journalDb.close();
+		assertWithMessage("Rows on disk")
+			.that(openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+				.readTable(MyTableRow.class, TABLE)).hasSize(expectedRows);
+	}
+	
+	/** Test that a table file is replaced via a temporary file, which doesn't survive the write */
+	@Test
+	public void testAtomicWrite() throws IOException {
+		SimpleJsonDb writeThroughDb = openDb(0);
+		List<MyTableRow> rows = writeThroughDb.readTable(MyTableRow.class, TABLE);
+		rows.add(newRow("1001"));
+		writeThroughDb.writeTable(TABLE, rows);
+		File tableFile = writeThroughDb.getDbFile(TABLE);
+		assertWithMessage("Temporary file").that(new File(tableFile.getPath() + ".tmp").exists()).isFalse();
+		assertThat(openDb().readTable(MyTableRow.class, TABLE)).hasSize(EXPECTED_NROWS_BEFORE + 1);
+	}
+	
+	/**
+	 * Test group commit: every change is on disk as soon as it returns, and concurrent changes share
+	 * flushes rather than each waiting out its own commit window
+	 */
+	@Test
+	public void testGroupCommit() throws Exception {
+		long windowMs = 20;
+		SimpleJsonDb groupDb = openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+			.withGroupCommit(windowMs);
+		int nThreads = 8;
+		int insertsPerThread = 25;
+		long start = System.currentTimeMillis();
+		runConcurrently(nThreads, () -> {
+			for (int n = 0; n < insertsPerThread; n++) {
+				groupDb.insertRow(TABLE, newRow(String.valueOf(groupDb.nextId())));
+			}
+		});
+		long elapsed = System.currentTimeMillis() - start;
+		logger.info("{} group-committed inserts took {} ms", nThreads * insertsPerThread, elapsed);
+		assertWithMessage("Elapsed time (ms)").that(elapsed).isLessThan(nThreads * insertsPerThread * windowMs);
+		// No flush() or close(): the rows must already be on disk
+		assertWithMessage("Rows on disk")
+			.that(openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+				.readTable(MyTableRow.class, TABLE)).hasSize(EXPECTED_NROWS_BEFORE + nThreads * insertsPerThread);
+	}
+	
+	/** Test streaming a table which isn't cached, straight from its file */
+	@Test
+	public void testStreamTable() {
+		List<MyTableRow> rows = db.readTable(MyTableRow.class, TABLE);
+		SimpleJsonDb streamDb = openDb();
+		try (Stream<MyTableRow> stream = streamDb.streamTable(MyTableRow.class, TABLE)) {
+			assertWithMessage("Streamed ids").that(stream.map(row -> row.id).collect(Collectors.toList()))
+				.containsExactly(rows.get(0).id, rows.get(1).id).inOrder();
+		}
+		// Stop after the first matching row
+		try (Stream<MyTableRow> stream = streamDb.streamTable(MyTableRow.class, TABLE)) {
+			MyTableRow found = stream.filter(row -> row.id.equals(rows.get(1).id)).findFirst().get();
+			assertWithMessage("Found row s1").that(found.s1).isEqualTo(rows.get(1).s1);
+		}
+	}
+	
+	/** Test that a stream includes changes which haven't been flushed, or are only in the journal */
+	@Test
+	public void testStreamTable_Changes() {
+		SimpleJsonDb journalDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		journalDb.insertRow(TABLE, newRow("1001"));
+		SimpleJsonDb cachedDb = openDb(60 * 60 * 1000);
+		cachedDb.insertRow(TABLE, newRow("1002"));
+		try (Stream<MyTableRow> stream = cachedDb.streamTable(MyTableRow.class, TABLE)) {
+			assertWithMessage("Rows streamed from cache").that(stream.count()).isEqualTo(EXPECTED_NROWS_BEFORE + 2);
+		}
+		// Row 1002 hasn't been flushed, but row 1001 is in the journal
+		try (Stream<MyTableRow> stream = openDb().streamTable(MyTableRow.class, TABLE)) {
+			assertWithMessage("Rows streamed after journal replay").that(stream.count())
+				.isEqualTo(EXPECTED_NROWS_BEFORE + 1);
+		}
+		cachedDb.close();
+	}
+	
+	/** Test a database using the binary table format, converted from the existing JSON table */
+	@Test
+	public void testBinaryFormat() throws IOException {
+		List<MyTableRow> rows = db.readTable(MyTableRow.class, TABLE);
+		SimpleJsonDb binaryDb = openDb(0).withTableFormat(TableFormat.BINARY);
+		try {
+			binaryDb.initTable(TABLE);
+			assertWithMessage("Binary table file").that(binaryDb.getDbFile(TABLE).getName()).endsWith(".sjdb");
+			assertWithMessage("Binary table file exists").that(binaryDb.getDbFile(TABLE).exists()).isTrue();
+			List<MyTableRow> binaryRows = binaryDb.readTable(MyTableRow.class, TABLE);
+			assertWithMessage("Converted rows").that(binaryRows.toString()).isEqualTo(rows.toString());
+			binaryDb.insertRow(TABLE, newRow("1001"));
+			// A fresh instance reads the rows back from the binary file
+			SimpleJsonDb reloadedDb = openDb().withTableFormat(TableFormat.BINARY);
+			assertWithMessage("Rows after reload").that(reloadedDb.readTable(MyTableRow.class, TABLE))
+				.hasSize(EXPECTED_NROWS_BEFORE + 1);
+			try (Stream<MyTableRow> stream = openDb().withTableFormat(TableFormat.BINARY)
+					.streamTable(MyTableRow.class, TABLE)) {
+				assertWithMessage("Rows streamed").that(stream.map(row -> row.id).collect(Collectors.toList()))
+					.contains("1001");
+			}
+			// The JSON table is untouched
+			assertWithMessage("JSON rows").that(openDb().readTable(MyTableRow.class, TABLE))
+				.hasSize(EXPECTED_NROWS_BEFORE);
+		} finally {
+			binaryDb.rmTable(TABLE);
+		}
+	}
+	
+	/** Test that every kind of JSON value survives a round trip through the binary table format */
+	@Test
+	public void testBinaryFormat_Types() throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		List<JsonNode> rows = new ArrayList<>();
+		rows.add(mapper.readTree("{\"id\":\"1\",\"s\":\"caf\u00e9\",\"i\":42,\"l\":12345678901,\"d\":1.5,"
+				+ "\"t\":true,\"f\":false,\"n\":null,\"o\":{\"a\":[1,2]}}"));
+		rows.add(mapper.readTree("{\"id\":\"2\",\"extra\":\"only in row 2\"}"));
+		rows.add(mapper.readTree("{}"));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		TableFormat.BINARY.write(bos, rows);
+		List<JsonNode> readBack = new ArrayList<>();
+		try (RowReader<JsonNode> reader = TableFormat.BINARY.read(new ByteArrayInputStream(bos.toByteArray()),
+				JsonNode.class)) {
+			reader.forEachRemaining(readBack::add);
+		}
+		assertWithMessage("Rows read back").that(readBack).isEqualTo(rows);
+		assertWithMessage("Binary size").that(bos.size())
+			.isLessThan(mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(rows).length);
+	}
+	
+	/**
+	 * Test that only an empty file is read as a binary table with no rows: a truncated header, a
+	 * truncated row or a row with a bad length is an error, whether read from a stream or a buffer
+	 */
+	@Test
+	public void testBinaryFormat_Truncated() throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		List<JsonNode> rows = new ArrayList<>();
+		rows.add(mapper.readTree("{\"id\":\"1\",\"s\":\"one\",\"l\":12345678901}"));
+		rows.add(mapper.readTree("{\"id\":\"2\",\"s\":\"two\",\"l\":2}"));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		TableFormat.BINARY.write(bos, rows);
+		byte[] table = bos.toByteArray();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(table));
+		BinaryTableFormat.readSchema(dis);
+		dis.readInt();
+		int headerLength = table.length - dis.available();
+		// The first row claims to be a single byte long
+		byte[] badLength = table.clone();
+		ByteBuffer.wrap(badLength).putInt(headerLength, 1);
+
+		for (boolean buffer : new boolean[] { false, true }) {
+			try (RowReader<JsonNode> reader = read(new byte[0], buffer)) {
+				assertWithMessage("Rows in an empty file").that(reader.hasNext()).isFalse();
+			}
+			try {
+				read(Arrays.copyOf(table, 6), buffer);
+				fail("Read of a truncated header");
+			} catch (IOException e) {
+				logger.info("Reading a truncated header threw an Exception (AS EXPECTED)", e);
+			}
+			for (byte[] bad : new byte[][] { Arrays.copyOf(table, table.length - 3), badLength }) {
+				List<JsonNode> readBack = new ArrayList<>();
+				try (RowReader<JsonNode> reader = read(bad, buffer)) {
+					reader.forEachRemaining(readBack::add);
+					fail("Read of a bad row");
+				} catch (UncheckedIOException e) {
+					logger.info("Reading a bad row threw an Exception (AS EXPECTED)", e);
+				}
+				assertWithMessage("Rows read before the bad row").that(readBack.size()).isAtMost(1);
+			}
+		}
+	}
+	
+	private static RowReader<JsonNode> read(byte[] table, boolean buffer) throws IOException {
+		return buffer ? TableFormat.BINARY.read(ByteBuffer.wrap(table), JsonNode.class)
+				: TableFormat.BINARY.read(new ByteArrayInputStream(table), JsonNode.class);
+	}
+	
+	/** Test reading memory-mapped table files, which are remapped when they are replaced */
+	@Test
+	public void testMappedReads() throws IOException {
+		for (TableFormat format : new TableFormat[] { TableFormat.JSON, TableFormat.BINARY }) {
+			SimpleJsonDb writeDb = openDb(0).withTableFormat(format);
+			SimpleJsonDb mappedDb = openDb().withTableFormat(format)
+				.withReadMode(SimpleJsonDb.ReadMode.MAPPED);
+			try {
+				writeDb.initTable(TABLE);
+				List<MyTableRow> rows = writeDb.readTable(MyTableRow.class, TABLE);
+				for (int n = 0; n < 2; n++) {
+					try (Stream<MyTableRow> stream = mappedDb.streamTable(MyTableRow.class, TABLE)) {
+						assertWithMessage(format + " mapped rows, read #" + n).that(stream.collect(Collectors.toList())
+							.toString()).isEqualTo(rows.toString());
+					}
+				}
+				// Replace the table file; the next read must see the new contents
+				rows.add(newRow("1001"));
+				writeDb.writeTable(TABLE, rows);
+				try (Stream<MyTableRow> stream = mappedDb.streamTable(MyTableRow.class, TABLE)) {
+					assertWithMessage(format + " mapped rows after replace").that(stream.map(row -> row.id)
+						.collect(Collectors.toList())).contains("1001");
+				}
+				assertWithMessage(format + " mapped load").that(mappedDb.readTable(MyTableRow.class, TABLE))
+					.hasSize(EXPECTED_NROWS_BEFORE + 1);
+			} finally {
+				writeDb.rmTable(TABLE);
+				mappedDb.rmTable(TABLE);
+			}
+		}
+	}
+	
+	/**
+	 * Test a partitioned table: the unpartitioned table is split, a row-level change only rewrites
+	 * the partition holding the row, and the partitions are read back together
+	 */
+	@Test
+	public void testPartitions() throws IOException {
+		int nPartitions = 4;
+		List<MyTableRow> rows = db.readTable(MyTableRow.class, TABLE);
+		SimpleJsonDb partDb = openDb(0).withPartitions(nPartitions);
+		try {
+			partDb.initTable(TABLE);
+			assertWithMessage("Unpartitioned table file").that(partDb.getDbFile(TABLE).exists()).isFalse();
+			for (int p = 0; p < nPartitions; p++) {
+				assertWithMessage("Partition " + p + " file")
+					.that(partDb.getDbFile(SimpleJsonDb.partitionName(TABLE, p)).exists()).isTrue();
+			}
+			assertWithMessage("Split rows").that(partDb.readTable(MyTableRow.class, TABLE).stream().map(row -> row.id)
+				.collect(Collectors.toList())).containsExactly(rows.get(0).id, rows.get(1).id);
+			for (int n = 0; n < 20; n++) {
+				partDb.insertRow(TABLE, newRow(String.valueOf(1000 + n)));
+			}
+
+			// Updating a row rewrites only its own partition
+			byte[][] before = new byte[nPartitions][];
+			for (int p = 0; p < nPartitions; p++) {
+				before[p] = Files.readAllBytes(partDb.getDbFile(SimpleJsonDb.partitionName(TABLE, p)).toPath());
+			}
+			MyTableRow row = partDb.readRow(MyTableRow.class, TABLE, "1007");
+			row.s1 = "Updated ROW!!! S1";
+			assertWithMessage("updateRow() result").that(partDb.updateRow(TABLE, row)).isTrue();
+			int changed = 0;
+			for (int p = 0; p < nPartitions; p++) {
+				byte[] after = Files.readAllBytes(partDb.getDbFile(SimpleJsonDb.partitionName(TABLE, p)).toPath());
+				if (!Arrays.equals(before[p], after)) {
+					changed++;
+				}
+			}
+			assertWithMessage("Partitions rewritten").that(changed).isEqualTo(1);
+
+			// A fresh instance loads all the partitions
+			SimpleJsonDb reloadedDb = openDb().withPartitions(nPartitions);
+			List<MyTableRow> reloaded = reloadedDb.readTable(MyTableRow.class, TABLE);
+			assertThat(reloaded.size()).isEqualTo(EXPECTED_NROWS_BEFORE + 20);
+			assertWithMessage("Updated row s1").that(reloadedDb.readRow(MyTableRow.class, TABLE, "1007").s1)
+				.isEqualTo(row.s1);
+			try (Stream<MyTableRow> stream = openDb().withPartitions(nPartitions)
+					.streamTable(MyTableRow.class, TABLE)) {
+				assertWithMessage("Rows streamed").that(stream.count()).isEqualTo(EXPECTED_NROWS_BEFORE + 20);
+			}
+			assertWithMessage("deleteRow() result").that(partDb.deleteRow(TABLE, "1007")).isTrue();
+			partDb.writeTable(TABLE, rows);
+			assertThat(partDb.readTable(MyTableRow.class, TABLE).size()).isEqualTo(EXPECTED_NROWS_BEFORE);
+		} finally {
+			partDb.rmTable(TABLE);
+		}
+		for (int p = 0; p < nPartitions; p++) {
+			assertWithMessage("Partition " + p + " file after rmTable")
+				.that(partDb.getDbFile(SimpleJsonDb.partitionName(TABLE, p)).exists()).isFalse();
+		}
+	}
+	
+	/** Test exact and prefix lookups with a secondary index, as rows are inserted, updated and deleted */
+	@Test
+	public void testSecondaryIndex() throws IOException {
+		for (int nPartitions : new int[] { 1, 4 }) {
+			SimpleJsonDb indexDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+				.withPartitions(nPartitions);
+			try {
+				indexDb.initTable(TABLE);
+				indexDb.createIndex(TABLE, "s1");
+				String tag = nPartitions + " partitions: ";
+				assertWithMessage(tag + "Exact match").that(ids(indexDb.findRows(MyTableRow.class, TABLE, "s1",
+					"Row 101, String one"))).containsExactly("101");
+				assertWithMessage(tag + "No match").that(indexDb.findRows(MyTableRow.class, TABLE, "s1", "Row 101"))
+					.isEmpty();
+
+				for (int n = 9; n >= 0; n--) {
+					MyTableRow row = newRow(String.valueOf(1000 + n));
+					row.s1 = "Prefixed " + n;
+					indexDb.insertRow(TABLE, row);
+				}
+				assertWithMessage(tag + "Prefix match").that(ids(indexDb.findRowsByPrefix(MyTableRow.class, TABLE,
+					"s1", "Prefixed "))).containsExactly("1000", "1001", "1002", "1003", "1004", "1005", "1006",
+						"1007", "1008", "1009").inOrder();
+
+				MyTableRow row = indexDb.readRow(MyTableRow.class, TABLE, "1005");
+				row.s1 = "Renamed";
+				indexDb.updateRow(TABLE, row);
+				indexDb.deleteRow(TABLE, "1006");
+				assertWithMessage(tag + "Prefix match after changes").that(ids(indexDb.findRowsByPrefix(
+					MyTableRow.class, TABLE, "s1", "Prefixed "))).containsExactly("1000", "1001", "1002", "1003",
+						"1004", "1007", "1008", "1009").inOrder();
+				assertWithMessage(tag + "Updated row").that(ids(indexDb.findRows(MyTableRow.class, TABLE, "s1",
+					"Renamed"))).containsExactly("1005");
+
+				// A fresh instance builds its index when it loads the table (and replays the journal)
+				SimpleJsonDb reloadedDb = openDb().withPartitions(nPartitions);
+				reloadedDb.createIndex(TABLE, "s1");
+				assertWithMessage(tag + "Prefix match after reload").that(reloadedDb.findRowsByPrefix(
+					MyTableRow.class, TABLE, "s1", "Prefixed ")).hasSize(8);
+				// Lookups on a field without an index scan the table
+				assertWithMessage(tag + "Unindexed prefix match").that(reloadedDb.findRowsByPrefix(
+					MyTableRow.class, TABLE, "s2", "New ROW")).hasSize(9);
+			} finally {
+				indexDb.rmTable(TABLE);
+			}
+		}
+	}
+	
+	/** Test that rows loaded or written with an interned field share one copy of each value */
+	@Test
+	public void testInternField() throws IOException {
+		SimpleJsonDb internDb = openDb(0).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL);
+		try {
+			internDb.initTable(TABLE);
+			for (int n = 0; n < 4; n++) {
+				MyTableRow row = newRow(String.valueOf(1000 + n));
+				row.s2 = new String("148 PotOGold Street Anytown USA");
+				internDb.insertRow(TABLE, row);
+			}
+			internDb.flush();
+
+			// Without interning, each row has its own copy
+			List<MyTableRow> rows = openDb().readTable(MyTableRow.class, TABLE);
+			assertThat(rows.get(2).s2).isEqualTo(rows.get(3).s2);
+			assertThat(rows.get(2).s2).isNotSameInstanceAs(rows.get(3).s2);
+
+			// With it, the rows loaded from the file (and replayed from the journal) share a copy
+			SimpleJsonDb reloadedDb = openDb();
+			reloadedDb.internField(TABLE, "s2");
+			rows = reloadedDb.readTable(MyTableRow.class, TABLE);
+			assertThat(rows).hasSize(EXPECTED_NROWS_BEFORE + 4);
+			for (int i = 3; i < rows.size(); i++) {
+				assertWithMessage("Row " + rows.get(i).id).that(rows.get(i).s2).isSameInstanceAs(rows.get(2).s2);
+			}
+			assertWithMessage("Uninterned field").that(rows.get(2).s1).isNotSameInstanceAs(rows.get(3).s1);
+			assertThat(reloadedDb.internedValues()).isEqualTo(3);
+
+			// ... as do rows written afterwards
+			MyTableRow row = newRow("2000");
+			row.s2 = new String("148 PotOGold Street Anytown USA");
+			reloadedDb.insertRow(TABLE, row);
+			assertThat(reloadedDb.readRow(MyTableRow.class, TABLE, "2000").s2).isSameInstanceAs(rows.get(2).s2);
+		} finally {
+			internDb.rmTable(TABLE);
+		}
+	}
+
+	/** Test reading a table page by page, in order of id */
+	@Test
+	public void testScanRows() throws IOException {
+		for (int nPartitions : new int[] { 1, 4 }) {
+			SimpleJsonDb scanDb = openDb(0).withPartitions(nPartitions);
+			try {
+				scanDb.initTable(TABLE);
+				for (String id : new String[] { "1000", "abc", "99", "250" }) {
+					scanDb.insertRow(TABLE, newRow(id));
+				}
+				List<String> ids = new ArrayList<>();
+				String after = null;
+				List<MyTableRow> page;
+				do {
+					page = scanDb.scanRows(MyTableRow.class, TABLE, after, 2);
+					assertWithMessage("Page size").that(page.size()).isAtMost(2);
+					ids.addAll(ids(page));
+					after = page.isEmpty() ? null : page.get(page.size() - 1).id;
+				} while (page.size() == 2);
+				assertWithMessage(nPartitions + " partitions: Ids scanned").that(ids)
+					.containsExactly("99", "100", "101", "250", "1000", "abc").inOrder();
+				assertWithMessage("Page after a deleted id").that(ids(scanDb.scanRows(MyTableRow.class, TABLE, "200",
+					1))).containsExactly("250");
+			} finally {
+				scanDb.rmTable(TABLE);
+			}
+		}
+	}
+	
+	/** Test row and table versions, and conditional updates and deletes */
+	@Test
+	public void testVersions() throws IOException {
+		for (int nPartitions : new int[] { 1, 4 }) {
+			SimpleJsonDb versionDb = openDb(0).withPartitions(nPartitions);
+			try {
+				versionDb.initTable(TABLE);
+				checkVersions(versionDb);
+			} finally {
+				versionDb.rmTable(TABLE);
+			}
+		}
+	}
+	
+	/**
+	 * Check that versions change with the rows and table, and that conditional changes succeed
+	 * only with the current version
+	 */
+	static void checkVersions(StorageEngine db) {
+		String tableVersion = db.tableVersion(TABLE);
+		VersionedRow<MyTableRow> row100 = db.readVersionedRow(MyTableRow.class, TABLE, "100");
+		VersionedRow<MyTableRow> row101 = db.readVersionedRow(MyTableRow.class, TABLE, "101");
+		assertWithMessage("Version of missing row").that(db.readVersionedRow(MyTableRow.class, TABLE, "999")).isNull();
+		assertWithMessage("Row version").that(db.rowVersion(TABLE, "100")).isEqualTo(row100.version);
+		assertWithMessage("Row version of missing row").that(db.rowVersion(TABLE, "999")).isNull();
+
+		row100.row.s1 = "Updated ROW!!! S1";
+		assertWithMessage("Conditional update").that(db.updateRow(TABLE, row100.row, row100.version)).isTrue();
+		String newVersion = db.readVersionedRow(MyTableRow.class, TABLE, "100").version;
+		assertWithMessage("Version of updated row").that(newVersion).isNotEqualTo(row100.version);
+		assertWithMessage("Version of other row").that(db.readVersionedRow(MyTableRow.class, TABLE, "101").version)
+			.isEqualTo(row101.version);
+		assertWithMessage("Table version").that(db.tableVersion(TABLE)).isNotEqualTo(tableVersion);
+		try {
+			db.updateRow(TABLE, row100.row, row100.version);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			assertWithMessage("Current version").that(e.getCurrentVersion()).isEqualTo(newVersion);
+		}
+		try {
+			db.deleteRow(TABLE, "100", row100.version);
+			fail("Expected VersionConflictException");
+		} catch (VersionConflictException e) {
+			logger.info("Expected exception: {}", e.getMessage());
+		}
+		assertWithMessage("Conditional delete").that(db.deleteRow(TABLE, "100", newVersion)).isTrue();
+		db.insertRow(TABLE, row100.row);
+		assertWithMessage("Version of reinserted row")
+			.that(db.readVersionedRow(MyTableRow.class, TABLE, "100").version).isNotEqualTo(newVersion);
+	}
+	
+	/** Test a snapshot taken while another thread inserts rows, and restoring it */
+	@Test
+	public void testSnapshot() throws Exception {
+		for (int nPartitions : new int[] { 1, 4 }) {
+			SimpleJsonDb snapshotDb = openDb().withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+				.withPartitions(nPartitions);
+			File dir = Files.createTempDirectory("snapshot").toFile();
+			File target = new File(dir, "backup");
+			try {
+				snapshotDb.initTable(TABLE);
+				checkSnapshot(snapshotDb);
+
+				// The snapshot holds the rows inserted before some moment, and none after it
+				Thread writer = new Thread(() -> {
+					for (int n = 0; n < 2000; n++) {
+						snapshotDb.insertRow(TABLE, newRow(String.valueOf(5000 + n)));
+					}
+				});
+				writer.start();
+				while (snapshotDb.readRow(MyTableRow.class, TABLE, "5100") == null) {
+					Thread.sleep(1);
+				}
+				snapshotDb.snapshot(target);
+				writer.join();
+				snapshotDb.restore(target);
+				List<MyTableRow> rows = snapshotDb.readTable(MyTableRow.class, TABLE);
+				Set<String> ids = rows.stream().map(row -> row.id).collect(Collectors.toSet());
+				int inserted = rows.size() - EXPECTED_NROWS_BEFORE - 1;
+				logger.info("{} partitions: snapshot holds {} of the inserted rows", nPartitions, inserted);
+				assertThat(inserted).isAtLeast(101);
+				for (int n = 0; n < inserted; n++) {
+					assertWithMessage("Inserted row " + n).that(ids).contains(String.valueOf(5000 + n));
+				}
+
+				// Restored from its files by a fresh instance
+				SimpleJsonDb reloadedDb = openDb().withPartitions(nPartitions);
+				assertWithMessage("Rows after reload").that(reloadedDb.readTable(MyTableRow.class, TABLE))
+					.hasSize(rows.size());
+			} finally {
+				snapshotDb.rmTable(TABLE);
+				rmDir(target);
+				dir.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Check that a snapshot holds the tables as they were when it was taken, and that restoring
+	 * it undoes the changes made since (with new versions)
+	 */
+	static void checkSnapshot(StorageEngine db) throws IOException {
+		File dir = Files.createTempDirectory("snapshot").toFile();
+		File target = new File(dir, "backup");
+		try {
+			db.insertRow(TABLE, newRow("2000"));
+			String version100 = db.rowVersion(TABLE, "100");
+			db.snapshot(target);
+			assertWithMessage("Snapshot directory").that(dir.list()).asList().containsExactly(target.getName());
+			try {
+				db.snapshot(target);
+				fail("Expected IllegalArgumentException");
+			} catch (IllegalArgumentException e) {
+				logger.info("Expected exception: {}", e.getMessage());
+			}
+
+			db.deleteRow(TABLE, "100");
+			MyTableRow row101 = db.readRow(MyTableRow.class, TABLE, "101");
+			String s1 = row101.s1;
+			row101.s1 = "Changed after the snapshot";
+			db.updateRow(TABLE, row101);
+			db.insertRow(TABLE, newRow("3000"));
+
+			db.restore(target);
+			assertWithMessage("Restored ids").that(ids(db.readTable(MyTableRow.class, TABLE)))
+				.containsExactly("100", "101", "2000");
+			assertWithMessage("Restored row").that(db.readRow(MyTableRow.class, TABLE, "101").s1).isEqualTo(s1);
+			assertWithMessage("Version of restored row").that(db.rowVersion(TABLE, "100")).isNotEqualTo(version100);
+			try {
+				db.restore(dir);
+				fail("Expected IllegalArgumentException");
+			} catch (IllegalArgumentException e) {
+				logger.info("Expected exception: {}", e.getMessage());
+			}
+		} finally {
+			rmDir(target);
+			dir.delete();
+		}
+	}
+	
 	// Utility routines below
 	
+	private static void rmDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+	
 	private void showMyTable(String tag, List<MyTableRow> rows) {
 		logger.info("{}: Table contains {} rows", tag, rows.size());
 		for (MyTableRow row : rows) {
@@ -125,6 +1085,37 @@ public class SimpleJsonDbTest {
 		}
 	}
 	
+	/**
+	 * Run a task in several threads at once, and wait for them all to finish, rethrowing any
+	 * failure
+	 */
+	private static void runConcurrently(int nThreads, Runnable task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < nThreads; t++) {
+			futures.add(executor.submit(task));
+		}
+		try {
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private static List<String> ids(List<MyTableRow> rows) {
+		return rows.stream().map(row -> row.id).collect(Collectors.toList());
+	}
+	
+	private static MyTableRow newRow(String id) {
+		MyTableRow row = new MyTableRow();
+		row.id = id;
+		row.s1 = "New ROW!!! S1";
+		row.s2 = "New ROW!!! S2";
+		return row;
+	}
+	
 	private static class MyTableRow {
 		@JsonProperty("id") public String id;
 		@JsonProperty("s1") public String s1;
@@ -0,0 +1,148 @@
+package com.joev.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Measures how long a snapshot (see SimpleJsonDb.snapshot) of a large table takes, and how much
+ * it holds up a writer which keeps updating rows meanwhile: the writer's slowest update, and its
+ * number of updates per second, while the snapshot is written and for the same time beforehand.
+ * Then it measures restoring the snapshot, and loading the restored table. This is not a unit
+ * test; run it by hand, e.g.:
+ * 
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -Xmx3g -cp target/classes:target/test-classes:$(cat cp.txt) com.joev.util.SnapshotBenchmark [nRows [nPartitions]]
+ * </pre>
+ * 
+ * The default table size is 1,000,000 rows, unpartitioned.
+ */
+public class SnapshotBenchmark {
+	private static final String DB = "SnapshotBenchmark";
+	private static final String TABLE = "Customers";
+
+	public static void main(String[] args) throws Exception {
+		int nRows = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+		int nPartitions = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+		SimpleJsonDb.mkTestDbDir();
+		File dir = Files.createTempDirectory("SnapshotBenchmark").toFile();
+		File target = new File(dir, "snapshot");
+		SimpleJsonDb db = new SimpleJsonDb(DB).withStorageMode(SimpleJsonDb.StorageMode.JOURNAL)
+				.withPartitions(nPartitions);
+		try {
+			db.writeTable(TABLE, makeRows(nRows));
+			db.flush();
+
+			Writer writer = new Writer(db, nRows);
+			Thread thread = new Thread(writer);
+			thread.start();
+			Thread.sleep(2000);
+			writer.reset();
+			long start = System.nanoTime();
+			db.snapshot(target);
+			long snapshotNanos = System.nanoTime() - start;
+			Writer.Stats during = writer.reset();
+			Thread.sleep(Math.max(1000, snapshotNanos / 1_000_000));
+			Writer.Stats after = writer.reset();
+			writer.stop.set(true);
+			thread.join();
+
+			System.out.printf("snapshot of %d rows (%d partitions): %.1f ms%n", nRows, nPartitions, snapshotNanos / 1e6);
+			System.out.printf("%-18s %12s %14s%n", "writer", "updates/s", "max update ms");
+			System.out.printf("%-18s %12.0f %14.2f%n", "during snapshot", during.perSecond(), during.maxNanos / 1e6);
+			System.out.printf("%-18s %12.0f %14.2f%n", "without snapshot", after.perSecond(), after.maxNanos / 1e6);
+
+			start = System.nanoTime();
+			db.restore(target);
+			long restoreNanos = System.nanoTime() - start;
+			db.readRow(JsonNode.class, TABLE, "0");
+			long loadNanos = System.nanoTime() - start - restoreNanos;
+			System.out.printf("restore: %.1f ms, then loading the restored table: %.1f ms%n", restoreNanos / 1e6,
+					loadNanos / 1e6);
+		} finally {
+			db.rmTable(TABLE);
+			for (File f : target.listFiles()) {
+				f.delete();
+			}
+			target.delete();
+			dir.delete();
+			SimpleJsonDb.rmTestDbDir();
+		}
+	}
+
+	/**
+	 * Updates random rows, one at a time, until stopped, counting the updates and recording the
+	 * slowest
+	 */
+	private static class Writer implements Runnable {
+		final AtomicBoolean stop = new AtomicBoolean();
+		private final SimpleJsonDb db;
+		private final int nRows;
+		private Stats stats = new Stats();
+
+		static class Stats {
+			final long start = System.nanoTime();
+			long end;
+			long updates;
+			long maxNanos;
+
+			double perSecond() {
+				return updates * 1e9 / (end - start);
+			}
+		}
+
+		Writer(SimpleJsonDb db, int nRows) {
+			this.db = db;
+			this.nRows = nRows;
+		}
+
+		/**
+		 * @return the statistics so far, after starting new ones
+		 */
+		synchronized Stats reset() {
+			Stats old = stats;
+			old.end = System.nanoTime();
+			stats = new Stats();
+			return old;
+		}
+
+		@Override
+		public void run() {
+			while (!stop.get()) {
+				int i = ThreadLocalRandom.current().nextInt(nRows);
+				long start = System.nanoTime();
+				db.updateRow(TABLE, row(i, "Updated " + start));
+				long nanos = System.nanoTime() - start;
+				synchronized (this) {
+					stats.updates++;
+					stats.maxNanos = Math.max(stats.maxNanos, nanos);
+				}
+			}
+		}
+	}
+
+	private static List<JsonNode> makeRows(int nRows) {
+		List<JsonNode> rows = new ArrayList<>(nRows);
+		for (int i = 0; i < nRows; i++) {
+			rows.add(row(i, "Customer Number " + i));
+		}
+		return rows;
+	}
+
+	private static ObjectNode row(int i, String name) {
+		ObjectNode row = JsonNodeFactory.instance.objectNode();
+		row.put("id", Integer.toString(i));
+		row.put("name", name);
+		row.put("address", (i % 997) + " Main Street, Springfield");
+		return row;
+	}
+}
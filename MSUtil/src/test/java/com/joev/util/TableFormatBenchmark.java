@@ -0,0 +1,109 @@
+package com.joev.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Compares the time taken to save and load tables of various sizes in each TableFormat (loading
+ * both through a stream and from a memory-mapped file), and the size of the resulting files. This is not a unit test; run it by hand, e.g.:
+ * 
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) com.joev.util.TableFormatBenchmark [nRows...]
+ * </pre>
+ * 
+ * The default table sizes are 10,000, 100,000 and 1,000,000 rows.
+ */
+public class TableFormatBenchmark {
+	private static final TableFormat[] FORMATS = { TableFormat.JSON, TableFormat.BINARY };
+	private static final int RUNS = 5;
+	private static final MappedFiles mappedFiles = new MappedFiles();
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = { 10_000, 100_000, 1_000_000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		System.out.printf("%-8s %10s %12s %10s %10s %10s%n", "format", "rows", "bytes", "save ms", "load ms",
+				"mapped ms");
+		for (int nRows : sizes) {
+			List<JsonNode> rows = makeRows(nRows);
+			for (TableFormat format : FORMATS) {
+				File file = File.createTempFile("TableFormatBenchmark", format.getExtension(), dir);
+				try {
+					// The first run warms up the JIT; report the best of the rest
+					long bestSave = Long.MAX_VALUE;
+					long bestLoad = Long.MAX_VALUE;
+					long bestMapped = Long.MAX_VALUE;
+					for (int run = 0; run <= RUNS; run++) {
+						long start = System.nanoTime();
+						save(format, file, rows);
+						long saved = System.nanoTime();
+						int loaded = load(format, file, false);
+						long end = System.nanoTime();
+						int mapped = load(format, file, true);
+						long endMapped = System.nanoTime();
+						if (loaded != nRows || mapped != nRows) {
+							throw new IllegalStateException("Loaded " + loaded + "/" + mapped + " rows; expected " + nRows);
+						}
+						if (run > 0) {
+							bestSave = Math.min(bestSave, saved - start);
+							bestLoad = Math.min(bestLoad, end - saved);
+							bestMapped = Math.min(bestMapped, endMapped - end);
+						}
+					}
+					System.out.printf("%-8s %10d %12d %10.1f %10.1f %10.1f%n", format, nRows, file.length(),
+							bestSave / 1e6, bestLoad / 1e6, bestMapped / 1e6);
+				} finally {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return rows resembling a table of customers
+	 */
+	private static List<JsonNode> makeRows(int nRows) {
+		List<JsonNode> rows = new ArrayList<>(nRows);
+		for (int i = 0; i < nRows; i++) {
+			ObjectNode row = JsonNodeFactory.instance.objectNode();
+			row.put("id", Integer.toString(1000 + i));
+			row.put("name", "Customer Number " + i);
+			row.put("address", (i % 997) + " Main Street, Springfield");
+			row.put("balance", i * 3.25);
+			row.put("accounts", i % 5);
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private static void save(TableFormat format, File file, List<JsonNode> rows) throws IOException {
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+			format.write(os, rows);
+		}
+	}
+
+	private static int load(TableFormat format, File file, boolean mapped) throws IOException {
+		List<JsonNode> rows = new ArrayList<>();
+		try (RowReader<JsonNode> reader = mapped ? format.read(mappedFiles.map(file), JsonNode.class)
+				: format.read(new FileInputStream(file), JsonNode.class)) {
+			reader.forEachRemaining(rows::add);
+		}
+		return rows.size();
+	}
+}